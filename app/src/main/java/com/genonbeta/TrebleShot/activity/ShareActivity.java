@@ -79,6 +79,7 @@ public class ShareActivity extends Activity
 
                 try {
                     pendingObjects.add(new SelectableStream(thisFile, folderName));
+                    task.onStreamMeasured(pendingObjects);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -23,6 +23,7 @@ import com.genonbeta.TrebleShot.R;
 import com.genonbeta.TrebleShot.dialog.EstablishConnectionDialog;
 import com.genonbeta.TrebleShot.app.Activity;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
+import com.genonbeta.TrebleShot.database.DatabaseChangeBus;
 import com.genonbeta.TrebleShot.dialog.SelectAssigneeDialog;
 import com.genonbeta.TrebleShot.dialog.ToggleMultipleTransferDialog;
 import com.genonbeta.TrebleShot.dialog.TransferInfoDialog;
@@ -81,20 +82,28 @@ public class ViewTransferActivity
     private MenuItem mWebShareShortcut;
     private MenuItem mToggleBrowserShare;
     private CrunchLatestDataTask mDataCruncher;
+    private DatabaseChangeBus.Listener mDatabaseListener = new DatabaseChangeBus.Listener()
+    {
+        @Override
+        public void onDatabaseChange(DatabaseChangeBus.Change change)
+        {
+            // The changes to the other groups are of no interest here
+            if (!change.affectsGroup(mGroup.groupId))
+                return;
+
+            if (AccessDatabase.TABLE_TRANSFERGROUP.equals(change.tableName))
+                reconstructGroup();
+            else if (AccessDatabase.TABLE_TRANSFER.equals(change.tableName)
+                    && (change.isType(AccessDatabase.TYPE_INSERT) || change.isType(AccessDatabase.TYPE_REMOVE)))
+                updateCalculations();
+        }
+    };
     private BroadcastReceiver mReceiver = new BroadcastReceiver()
     {
         @Override
         public void onReceive(Context context, Intent intent)
         {
-            if (AccessDatabase.ACTION_DATABASE_CHANGE.equals(intent.getAction()) && intent.hasExtra(AccessDatabase.EXTRA_TABLE_NAME)) {
-                if (AccessDatabase.TABLE_TRANSFERGROUP.equals(intent.getStringExtra(AccessDatabase.EXTRA_TABLE_NAME)))
-                    reconstructGroup();
-                else if (intent.hasExtra(AccessDatabase.EXTRA_CHANGE_TYPE)
-                        && AccessDatabase.TABLE_TRANSFER.equals(intent.getStringExtra(AccessDatabase.EXTRA_TABLE_NAME))
-                        && (AccessDatabase.TYPE_INSERT.equals(intent.getStringExtra(AccessDatabase.EXTRA_CHANGE_TYPE)) || AccessDatabase.TYPE_REMOVE.equals(intent.getStringExtra(AccessDatabase.EXTRA_CHANGE_TYPE)))) {
-                    updateCalculations();
-                }
-            } else if (CommunicationService.ACTION_TASK_STATUS_CHANGE.equals(intent.getAction())
+            if (CommunicationService.ACTION_TASK_STATUS_CHANGE.equals(intent.getAction())
                     && intent.hasExtra(CommunicationService.EXTRA_GROUP_ID)
                     && intent.hasExtra(CommunicationService.EXTRA_DEVICE_ID)) {
                 long groupId = intent.getLongExtra(CommunicationService.EXTRA_GROUP_ID, -1);
@@ -271,11 +280,11 @@ public class ViewTransferActivity
 
         IntentFilter filter = new IntentFilter();
 
-        filter.addAction(AccessDatabase.ACTION_DATABASE_CHANGE);
         filter.addAction(CommunicationService.ACTION_TASK_STATUS_CHANGE);
         filter.addAction(CommunicationService.ACTION_TASK_RUNNING_LIST_CHANGE);
 
         registerReceiver(mReceiver, filter);
+        getDatabase().getChangeBus().addListener(mDatabaseListener);
         reconstructGroup();
 
         requestTaskStateUpdate();
@@ -287,6 +296,7 @@ public class ViewTransferActivity
     {
         super.onPause();
         unregisterReceiver(mReceiver);
+        getDatabase().getChangeBus().removeListener(mDatabaseListener);
     }
 
     @Override
@@ -650,9 +660,12 @@ public class ViewTransferActivity
                 mRestartRequested = false;
 
                 for (ViewTransferActivity activity : activities) {
-                    if (activity.getGroup() != null)
+                    if (activity.getGroup() != null) {
                         activity.getDatabase()
                                 .calculateTransactionSize(activity.getGroup().groupId, activity.getIndex());
+                        AppUtils.getProgressJournal().addUnsavedByte(activity.getGroup().groupId,
+                                activity.getIndex());
+                    }
                 }
             } while (mRestartRequested && !isCancelled());
 
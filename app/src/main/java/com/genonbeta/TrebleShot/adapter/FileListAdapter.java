@@ -210,7 +210,7 @@ public class FileListAdapter
                                 .castQuery(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
                                         .setWhere(String.format("%s = ? AND %s = ? AND %s = ?", AccessDatabase.FIELD_TRANSFER_FLAG,
                                                 AccessDatabase.FIELD_TRANSFER_TYPE, AccessDatabase.FIELD_TRANSFER_GROUPID),
-                                                TransferObject.Flag.DONE.toString(),
+                                                String.valueOf(TransferObject.Flag.DONE.getValue()),
                                                 TransferObject.Type.INCOMING.toString(),
                                                 String.valueOf(group.groupId))
                                         .setOrderBy(String.format("`%s` DESC, `%s` DESC",
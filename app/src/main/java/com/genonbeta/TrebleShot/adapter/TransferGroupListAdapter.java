@@ -22,9 +22,11 @@ import com.genonbeta.android.database.SQLQuery;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import androidx.annotation.ColorInt;
 import androidx.annotation.NonNull;
+import androidx.collection.ArrayMap;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.drawable.DrawableCompat;
 import androidx.core.widget.ImageViewCompat;
@@ -65,10 +67,16 @@ public class TransferGroupListAdapter
     protected void onLoad(GroupLister<PreloadedGroup> lister)
     {
         List<Long> activeList = new ArrayList<>(mRunningTasks);
+        List<PreloadedGroup> groupList = mDatabase.castQuery(getSelect(), PreloadedGroup.class);
+        Map<Long, TransferGroup.Index> indexMap = new ArrayMap<>();
 
-        for (PreloadedGroup group : mDatabase.castQuery(getSelect(), PreloadedGroup.class)) {
-            mDatabase.calculateTransactionSize(group.groupId, group.index);
+        for (PreloadedGroup group : groupList)
+            indexMap.put(group.groupId, group.index);
 
+        mDatabase.calculateTransactionSize(indexMap);
+        AppUtils.getProgressJournal().addUnsavedByte(indexMap);
+
+        for (PreloadedGroup group : groupList) {
             StringBuilder assigneesText = new StringBuilder();
 
             for (ShowingAssignee showingAssignee : group.index.assignees) {
@@ -210,7 +210,7 @@ public class TransferListAdapter
                     transferFolder.filesReceived++;
                     transferFolder.bytesReceived += object.fileSize;
                 } else if (TransferObject.Flag.IN_PROGRESS.equals(object.flag)) {
-                    transferFolder.bytesReceived += object.flag.getBytesValue();
+                    transferFolder.bytesReceived += AppUtils.getProgressJournal().getTransferredByte(object);
                 } else if (object.hasIssues()) {
                     transferFolder.setHasIssues(true);
                 }
@@ -275,7 +275,7 @@ public class TransferListAdapter
                 statusItem.filesReceived++;
                 statusItem.bytesReceived += file.fileSize;
             } else if (TransferObject.Flag.IN_PROGRESS.equals(file.flag)) {
-                statusItem.bytesReceived += file.flag.getBytesValue();
+                statusItem.bytesReceived += AppUtils.getProgressJournal().getTransferredByte(file);
             } else if (file.hasIssues()) {
                 statusItem.setHasIssues(true);
             }
@@ -655,9 +655,11 @@ public class TransferListAdapter
             if (Flag.DONE.equals(flag))
                 return 1;
 
-            return fileSize == 0 || flag.getBytesValue() == 0
+            long transferredByte = AppUtils.getProgressJournal().getTransferredByte(this);
+
+            return fileSize == 0 || transferredByte == 0
                     ? 0
-                    : Long.valueOf(flag.getBytesValue()).doubleValue() / Long.valueOf(fileSize).doubleValue();
+                    : Long.valueOf(transferredByte).doubleValue() / Long.valueOf(fileSize).doubleValue();
         }
 
         @Override
@@ -14,9 +14,30 @@ public class AppConfig
             NICKNAME_LENGTH_MAX = 32,
             BUFFER_LENGTH_DEFAULT = 8096,
             BUFFER_LENGTH_SMALL = 1024,
+            BUFFER_LENGTH_DIRECT = 512 * 1024,
             DELAY_CHECK_FOR_UPDATES = 21600,
             PHOTO_SCALE_FACTOR = 100,
-            WEB_SHARE_CONNECTION_MAX = 20;
+            WEB_SHARE_CONNECTION_MAX = 20,
+            SESSION_LANE_COUNT_MAX = 4,
+            SESSION_RANGE_LENGTH = 16 * 1024 * 1024,
+            SESSION_STRIPE_LENGTH_MIN = 64 * 1024 * 1024,
+            SESSION_BATCH_FILE_LENGTH_MAX = 256 * 1024,
+            SESSION_BATCH_COUNT_MAX = 64,
+            SESSION_DELTA_CHUNK_LENGTH = 1024 * 1024,
+            SESSION_DELTA_CHUNK_COUNT_MAX = 16384,
+            INDEX_PAGE_LENGTH = 1000,
+            INDEX_PAGE_POLL_INTERVAL = 1000,
+            INDEX_PAGE_RETRY_COUNT = 3,
+            INDEX_PAGE_RETRY_DELAY = 3000,
+            FANOUT_BLOCK_LENGTH = 128 * 1024,
+            FANOUT_BLOCK_COUNT = 16,
+            FANOUT_WAIT_MAX = 500,
+            PEER_POLL_INTERVAL = 5000,
+            BANDWIDTH_INTERACTIVE_LENGTH_MAX = 16 * 1024 * 1024,
+            PROGRESS_CHECKPOINT_INTERVAL = 10000,
+            PROGRESS_CHECKPOINT_LENGTH = 64 * 1024 * 1024,
+            DATABASE_CHANGE_DELAY = 300,
+            DATABASE_CHANGE_ID_MAX = 256;
 
     public final static String
             EMAIL_DEVELOPER = "genonbeta@gmail.com",
@@ -17,6 +17,10 @@ public class Keyword
             REQUEST_CLIPBOARD = "requestClipboard",
             REQUEST_HANDSHAKE = "requestHandshake",
             REQUEST_START_TRANSFER = "requestStartTransfer",
+            REQUEST_INDEX_PAGE = "requestIndexPage", // Introduced in 99
+            REQUEST_GROUP_PEERS = "requestGroupPeers", // Introduced in 99
+            REQUEST_AVAILABILITY = "requestAvailability", // Introduced in 99
+            REQUEST_PEER_FILE = "requestPeerFile", // Introduced in 99
             BACK_COMP_REQUEST_SEND_UPDATE = "backCompRequestSendUpdate",
             TRANSFER_REQUEST_ID = "requestId",
             TRANSFER_GROUP_ID = "groupId",
@@ -25,6 +29,18 @@ public class Keyword
             TRANSFER_IS_ACCEPTED = "isAccepted",
             TRANSFER_CLIPBOARD_TEXT = "clipboardText",
             TRANSFER_JOB_DONE = "jobDone", // any exit situation will be referred by this
+            TRANSFER_SESSION = "session", // Introduced in 99
+            TRANSFER_SESSION_LANES = "sessionLanes", // Introduced in 99
+            TRANSFER_SESSION_FRAMING = "sessionFraming", // Introduced in 99
+            TRANSFER_RANGE_START = "rangeStart", // Introduced in 99
+            TRANSFER_RANGE_LENGTH = "rangeLength", // Introduced in 99
+            TRANSFER_FILE_DONE = "fileDone", // Introduced in 99
+            TRANSFER_BATCH = "batch", // Introduced in 99
+            TRANSFER_CHECKSUM = "checksum", // Introduced in 99
+            TRANSFER_DELTA = "delta", // Introduced in 99
+            TRANSFER_COMPRESSION = "compression", // Introduced in 99
+            TRANSFER_PEERS = "peers", // Introduced in 99
+            TRANSFER_AVAILABLE = "available", // Introduced in 99
             FLAG = "flag",
             FLAG_GROUP_EXISTS = "flagGroupExists",
             FILES_INDEX = "filesIndex",
@@ -32,6 +48,9 @@ public class Keyword
             INDEX_FILE_SIZE = "fileSize",
             INDEX_FILE_MIME = "fileMime",
             INDEX_DIRECTORY = "directory",
+            INDEX_PAGED = "indexPaged", // Introduced in 99
+            INDEX_CURSOR = "indexCursor", // Introduced in 99
+            INDEX_COMPLETE = "indexComplete", // Introduced in 99
             DEVICE_INFO = "deviceInfo",
             DEVICE_INFO_BRAND = "brand",
             DEVICE_INFO_MODEL = "model",
@@ -3,16 +3,18 @@ package com.genonbeta.TrebleShot.database;
 import android.app.Activity;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.database.Cursor;
 import android.database.SQLException;
+import android.text.TextUtils;
 
 import androidx.collection.ArrayMap;
 
 import com.genonbeta.TrebleShot.R;
+import com.genonbeta.TrebleShot.object.ShowingAssignee;
 import com.genonbeta.TrebleShot.object.TransferGroup;
 import com.genonbeta.TrebleShot.object.TransferObject;
 import com.genonbeta.TrebleShot.service.WorkerService;
+import com.genonbeta.TrebleShot.util.ProgressJournal;
 import com.genonbeta.TrebleShot.util.TransferUtils;
 import com.genonbeta.android.database.CursorItem;
 import com.genonbeta.android.database.DatabaseObject;
@@ -24,7 +26,8 @@ import com.genonbeta.android.database.SQLiteDatabase;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by: veli
@@ -43,14 +46,16 @@ public class AccessDatabase extends SQLiteDatabase
 
     public static final String TAG = AccessDatabase.class.getSimpleName();
 
-    public static final int DATABASE_VERSION = 12;
+    public static final int DATABASE_VERSION = 17;
 
     public static final String DATABASE_NAME = AccessDatabase.class.getSimpleName() + ".db";
 
     public static final String ACTION_DATABASE_CHANGE = "com.genonbeta.intent.action.DATABASE_CHANGE";
     public static final String EXTRA_TABLE_NAME = "tableName";
-    public static final String EXTRA_AFFECTED_ITEM_COUNT = "affectedItemCount";
     public static final String EXTRA_CHANGE_TYPE = "changeType";
+    public static final String EXTRA_PROCESS_ID = "processId";
+    public static final String EXTRA_GROUP_ID_LIST = "groupIdList";
+    public static final String EXTRA_REQUEST_ID_LIST = "requestIdList";
     public static final String TYPE_REMOVE = "typeRemove";
     public static final String TYPE_INSERT = "typeInsert";
     public static final String TYPE_UPDATE = "typeUpdate";
@@ -103,20 +108,41 @@ public class AccessDatabase extends SQLiteDatabase
     public static final String FIELD_TRANSFER_ACCESSPORT = "accessPort";
     public static final String FIELD_TRANSFER_SKIPPEDBYTES = "skippedBytes";
     public static final String FIELD_TRANSFER_FLAG = "flag";
+    public static final String FIELD_TRANSFER_RANGES = "ranges";
+    public static final String FIELD_TRANSFER_PROGRESSBYTES = "progressBytes";
 
     public static final String TABLE_TRANSFERGROUP = "transferGroup";
     public static final String FIELD_TRANSFERGROUP_ID = "id";
     public static final String FIELD_TRANSFERGROUP_SAVEPATH = "savePath";
     public static final String FIELD_TRANSFERGROUP_DATECREATED = "dateCreated";
     public static final String FIELD_TRANSFERGROUP_ISSHAREDONWEB = "isSharedOnWeb";
+    public static final String FIELD_TRANSFERGROUP_ISINDEXPARTIAL = "isIndexPartial";
+
+    // the totals of the files of a group, which the triggers on the transfer tables keep
+    public static final String TABLE_TRANSFERGROUPSTATS = "transferGroupStats";
+    public static final String FIELD_TRANSFERGROUPSTATS_GROUPID = "groupId";
+    public static final String FIELD_TRANSFERGROUPSTATS_TYPE = "type";
+    public static final String FIELD_TRANSFERGROUPSTATS_ISDIVISION = "isDivision";
+    public static final String FIELD_TRANSFERGROUPSTATS_COUNT = "count";
+    public static final String FIELD_TRANSFERGROUPSTATS_SIZE = "size";
+    public static final String FIELD_TRANSFERGROUPSTATS_COUNTCOMPLETED = "countCompleted";
+    public static final String FIELD_TRANSFERGROUPSTATS_SIZECOMPLETED = "sizeCompleted";
+    public static final String FIELD_TRANSFERGROUPSTATS_ISSUECOUNT = "issueCount";
 
     public static final String TABLE_WRITABLEPATH = "writablePath";
     public static final String FIELD_WRITABLEPATH_TITLE = "title";
     public static final String FIELD_WRITABLEPATH_PATH = "path";
 
+    // the column that the last argument before the end is compared with, as in "`groupId` = "
+    private static final Pattern WHERE_ARG_PATTERN = Pattern.compile("`?(\\w+)`?\\s*=\\s*$");
+
+    private final DatabaseChangeBus mChangeBus;
+    private ProgressJournal mProgressJournal;
+
     public AccessDatabase(Context context)
     {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mChangeBus = new DatabaseChangeBus(context);
     }
 
     public static CursorItem convertValues(ContentValues values)
@@ -133,6 +159,164 @@ public class AccessDatabase extends SQLiteDatabase
     public void onCreate(android.database.sqlite.SQLiteDatabase db)
     {
         SQLQuery.createTables(db, getDatabaseTables());
+        createIndexes(db);
+        createStatsTriggers(db);
+    }
+
+    /**
+     * @param row the row of the trigger, which is either NEW or OLD
+     * @return the columns of the stats table that a file adds to when it is added, or subtracts
+     * from when it is removed
+     */
+    private static String createStatsDelta(String row, String sign)
+    {
+        return String.format("`%1$s` = `%1$s` %7$s 1, "
+                        + "`%2$s` = `%2$s` %7$s IFNULL(%6$s.`%9$s`, 0), "
+                        + "`%3$s` = `%3$s` %7$s (%6$s.`%10$s` = %11$d), "
+                        + "`%4$s` = `%4$s` %7$s (%8$s), "
+                        + "`%5$s` = `%5$s` %7$s (%6$s.`%10$s` IN (%12$d, %13$d))",
+                FIELD_TRANSFERGROUPSTATS_COUNT, FIELD_TRANSFERGROUPSTATS_SIZE,
+                FIELD_TRANSFERGROUPSTATS_COUNTCOMPLETED, FIELD_TRANSFERGROUPSTATS_SIZECOMPLETED,
+                FIELD_TRANSFERGROUPSTATS_ISSUECOUNT, row, sign, createCompletedSize(row + "."),
+                FIELD_TRANSFER_SIZE, FIELD_TRANSFER_FLAG, TransferObject.Flag.DONE.getValue(),
+                TransferObject.Flag.INTERRUPTED.getValue(), TransferObject.Flag.REMOVED.getValue());
+    }
+
+    /**
+     * @param prefix that the columns are qualified with, or an empty string
+     * @return the expression that gives the bytes of a file that are on the other side
+     */
+    private static String createCompletedSize(String prefix)
+    {
+        return String.format("CASE %1$s`%2$s` WHEN %5$d THEN IFNULL(%1$s`%3$s`, 0) "
+                        + "WHEN %6$d THEN %1$s`%4$s` ELSE 0 END", prefix, FIELD_TRANSFER_FLAG,
+                FIELD_TRANSFER_SIZE, FIELD_TRANSFER_PROGRESSBYTES, TransferObject.Flag.DONE.getValue(),
+                TransferObject.Flag.IN_PROGRESS.getValue());
+    }
+
+    /**
+     * Creates the triggers that keep the stats of the groups up to date as the files are added,
+     * removed or changed, which happens in the same transaction as the change itself.
+     */
+    private void createStatsTriggers(android.database.sqlite.SQLiteDatabase database)
+    {
+        database.execSQL(String.format("CREATE UNIQUE INDEX IF NOT EXISTS `index_%1$s` ON `%1$s` "
+                        + "(`%2$s`, `%3$s`, `%4$s`)", TABLE_TRANSFERGROUPSTATS,
+                FIELD_TRANSFERGROUPSTATS_GROUPID, FIELD_TRANSFERGROUPSTATS_TYPE,
+                FIELD_TRANSFERGROUPSTATS_ISDIVISION));
+
+        for (String tableName : new String[]{TABLE_TRANSFER, DIVIS_TRANSFER}) {
+            int isDivision = DIVIS_TRANSFER.equals(tableName) ? 1 : 0;
+            String createRow = String.format("INSERT OR IGNORE INTO `%s` (`%s`, `%s`, `%s`, `%s`, "
+                            + "`%s`, `%s`, `%s`, `%s`) VALUES (%%1$s.`%s`, %%1$s.`%s`, %d, 0, 0, 0, 0, 0); ",
+                    TABLE_TRANSFERGROUPSTATS, FIELD_TRANSFERGROUPSTATS_GROUPID,
+                    FIELD_TRANSFERGROUPSTATS_TYPE, FIELD_TRANSFERGROUPSTATS_ISDIVISION,
+                    FIELD_TRANSFERGROUPSTATS_COUNT, FIELD_TRANSFERGROUPSTATS_SIZE,
+                    FIELD_TRANSFERGROUPSTATS_COUNTCOMPLETED, FIELD_TRANSFERGROUPSTATS_SIZECOMPLETED,
+                    FIELD_TRANSFERGROUPSTATS_ISSUECOUNT, FIELD_TRANSFER_GROUPID, FIELD_TRANSFER_TYPE,
+                    isDivision);
+            String updateRow = String.format("UPDATE `%s` SET %%2$s WHERE `%s` = %%1$s.`%s` "
+                            + "AND `%s` = %%1$s.`%s` AND `%s` = %d;", TABLE_TRANSFERGROUPSTATS,
+                    FIELD_TRANSFERGROUPSTATS_GROUPID, FIELD_TRANSFER_GROUPID,
+                    FIELD_TRANSFERGROUPSTATS_TYPE, FIELD_TRANSFER_TYPE,
+                    FIELD_TRANSFERGROUPSTATS_ISDIVISION, isDivision);
+            String addRow = String.format(createRow, "NEW")
+                    + String.format(updateRow, "NEW", createStatsDelta("NEW", "+"));
+            String subtractRow = String.format(updateRow, "OLD", createStatsDelta("OLD", "-"));
+
+            database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS `trigger_%1$s_insert` "
+                    + "AFTER INSERT ON `%1$s` BEGIN %2$s END", tableName, addRow));
+            database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS `trigger_%1$s_delete` "
+                    + "AFTER DELETE ON `%1$s` BEGIN %2$s END", tableName, subtractRow));
+            // Most of the updates don't change what is counted, so they are skipped
+            database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS `trigger_%1$s_update` "
+                            + "AFTER UPDATE OF `%2$s`, `%3$s`, `%4$s`, `%5$s`, `%6$s` ON `%1$s` "
+                            + "WHEN OLD.`%2$s` IS NOT NEW.`%2$s` OR OLD.`%3$s` IS NOT NEW.`%3$s` "
+                            + "OR OLD.`%4$s` IS NOT NEW.`%4$s` OR OLD.`%5$s` IS NOT NEW.`%5$s` "
+                            + "OR OLD.`%6$s` IS NOT NEW.`%6$s` BEGIN %7$s %8$s END", tableName,
+                    FIELD_TRANSFER_GROUPID, FIELD_TRANSFER_TYPE, FIELD_TRANSFER_SIZE,
+                    FIELD_TRANSFER_FLAG, FIELD_TRANSFER_PROGRESSBYTES, subtractRow, addRow));
+        }
+
+        database.execSQL(String.format("CREATE TRIGGER IF NOT EXISTS `trigger_%1$s_delete` "
+                        + "AFTER DELETE ON `%1$s` BEGIN DELETE FROM `%2$s` WHERE `%3$s` = OLD.`%4$s`; END",
+                TABLE_TRANSFERGROUP, TABLE_TRANSFERGROUPSTATS, FIELD_TRANSFERGROUPSTATS_GROUPID,
+                FIELD_TRANSFERGROUP_ID));
+    }
+
+    /**
+     * Counts the stats of the groups from scratch, which is needed when the triggers were not
+     * there while the files were changed.
+     */
+    private void rebuildStats(android.database.sqlite.SQLiteDatabase database)
+    {
+        database.execSQL(String.format("DELETE FROM `%s`", TABLE_TRANSFERGROUPSTATS));
+
+        for (String tableName : new String[]{TABLE_TRANSFER, DIVIS_TRANSFER})
+            database.execSQL(String.format("INSERT INTO `%s` (`%s`, `%s`, `%s`, `%s`, `%s`, `%s`, `%s`, `%s`) "
+                            + "SELECT `%s`, `%s`, %d, COUNT(*), SUM(IFNULL(`%s`, 0)), SUM(`%s` = %d), "
+                            + "SUM(%s), SUM(`%s` IN (%d, %d)) FROM `%s` GROUP BY `%s`, `%s`",
+                    TABLE_TRANSFERGROUPSTATS, FIELD_TRANSFERGROUPSTATS_GROUPID,
+                    FIELD_TRANSFERGROUPSTATS_TYPE, FIELD_TRANSFERGROUPSTATS_ISDIVISION,
+                    FIELD_TRANSFERGROUPSTATS_COUNT, FIELD_TRANSFERGROUPSTATS_SIZE,
+                    FIELD_TRANSFERGROUPSTATS_COUNTCOMPLETED, FIELD_TRANSFERGROUPSTATS_SIZECOMPLETED,
+                    FIELD_TRANSFERGROUPSTATS_ISSUECOUNT, FIELD_TRANSFER_GROUPID, FIELD_TRANSFER_TYPE,
+                    DIVIS_TRANSFER.equals(tableName) ? 1 : 0, FIELD_TRANSFER_SIZE,
+                    FIELD_TRANSFER_FLAG, TransferObject.Flag.DONE.getValue(), createCompletedSize(""),
+                    FIELD_TRANSFER_FLAG, TransferObject.Flag.INTERRUPTED.getValue(),
+                    TransferObject.Flag.REMOVED.getValue(), tableName, FIELD_TRANSFER_GROUPID,
+                    FIELD_TRANSFER_TYPE));
+    }
+
+    /**
+     * Moves the bytes of the files that are being transferred out of their flags, which held
+     * them in place of the name of the flag before version 16, and turns the names into the
+     * values that the flags are kept with now.
+     */
+    private void convertTransferFlags(android.database.sqlite.SQLiteDatabase database, String tableName)
+    {
+        StringBuilder flagCase = new StringBuilder("CASE");
+
+        for (TransferObject.Flag flag : TransferObject.Flag.values())
+            flagCase.append(String.format(" WHEN `%s` = '%s' THEN %d", FIELD_TRANSFER_FLAG,
+                    flag.name(), flag.getValue()));
+
+        flagCase.append(String.format(" WHEN `%s` GLOB '[0-9]*' THEN %d ELSE %d END",
+                FIELD_TRANSFER_FLAG, TransferObject.Flag.IN_PROGRESS.getValue(),
+                TransferObject.Flag.INTERRUPTED.getValue()));
+
+        database.execSQL(String.format("ALTER TABLE `%s` ADD COLUMN `%s` INTEGER NOT NULL DEFAULT 0",
+                tableName, FIELD_TRANSFER_PROGRESSBYTES));
+        database.execSQL(String.format("UPDATE `%1$s` SET `%2$s` = CASE WHEN `%3$s` GLOB '[0-9]*' "
+                        + "THEN CAST(`%3$s` AS INTEGER) ELSE 0 END, `%3$s` = %4$s", tableName,
+                FIELD_TRANSFER_PROGRESSBYTES, FIELD_TRANSFER_FLAG, flagCase));
+    }
+
+    /**
+     * Creates the indexes that the transfers are looked up with. The files of a group for a
+     * device are found by their group id, device id, type and flag in that order, so the same
+     * index serves the queries that use only the first few of them. The rest are for the
+     * updates, which find a file by its request id, and for the received files, which are found
+     * by their names.
+     */
+    private void createIndexes(android.database.sqlite.SQLiteDatabase database)
+    {
+        String format = "CREATE INDEX IF NOT EXISTS `%s` ON `%s` (%s)";
+
+        database.execSQL(String.format(format, "index_transfer_group", TABLE_TRANSFER, String.format(
+                "`%s`, `%s`, `%s`, `%s`", FIELD_TRANSFER_GROUPID, FIELD_TRANSFER_DEVICEID,
+                FIELD_TRANSFER_TYPE, FIELD_TRANSFER_FLAG)));
+        database.execSQL(String.format(format, "index_transfer_id", TABLE_TRANSFER, String.format(
+                "`%s`, `%s`, `%s`", FIELD_TRANSFER_ID, FIELD_TRANSFER_TYPE, FIELD_TRANSFER_DEVICEID)));
+        database.execSQL(String.format(format, "index_transfer_file", TABLE_TRANSFER, String.format(
+                "`%s`", FIELD_TRANSFER_FILE)));
+        database.execSQL(String.format(format, "index_divisionTransfer_group", DIVIS_TRANSFER,
+                String.format("`%s`, `%s`", FIELD_TRANSFER_GROUPID, FIELD_TRANSFER_TYPE)));
+        database.execSQL(String.format(format, "index_divisionTransfer_id", DIVIS_TRANSFER,
+                String.format("`%s`, `%s`", FIELD_TRANSFER_ID, FIELD_TRANSFER_TYPE)));
+        database.execSQL(String.format(format, "index_transferAssignee_group", TABLE_TRANSFERASSIGNEE,
+                String.format("`%s`, `%s`", FIELD_TRANSFERASSIGNEE_GROUPID,
+                        FIELD_TRANSFERASSIGNEE_DEVICEID)));
     }
 
     @Override
@@ -178,6 +362,10 @@ public class AccessDatabase extends SQLiteDatabase
                 try {
                     SQLValues.Table tableTransfer = databaseTables.getTables().get(TABLE_TRANSFER);
                     SQLValues.Table divisTransfer = databaseTables.getTables().get(DIVIS_TRANSFER);
+
+                    // The files are read with the flags of version 16
+                    convertTransferFlags(database, TABLE_TRANSFER);
+
                     Map<Long, String> mapDist = new ArrayMap<>();
                     List<TransferObject> supportedItems = new ArrayList<>();
                     List<TransferGroup.Assignee> availableAssignees = castQuery(database,
@@ -224,81 +412,256 @@ public class AccessDatabase extends SQLiteDatabase
                 SQLQuery.createTable(database, tableTransferGroup);
                 insert(database, totalGroupList, null, null);
             }
+
+            // Versions before 10 have the transfer tables created from scratch above
+            if (old >= 10 && old < 13) {
+                // With version 13, striped files keep the ranges they have received
+                for (String tableName : new String[]{TABLE_TRANSFER, DIVIS_TRANSFER})
+                    database.execSQL(String.format("ALTER TABLE `%s` ADD COLUMN `%s` TEXT",
+                            tableName, FIELD_TRANSFER_RANGES));
+            }
+
+            if (old < 15)
+                SQLQuery.createTable(database, databaseTables.getTables().get(TABLE_TRANSFERGROUPSTATS));
+
+            if (old >= 10 && old < 16) {
+                // With version 16, the flags are kept as numbers and the bytes of the files that
+                // are being transferred have a column of their own. The type of a column cannot
+                // be changed, so the tables are created again with the files copied over.
+                String columns = String.format("`%s`, `%s`, `%s`, `%s`, `%s`, `%s`, `%s`, `%s`, "
+                                + "`%s`, `%s`, `%s`, `%s`, `%s`, `%s`", FIELD_TRANSFER_ID,
+                        FIELD_TRANSFER_GROUPID, FIELD_TRANSFER_DEVICEID, FIELD_TRANSFER_FILE,
+                        FIELD_TRANSFER_NAME, FIELD_TRANSFER_SIZE, FIELD_TRANSFER_MIME,
+                        FIELD_TRANSFER_TYPE, FIELD_TRANSFER_DIRECTORY, FIELD_TRANSFER_ACCESSPORT,
+                        FIELD_TRANSFER_SKIPPEDBYTES, FIELD_TRANSFER_FLAG, FIELD_TRANSFER_RANGES,
+                        FIELD_TRANSFER_PROGRESSBYTES);
+
+                for (String tableName : new String[]{TABLE_TRANSFER, DIVIS_TRANSFER}) {
+                    String oldTableName = tableName + "_old";
+
+                    // The triggers of version 15 go with the old table, and are created again below
+                    for (String triggerType : new String[]{"insert", "delete", "update"})
+                        database.execSQL(String.format("DROP TRIGGER IF EXISTS `trigger_%s_%s`",
+                                tableName, triggerType));
+
+                    database.execSQL(String.format("ALTER TABLE `%s` RENAME TO `%s`", tableName,
+                            oldTableName));
+                    convertTransferFlags(database, oldTableName);
+                    SQLQuery.createTable(database, databaseTables.getTables().get(tableName));
+                    database.execSQL(String.format("INSERT INTO `%1$s` (%3$s) SELECT %3$s FROM `%2$s`",
+                            tableName, oldTableName, columns));
+                    database.execSQL(String.format("DROP TABLE `%s`", oldTableName));
+                }
+            }
+
+            // Versions before 12 have the group table created from scratch above
+            if (old >= 12 && old < 17)
+                // With version 17, the groups whose index hasn't been received completely are marked
+                database.execSQL(String.format("ALTER TABLE `%s` ADD COLUMN `%s` INTEGER",
+                        TABLE_TRANSFERGROUP, FIELD_TRANSFERGROUP_ISINDEXPARTIAL));
         }
-    }
 
-    protected void broadcast(android.database.sqlite.SQLiteDatabase database,
-                             SQLQuery.Select select, String type)
-    {
-        getContext().sendBroadcast(new Intent(ACTION_DATABASE_CHANGE)
-                .putExtra(EXTRA_TABLE_NAME, select.tableName)
-                .putExtra(EXTRA_CHANGE_TYPE, type)
-                .putExtra(EXTRA_AFFECTED_ITEM_COUNT, getAffectedRowCount(database)));
+        // With version 14, the transfer tables have indexes. The tables that are created again
+        // above lose theirs, so they are always created if they don't exist.
+        createIndexes(database);
+
+        // With version 15, the stats of the groups are kept by triggers. Like the indexes, they
+        // go with the tables that are created again, and the files may have changed without them.
+        // With version 16, they count the bytes of the files that are being transferred from
+        // the column of their own.
+        createStatsTriggers(database);
+        rebuildStats(database);
     }
 
-    public void calculateTransactionSize(long groupId, TransferGroup.Index indexObject)
+    /**
+     * Hands a change to the bus, which announces it with the others that are made shortly
+     * after. The groups and the files that have changed are taken from the values when they
+     * are there, and from the conditions of the query otherwise.
+     *
+     * @param values the values that the rows have been given, or null
+     */
+    protected void broadcast(SQLQuery.Select select, ContentValues values, String type)
     {
-        indexObject.reset();
+        DatabaseChangeBus.Change change = new DatabaseChangeBus.Change(select.tableName, type);
+
+        change.addGroup(findKey(select, values, getKeyColumn(select.tableName, true)));
+        change.addRequest(findKey(select, values, getKeyColumn(select.tableName, false)));
 
-        List<TransferObject> transactionList = castQuery(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
-                .setWhere(AccessDatabase.FIELD_TRANSFER_GROUPID + "=?",
-                        String.valueOf(groupId)), TransferObject.class);
+        mChangeBus.post(change);
+    }
 
-        indexObject.assignees.addAll(TransferUtils.loadAssigneeList(this, groupId));
+    protected <T, V extends DatabaseObject<T>> void broadcast(List<V> objects, String type)
+    {
+        Map<String, DatabaseChangeBus.Change> changeList = new ArrayMap<>();
 
-        if (transactionList.size() == 0)
-            transactionList.addAll(castQuery(new SQLQuery.Select(AccessDatabase.DIVIS_TRANSFER)
-                    .setWhere(AccessDatabase.FIELD_TRANSFER_GROUPID + "=?",
-                            String.valueOf(groupId)), TransferObject.class));
+        for (V object : objects) {
+            String tableName = object.getWhere().tableName;
+            DatabaseChangeBus.Change change = changeList.get(tableName);
 
-        for (TransferObject transferObject : transactionList) {
-            if (TransferObject.Type.INCOMING.equals(transferObject.type)) {
-                indexObject.incoming += transferObject.fileSize;
-                indexObject.incomingCount++;
+            if (change == null) {
+                change = new DatabaseChangeBus.Change(tableName, type);
+                changeList.put(tableName, change);
+            }
 
-                if (TransferObject.Flag.DONE.equals(transferObject.flag)) {
-                    indexObject.incomingCountCompleted++;
-                    indexObject.incomingCompleted += transferObject.fileSize;
-                } else if (TransferObject.Flag.IN_PROGRESS.equals(transferObject.flag))
-                    indexObject.incomingCompleted += transferObject.flag.getBytesValue();
+            if (object instanceof TransferObject) {
+                change.addGroup(((TransferObject) object).groupId);
+                change.addRequest(((TransferObject) object).requestId);
+            } else if (object instanceof TransferGroup) {
+                change.addGroup(((TransferGroup) object).groupId);
+                change.addRequest(null);
+            } else if (object instanceof TransferGroup.Assignee) {
+                change.addGroup(((TransferGroup.Assignee) object).groupId);
+                change.addRequest(null);
             } else {
-                indexObject.outgoing += transferObject.fileSize;
-                indexObject.outgoingCount++;
-
-                if (TransferObject.Flag.DONE.equals(transferObject.flag)) {
-                    indexObject.outgoingCountCompleted++;
-                    indexObject.outgoingCompleted += transferObject.fileSize;
-                } else if (TransferObject.Flag.IN_PROGRESS.equals(transferObject.flag))
-                    indexObject.outgoingCompleted += transferObject.flag.getBytesValue();
+                change.addGroup(null);
+                change.addRequest(null);
             }
+        }
 
-            if (!indexObject.hasIssues &&
-                    (TransferObject.Flag.INTERRUPTED.equals(transferObject.flag)
-                            || TransferObject.Flag.REMOVED.equals(transferObject.flag)))
-                indexObject.hasIssues = true;
+        for (DatabaseChangeBus.Change change : changeList.values())
+            mChangeBus.post(change);
+    }
+
+    /**
+     * @return the value of a column if it is given, or what it is compared with in a query whose
+     * conditions all have to be met, or null if it is not known
+     */
+    private static Long findKey(SQLQuery.Select select, ContentValues values, String column)
+    {
+        if (column == null)
+            return null;
+
+        if (values != null && values.containsKey(column))
+            return values.getAsLong(column);
+
+        if (select.where == null || select.whereArgs == null
+                || select.where.toUpperCase().contains(" OR "))
+            return null;
+
+        String[] conditions = select.where.split("\\?", -1);
+
+        for (int i = 0; i < conditions.length - 1 && i < select.whereArgs.length; i++) {
+            Matcher matcher = WHERE_ARG_PATTERN.matcher(conditions[i]);
+
+            if (matcher.find() && column.equals(matcher.group(1)))
+                try {
+                    return Long.parseLong(select.whereArgs[i]);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
         }
 
-        indexObject.calculated = true;
+        return null;
+    }
+
+    /**
+     * @param group true for the column of the group, false for the column of the file
+     * @return the column that the groups or the files are kept with in a table, or null if the
+     * table has none
+     */
+    private static String getKeyColumn(String tableName, boolean group)
+    {
+        if (TABLE_TRANSFER.equals(tableName) || DIVIS_TRANSFER.equals(tableName))
+            return group ? FIELD_TRANSFER_GROUPID : FIELD_TRANSFER_ID;
+        else if (TABLE_TRANSFERGROUP.equals(tableName))
+            return group ? FIELD_TRANSFERGROUP_ID : null;
+        else if (TABLE_TRANSFERASSIGNEE.equals(tableName))
+            return group ? FIELD_TRANSFERASSIGNEE_GROUPID : null;
+
+        return null;
+    }
+
+    public void calculateTransactionSize(long groupId, TransferGroup.Index indexObject)
+    {
+        Map<Long, TransferGroup.Index> indexMap = new ArrayMap<>();
+        indexMap.put(groupId, indexObject);
+
+        calculateTransactionSize(indexMap);
     }
 
-    public long getAffectedRowCount(android.database.sqlite.SQLiteDatabase database)
+    /**
+     * Calculates the indexes of many groups at once. The totals are read from the stats that the
+     * database keeps for each group, so the time it takes grows with the number of groups
+     * instead of the number of files.
+     *
+     * <p>
+     * Only what has been written is counted. The bytes that are still in the memory of a
+     * {@link ProgressJournal} are added by the callers that keep one.
+     *
+     * @param indexMap the indexes to calculate, mapped to the ids of their groups
+     */
+    public void calculateTransactionSize(Map<Long, TransferGroup.Index> indexMap)
     {
+        if (indexMap.size() == 0)
+            return;
+
+        for (TransferGroup.Index indexObject : indexMap.values())
+            indexObject.reset();
+
+        String groupIds = TextUtils.join(",", indexMap.keySet());
+        Map<Long, Boolean> sourceMap = new ArrayMap<>();
         Cursor cursor = null;
-        long returnCount = 0;
 
         try {
-            cursor = database.rawQuery("SELECT changes() AS affected_row_count", null);
+            // The groups that don't have any assignee yet have their files in the division table
+            cursor = getReadableDatabase().rawQuery(String.format("SELECT * FROM `%s` WHERE `%s` IN (%s) "
+                            + "AND `%s` > 0 ORDER BY `%s` ASC", TABLE_TRANSFERGROUPSTATS,
+                    FIELD_TRANSFERGROUPSTATS_GROUPID, groupIds, FIELD_TRANSFERGROUPSTATS_COUNT,
+                    FIELD_TRANSFERGROUPSTATS_ISDIVISION), null);
+
+            while (cursor.moveToNext()) {
+                long groupId = cursor.getLong(cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_GROUPID));
+                boolean isDivision = cursor.getInt(cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_ISDIVISION)) == 1;
+                Boolean source = sourceMap.get(groupId);
+
+                if (source == null)
+                    sourceMap.put(groupId, isDivision);
+                else if (source != isDivision)
+                    continue;
+
+                TransferGroup.Index indexObject = indexMap.get(groupId);
+                int count = cursor.getInt(cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_COUNT));
+                int countCompleted = cursor.getInt(cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_COUNTCOMPLETED));
+                long size = cursor.getLong(cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_SIZE));
+                long sizeCompleted = cursor.getLong(cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_SIZECOMPLETED));
+
+                if (TransferObject.Type.INCOMING.name().equals(cursor.getString(
+                        cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_TYPE)))) {
+                    indexObject.incoming += size;
+                    indexObject.incomingCount += count;
+                    indexObject.incomingCompleted += sizeCompleted;
+                    indexObject.incomingCountCompleted += countCompleted;
+                } else {
+                    indexObject.outgoing += size;
+                    indexObject.outgoingCount += count;
+                    indexObject.outgoingCompleted += sizeCompleted;
+                    indexObject.outgoingCountCompleted += countCompleted;
+                }
 
-            if (cursor != null && cursor.getCount() > 0 && cursor.moveToFirst())
-                returnCount = cursor.getLong(cursor.getColumnIndex("affected_row_count"));
+                if (cursor.getInt(cursor.getColumnIndex(FIELD_TRANSFERGROUPSTATS_ISSUECOUNT)) > 0)
+                    indexObject.hasIssues = true;
+            }
         } catch (SQLException e) {
-            // Handle exception here.
+            e.printStackTrace();
         } finally {
             if (cursor != null)
                 cursor.close();
         }
 
-        return returnCount;
+        List<ShowingAssignee> assigneeList = TransferUtils.loadAssigneeList(this,
+                new SQLQuery.Select(TABLE_TRANSFERASSIGNEE).setWhere(String.format("`%s` IN (%s)",
+                        FIELD_TRANSFERASSIGNEE_GROUPID, groupIds)));
+
+        for (ShowingAssignee assignee : assigneeList)
+            indexMap.get(assignee.groupId).assignees.add(assignee);
+
+        for (TransferGroup.Index indexObject : indexMap.values())
+            indexObject.calculated = true;
+    }
+
+    public DatabaseChangeBus getChangeBus()
+    {
+        return mChangeBus;
     }
 
     public SQLValues getDatabaseTables()
@@ -345,7 +708,9 @@ public class AccessDatabase extends SQLiteDatabase
                 .define(new SQLValues.Column(FIELD_TRANSFER_DIRECTORY, SQLType.TEXT, true))
                 .define(new SQLValues.Column(FIELD_TRANSFER_ACCESSPORT, SQLType.INTEGER, true))
                 .define(new SQLValues.Column(FIELD_TRANSFER_SKIPPEDBYTES, SQLType.LONG, false))
-                .define(new SQLValues.Column(FIELD_TRANSFER_FLAG, SQLType.TEXT, true));
+                .define(new SQLValues.Column(FIELD_TRANSFER_FLAG, SQLType.INTEGER, true))
+                .define(new SQLValues.Column(FIELD_TRANSFER_RANGES, SQLType.TEXT, true))
+                .define(new SQLValues.Column(FIELD_TRANSFER_PROGRESSBYTES, SQLType.LONG, false));
 
         sqlValues.defineTable(DIVIS_TRANSFER)
                 .define(new SQLValues.Column(FIELD_TRANSFER_ID, SQLType.LONG, false))
@@ -359,7 +724,9 @@ public class AccessDatabase extends SQLiteDatabase
                 .define(new SQLValues.Column(FIELD_TRANSFER_DIRECTORY, SQLType.TEXT, true))
                 .define(new SQLValues.Column(FIELD_TRANSFER_ACCESSPORT, SQLType.INTEGER, true))
                 .define(new SQLValues.Column(FIELD_TRANSFER_SKIPPEDBYTES, SQLType.LONG, false))
-                .define(new SQLValues.Column(FIELD_TRANSFER_FLAG, SQLType.TEXT, true));
+                .define(new SQLValues.Column(FIELD_TRANSFER_FLAG, SQLType.INTEGER, true))
+                .define(new SQLValues.Column(FIELD_TRANSFER_RANGES, SQLType.TEXT, true))
+                .define(new SQLValues.Column(FIELD_TRANSFER_PROGRESSBYTES, SQLType.LONG, false));
 
         sqlValues.defineTable(TABLE_TRANSFERASSIGNEE)
                 .define(new SQLValues.Column(FIELD_TRANSFERASSIGNEE_GROUPID, SQLType.LONG, false))
@@ -371,7 +738,18 @@ public class AccessDatabase extends SQLiteDatabase
                 .define(new SQLValues.Column(FIELD_TRANSFERGROUP_ID, SQLType.LONG, false))
                 .define(new SQLValues.Column(FIELD_TRANSFERGROUP_DATECREATED, SQLType.LONG, false))
                 .define(new SQLValues.Column(FIELD_TRANSFERGROUP_SAVEPATH, SQLType.TEXT, true))
-                .define(new SQLValues.Column(FIELD_TRANSFERGROUP_ISSHAREDONWEB, SQLType.INTEGER, true));
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUP_ISSHAREDONWEB, SQLType.INTEGER, true))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUP_ISINDEXPARTIAL, SQLType.INTEGER, true));
+
+        sqlValues.defineTable(TABLE_TRANSFERGROUPSTATS)
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_GROUPID, SQLType.LONG, false))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_TYPE, SQLType.TEXT, false))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_ISDIVISION, SQLType.INTEGER, false))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_COUNT, SQLType.INTEGER, false))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_SIZE, SQLType.LONG, false))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_COUNTCOMPLETED, SQLType.INTEGER, false))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_SIZECOMPLETED, SQLType.LONG, false))
+                .define(new SQLValues.Column(FIELD_TRANSFERGROUPSTATS_ISSUECOUNT, SQLType.INTEGER, false));
 
         sqlValues.defineTable(TABLE_WRITABLEPATH)
                 .define(new SQLValues.Column(FIELD_WRITABLEPATH_TITLE, SQLType.TEXT, false))
@@ -385,7 +763,7 @@ public class AccessDatabase extends SQLiteDatabase
     {
         long returnedItems = super.insert(database, tableName, nullColumnHack, contentValues);
 
-        broadcast(database, new SQLQuery.Select(tableName), TYPE_INSERT);
+        broadcast(new SQLQuery.Select(tableName), contentValues, TYPE_INSERT);
 
         return returnedItems;
     }
@@ -394,11 +772,7 @@ public class AccessDatabase extends SQLiteDatabase
     public <T, V extends DatabaseObject<T>> void insert(android.database.sqlite.SQLiteDatabase openDatabase, List<V> objects, ProgressUpdater updater, T parent)
     {
         super.insert(openDatabase, objects, updater, parent);
-
-        Set<String> tableList = explodePerTable(objects).keySet();
-
-        for (String tableName : tableList)
-            broadcast(openDatabase, new SQLQuery.Select(tableName), TYPE_INSERT);
+        broadcast(objects, TYPE_INSERT);
     }
 
     @Override
@@ -406,7 +780,10 @@ public class AccessDatabase extends SQLiteDatabase
     {
         int returnedItems = super.remove(database, select);
 
-        broadcast(database, select, TYPE_REMOVE);
+        if (TABLE_TRANSFER.equals(select.tableName) || TABLE_TRANSFERGROUP.equals(select.tableName))
+            settleProgress(select, null);
+
+        broadcast(select, null, TYPE_REMOVE);
 
         return returnedItems;
     }
@@ -416,10 +793,39 @@ public class AccessDatabase extends SQLiteDatabase
     {
         super.remove(openDatabase, objects, updater, parent);
 
-        Set<String> tableList = explodePerTable(objects).keySet();
+        for (V object : objects)
+            if (object instanceof TransferObject)
+                settleProgress((TransferObject) object, true);
+            else if (object instanceof TransferGroup && mProgressJournal != null)
+                mProgressJournal.forget(((TransferGroup) object).groupId, null);
+
+        broadcast(objects, TYPE_REMOVE);
+    }
+
+    /**
+     * Lets the journal forget a file that is not being transferred anymore once that has been
+     * written, so the bytes that it had not written yet are not counted on top of the file.
+     */
+    private void settleProgress(TransferObject transferObject, boolean removed)
+    {
+        if (mProgressJournal != null
+                && (removed || !TransferObject.Flag.IN_PROGRESS.equals(transferObject.flag)))
+            mProgressJournal.forget(transferObject.type, transferObject.deviceId,
+                    transferObject.requestId);
+    }
 
-        for (String tableName : tableList)
-            broadcast(openDatabase, new SQLQuery.Select(tableName), TYPE_REMOVE);
+    /**
+     * Lets the journal forget the files that a query has written or removed, such as when a
+     * group is paused or stopped. They are only known by the conditions of the query, so every
+     * file that could have been written is forgotten.
+     *
+     * @param values the values that the files have been given, or null if they are removed
+     */
+    private void settleProgress(SQLQuery.Select select, ContentValues values)
+    {
+        if (mProgressJournal != null)
+            mProgressJournal.forget(findKey(select, values, getKeyColumn(select.tableName, true)),
+                    findKey(select, values, getKeyColumn(select.tableName, false)));
     }
 
     public void removeAsynchronous(Activity activity, final DatabaseObject object)
@@ -465,12 +871,36 @@ public class AccessDatabase extends SQLiteDatabase
                 .run(activity);
     }
 
+    /**
+     * The journal is given by the process that records the progress, so that it forgets the
+     * files whose state is written here.
+     *
+     * @param progressJournal to keep up to date with the writes, or null to stop doing so
+     */
+    public void setProgressJournal(ProgressJournal progressJournal)
+    {
+        mProgressJournal = progressJournal;
+    }
+
     @Override
     public int update(android.database.sqlite.SQLiteDatabase database, SQLQuery.Select select, ContentValues values)
     {
         int returnedItems = super.update(database, select, values);
 
-        broadcast(database, select, TYPE_UPDATE);
+        if (TABLE_TRANSFER.equals(select.tableName) && values.getAsInteger(FIELD_TRANSFER_FLAG) != null
+                && values.getAsLong(FIELD_TRANSFER_ID) != null && values.containsKey(FIELD_TRANSFER_TYPE)) {
+            TransferObject transferObject = new TransferObject(values.getAsLong(FIELD_TRANSFER_ID),
+                    values.getAsString(FIELD_TRANSFER_DEVICEID),
+                    TransferObject.Type.valueOf(values.getAsString(FIELD_TRANSFER_TYPE)));
+
+            transferObject.flag = TransferObject.Flag.getFlag(values.getAsInteger(FIELD_TRANSFER_FLAG));
+            settleProgress(transferObject, false);
+        } else if (TABLE_TRANSFER.equals(select.tableName) && values.getAsInteger(FIELD_TRANSFER_FLAG) != null
+                && !TransferObject.Flag.IN_PROGRESS.equals(TransferObject.Flag.getFlag(
+                values.getAsInteger(FIELD_TRANSFER_FLAG))))
+            settleProgress(select, values);
+
+        broadcast(select, values, TYPE_UPDATE);
 
         return returnedItems;
     }
@@ -480,10 +910,11 @@ public class AccessDatabase extends SQLiteDatabase
     {
         super.update(openDatabase, objects, updater, parent);
 
-        Set<String> tableList = explodePerTable(objects).keySet();
+        for (V object : objects)
+            if (object instanceof TransferObject)
+                settleProgress((TransferObject) object, false);
 
-        for (String tableName : tableList)
-            broadcast(openDatabase, new SQLQuery.Select(tableName), TYPE_UPDATE);
+        broadcast(objects, TYPE_UPDATE);
     }
 }
 
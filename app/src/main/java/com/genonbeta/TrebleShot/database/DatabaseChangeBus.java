@@ -0,0 +1,262 @@
+package com.genonbeta.TrebleShot.database;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.genonbeta.TrebleShot.config.AppConfig;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the changes made to the database and hands them out a short while later, so the
+ * changes that are made one after another to a table end up as a single change. A change keeps
+ * the groups and the files that it has touched when they are known, so a list that shows only
+ * some of them doesn't have to reload for the rest.
+ * <p>
+ * The listeners are called on the main thread, both for the changes made in this process and
+ * for the ones that other processes have announced. The changes are announced to the other
+ * processes with {@link AccessDatabase#ACTION_DATABASE_CHANGE}.
+ */
+public class DatabaseChangeBus
+{
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Change> mPendingList = new LinkedHashMap<>();
+    private final List<Listener> mListenerList = new ArrayList<>();
+
+    private final Runnable mFlushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            // The changes of this process have already been handed out
+            if (!AccessDatabase.ACTION_DATABASE_CHANGE.equals(intent.getAction())
+                    || !intent.hasExtra(AccessDatabase.EXTRA_TABLE_NAME)
+                    || intent.getIntExtra(AccessDatabase.EXTRA_PROCESS_ID, -1) == Process.myPid())
+                return;
+
+            notifyListeners(Change.from(intent));
+        }
+    };
+
+    DatabaseChangeBus(Context context)
+    {
+        // The receiver outlives the screen that the database may have been opened with
+        mContext = context.getApplicationContext();
+    }
+
+    public void addListener(Listener listener)
+    {
+        synchronized (mListenerList) {
+            if (mListenerList.isEmpty())
+                mContext.registerReceiver(mReceiver, new IntentFilter(AccessDatabase.ACTION_DATABASE_CHANGE));
+
+            mListenerList.add(listener);
+        }
+    }
+
+    private void flush()
+    {
+        List<Change> changeList;
+
+        synchronized (mPendingList) {
+            changeList = new ArrayList<>(mPendingList.values());
+            mPendingList.clear();
+        }
+
+        for (Change change : changeList) {
+            mContext.sendBroadcast(change.toIntent());
+            notifyListeners(change);
+        }
+    }
+
+    private void notifyListeners(Change change)
+    {
+        List<Listener> listenerList;
+
+        synchronized (mListenerList) {
+            listenerList = new ArrayList<>(mListenerList);
+        }
+
+        for (Listener listener : listenerList)
+            listener.onDatabaseChange(change);
+    }
+
+    /**
+     * Adds a change to the one that is waiting for its table and type, or makes it the one.
+     */
+    void post(Change change)
+    {
+        synchronized (mPendingList) {
+            String key = change.tableName + ":" + change.type;
+            Change pendingChange = mPendingList.get(key);
+
+            if (pendingChange == null) {
+                if (mPendingList.isEmpty())
+                    mHandler.postDelayed(mFlushRunnable, AppConfig.DATABASE_CHANGE_DELAY);
+
+                mPendingList.put(key, change);
+            } else
+                pendingChange.merge(change);
+        }
+    }
+
+    public void removeListener(Listener listener)
+    {
+        synchronized (mListenerList) {
+            if (mListenerList.remove(listener) && mListenerList.isEmpty())
+                mContext.unregisterReceiver(mReceiver);
+        }
+    }
+
+    public interface Listener
+    {
+        void onDatabaseChange(Change change);
+    }
+
+    /**
+     * The changes made to a table in the same way. The groups and the files are either known,
+     * or any of them may have changed. No more than {@link AppConfig#DATABASE_CHANGE_ID_MAX} of
+     * them are kept, because the change is sent to the other processes in a single transaction
+     * of the binder, which fails when it grows past its limit. Past that, any of them may have
+     * changed, which only makes the lists reload a little more than they need to.
+     */
+    public static class Change
+    {
+        public final String tableName;
+        public final String type;
+        private final Set<Long> mGroupIds = new HashSet<>();
+        private final Set<Long> mRequestIds = new HashSet<>();
+        private boolean mAnyGroup = false;
+        private boolean mAnyRequest = false;
+
+        Change(String tableName, String type)
+        {
+            this.tableName = tableName;
+            this.type = type;
+        }
+
+        private static Change from(Intent intent)
+        {
+            Change change = new Change(intent.getStringExtra(AccessDatabase.EXTRA_TABLE_NAME),
+                    intent.getStringExtra(AccessDatabase.EXTRA_CHANGE_TYPE));
+            long[] groupIds = intent.getLongArrayExtra(AccessDatabase.EXTRA_GROUP_ID_LIST);
+            long[] requestIds = intent.getLongArrayExtra(AccessDatabase.EXTRA_REQUEST_ID_LIST);
+
+            if (groupIds == null)
+                change.addGroup(null);
+            else
+                for (long groupId : groupIds)
+                    change.addGroup(groupId);
+
+            if (requestIds == null)
+                change.addRequest(null);
+            else
+                for (long requestId : requestIds)
+                    change.addRequest(requestId);
+
+            return change;
+        }
+
+        private static long[] toArray(Set<Long> idList)
+        {
+            long[] ids = new long[idList.size()];
+            int position = 0;
+
+            for (long id : idList)
+                ids[position++] = id;
+
+            return ids;
+        }
+
+        /**
+         * @param groupId the group, or null if it is not known
+         */
+        void addGroup(Long groupId)
+        {
+            if (groupId == null || mGroupIds.size() >= AppConfig.DATABASE_CHANGE_ID_MAX) {
+                mAnyGroup = true;
+                mGroupIds.clear();
+            } else if (!mAnyGroup)
+                mGroupIds.add(groupId);
+        }
+
+        /**
+         * @param requestId the file, or null if it is not known
+         */
+        void addRequest(Long requestId)
+        {
+            if (requestId == null || mRequestIds.size() >= AppConfig.DATABASE_CHANGE_ID_MAX) {
+                mAnyRequest = true;
+                mRequestIds.clear();
+            } else if (!mAnyRequest)
+                mRequestIds.add(requestId);
+        }
+
+        public boolean affectsGroup(long groupId)
+        {
+            return mAnyGroup || mGroupIds.contains(groupId);
+        }
+
+        public boolean affectsRequest(long requestId)
+        {
+            return mAnyRequest || mRequestIds.contains(requestId);
+        }
+
+        public boolean isType(String type)
+        {
+            return this.type.equals(type);
+        }
+
+        private void merge(Change change)
+        {
+            // What is known is no use once anything may have changed
+            if (change.mAnyGroup)
+                addGroup(null);
+            else
+                for (Long groupId : change.mGroupIds)
+                    addGroup(groupId);
+
+            if (change.mAnyRequest)
+                addRequest(null);
+            else
+                for (Long requestId : change.mRequestIds)
+                    addRequest(requestId);
+        }
+
+        private Intent toIntent()
+        {
+            Intent intent = new Intent(AccessDatabase.ACTION_DATABASE_CHANGE)
+                    .putExtra(AccessDatabase.EXTRA_TABLE_NAME, tableName)
+                    .putExtra(AccessDatabase.EXTRA_CHANGE_TYPE, type)
+                    .putExtra(AccessDatabase.EXTRA_PROCESS_ID, Process.myPid());
+
+            if (!mAnyGroup)
+                intent.putExtra(AccessDatabase.EXTRA_GROUP_ID_LIST, toArray(mGroupIds));
+
+            if (!mAnyRequest)
+                intent.putExtra(AccessDatabase.EXTRA_REQUEST_ID_LIST, toArray(mRequestIds));
+
+            return intent;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.genonbeta.TrebleShot.dialog;
 
 import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.Uri;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -16,6 +18,8 @@ import androidx.appcompat.app.AlertDialog;
 import com.genonbeta.TrebleShot.R;
 import com.genonbeta.TrebleShot.object.TransferGroup;
 import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.service.CommunicationService;
+import com.genonbeta.TrebleShot.util.AdaptiveBufferSize;
 import com.genonbeta.TrebleShot.util.AppUtils;
 import com.genonbeta.TrebleShot.util.FileUtils;
 import com.genonbeta.TrebleShot.util.TextUtils;
@@ -30,10 +34,44 @@ import java.io.IOException;
 
 public class TransferInfoDialog extends AlertDialog.Builder
 {
+    private TransferObject mTransferObject;
+    private View mBufferLayout;
+    private TextView mBufferSizeText;
+    private TextView mTransferRateText;
+
+    private BroadcastReceiver mReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            if (CommunicationService.ACTION_TASK_STATUS_CHANGE.equals(intent.getAction())
+                    && intent.getLongExtra(CommunicationService.EXTRA_GROUP_ID, -1) == mTransferObject.groupId
+                    && mTransferObject.deviceId != null
+                    && mTransferObject.deviceId.equals(intent.getStringExtra(CommunicationService.EXTRA_DEVICE_ID))) {
+                boolean known = intent.hasExtra(CommunicationService.EXTRA_BUFFER_LENGTH);
+
+                mBufferLayout.setVisibility(known ? View.VISIBLE : View.GONE);
+
+                if (known)
+                    mBufferSizeText.setText(context.getString(R.string.text_bufferSizeSummary,
+                            FileUtils.sizeExpression(intent.getIntExtra(CommunicationService.EXTRA_BUFFER_LENGTH, 0), false),
+                            FileUtils.sizeExpression(intent.getIntExtra(CommunicationService.EXTRA_SOCKET_BUFFER_LENGTH, 0), false),
+                            // The receive buffer is set before the connection is made and not adapted
+                            FileUtils.sizeExpression(AdaptiveBufferSize.SOCKET_LENGTH_MAX, false)));
+
+                if (intent.hasExtra(CommunicationService.EXTRA_TRANSFER_RATE))
+                    mTransferRateText.setText(context.getString(R.string.text_transferRateSummary,
+                            FileUtils.sizeExpression(intent.getLongExtra(CommunicationService.EXTRA_TRANSFER_RATE, 0), false)));
+            }
+        }
+    };
+
     public TransferInfoDialog(@NonNull final Context context, final TransferObject transferObject)
     {
         super(context);
 
+        mTransferObject = transferObject;
+
         final TransferGroup group = new TransferGroup(transferObject.groupId);
 
         try {
@@ -68,6 +106,10 @@ public class TransferInfoDialog extends AlertDialog.Builder
             TextView receivedSizeText = rootView.findViewById(R.id.transfer_info_received_size);
             TextView locationText = rootView.findViewById(R.id.transfer_info_pseudo_location);
 
+            mBufferLayout = rootView.findViewById(R.id.transfer_info_buffer_layout);
+            mBufferSizeText = rootView.findViewById(R.id.transfer_info_buffer_size);
+            mTransferRateText = rootView.findViewById(R.id.transfer_info_transfer_rate);
+
             setTitle(R.string.text_transactionDetails);
             setView(rootView);
 
@@ -121,6 +163,19 @@ public class TransferInfoDialog extends AlertDialog.Builder
                             AppUtils.getDatabase(context).publish(transferObject);
                         }
                     });
+                } else if (TransferObject.Flag.PENDING.equals(transferObject.flag)) {
+                    setNeutralButton(R.string.butn_receiveFirst, new DialogInterface.OnClickListener()
+                    {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i)
+                        {
+                            AppUtils.startForegroundService(context, new Intent(context, CommunicationService.class)
+                                    .setAction(CommunicationService.ACTION_PIN_TRANSFER)
+                                    .putExtra(CommunicationService.EXTRA_GROUP_ID, transferObject.groupId)
+                                    .putExtra(CommunicationService.EXTRA_DEVICE_ID, transferObject.deviceId)
+                                    .putExtra(CommunicationService.EXTRA_REQUEST_ID, transferObject.requestId));
+                        }
+                    });
                 } else if (fileExists) {
                     if (TransferObject.Flag.REMOVED.equals(transferObject.flag)
                             && pseudoFile.getParentFile() != null) {
@@ -199,4 +254,33 @@ public class TransferInfoDialog extends AlertDialog.Builder
             e.printStackTrace();
         }
     }
+
+    @Override
+    public AlertDialog show()
+    {
+        AlertDialog dialog = super.show();
+
+        // The buffer sizes are only known to the service while the file is being transferred
+        if (mBufferLayout != null && TransferObject.Flag.IN_PROGRESS.equals(mTransferObject.flag)) {
+            final Context context = getContext();
+
+            context.registerReceiver(mReceiver, new IntentFilter(CommunicationService.ACTION_TASK_STATUS_CHANGE));
+
+            dialog.setOnDismissListener(new DialogInterface.OnDismissListener()
+            {
+                @Override
+                public void onDismiss(DialogInterface dialog)
+                {
+                    context.unregisterReceiver(mReceiver);
+                }
+            });
+
+            AppUtils.startForegroundService(context, new Intent(context, CommunicationService.class)
+                    .setAction(CommunicationService.ACTION_REQUEST_TASK_STATUS_CHANGE)
+                    .putExtra(CommunicationService.EXTRA_GROUP_ID, mTransferObject.groupId)
+                    .putExtra(CommunicationService.EXTRA_DEVICE_ID, mTransferObject.deviceId));
+        }
+
+        return dialog;
+    }
 }
@@ -25,10 +25,12 @@ import com.genonbeta.TrebleShot.app.EditableListFragment;
 import com.genonbeta.TrebleShot.app.EditableListFragmentImpl;
 import com.genonbeta.TrebleShot.app.GroupEditableListFragment;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
+import com.genonbeta.TrebleShot.database.DatabaseChangeBus;
 import com.genonbeta.TrebleShot.service.CommunicationService;
 import com.genonbeta.TrebleShot.ui.callback.IconSupport;
 import com.genonbeta.TrebleShot.ui.callback.TitleSupport;
 import com.genonbeta.TrebleShot.util.AppUtils;
+import com.genonbeta.TrebleShot.util.ProgressJournal;
 import com.genonbeta.TrebleShot.widget.GroupEditableListAdapter;
 import com.genonbeta.android.database.SQLQuery;
 import com.genonbeta.android.framework.widget.PowerfulActionMode;
@@ -52,12 +54,8 @@ public class TransferGroupListFragment
         @Override
         public void onReceive(Context context, Intent intent)
         {
-            if (AccessDatabase.ACTION_DATABASE_CHANGE.equals(intent.getAction())
-                    && intent.hasExtra(AccessDatabase.EXTRA_TABLE_NAME)
-                    && (intent.getStringExtra(AccessDatabase.EXTRA_TABLE_NAME).equals(AccessDatabase.TABLE_TRANSFERGROUP)
-                    || intent.getStringExtra(AccessDatabase.EXTRA_TABLE_NAME).equals(AccessDatabase.TABLE_TRANSFER)
-            ))
-                refreshList();
+            if (CommunicationService.ACTION_TRANSFER_PROGRESS.equals(intent.getAction()))
+                AppUtils.getProgressJournal().restore(intent);
             else if (CommunicationService.ACTION_TASK_RUNNING_LIST_CHANGE.equals(intent.getAction())
                     && intent.hasExtra(CommunicationService.EXTRA_TASK_LIST_RUNNING)) {
                 getAdapter().updateActiveList(intent.getLongArrayExtra(CommunicationService.EXTRA_TASK_LIST_RUNNING));
@@ -66,6 +64,34 @@ public class TransferGroupListFragment
         }
     };
 
+    private DatabaseChangeBus.Listener mDatabaseListener = new DatabaseChangeBus.Listener()
+    {
+        @Override
+        public void onDatabaseChange(DatabaseChangeBus.Change change)
+        {
+            if (AccessDatabase.TABLE_TRANSFERGROUP.equals(change.tableName)
+                    || AccessDatabase.TABLE_TRANSFER.equals(change.tableName))
+                refreshList();
+        }
+    };
+
+    private ProgressJournal.Listener mProgressListener = new ProgressJournal.Listener()
+    {
+        @Override
+        public void onProgress()
+        {
+            if (getActivity() != null)
+                getActivity().runOnUiThread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        refreshList();
+                    }
+                });
+        }
+    };
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState)
     {
@@ -127,8 +153,8 @@ public class TransferGroupListFragment
     {
         super.onActivityCreated(savedInstanceState);
 
-        mFilter.addAction(AccessDatabase.ACTION_DATABASE_CHANGE);
         mFilter.addAction(CommunicationService.ACTION_TASK_RUNNING_LIST_CHANGE);
+        mFilter.addAction(CommunicationService.ACTION_TRANSFER_PROGRESS);
 
         if (getSelect() == null)
             setSelect(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFERGROUP));
@@ -139,6 +165,8 @@ public class TransferGroupListFragment
     {
         super.onResume();
         getActivity().registerReceiver(mReceiver, mFilter);
+        AppUtils.getDatabase(getContext()).getChangeBus().addListener(mDatabaseListener);
+        AppUtils.getProgressJournal().addListener(mProgressListener);
 
         AppUtils.startForegroundService(getActivity(), new Intent(getActivity(), CommunicationService.class)
                 .setAction(CommunicationService.ACTION_REQUEST_TASK_RUNNING_LIST_CHANGE));
@@ -149,6 +177,8 @@ public class TransferGroupListFragment
     {
         super.onPause();
         getActivity().unregisterReceiver(mReceiver);
+        AppUtils.getDatabase(getContext()).getChangeBus().removeListener(mDatabaseListener);
+        AppUtils.getProgressJournal().removeListener(mProgressListener);
     }
 
     @Override
@@ -24,13 +24,16 @@ import com.genonbeta.TrebleShot.app.Activity;
 import com.genonbeta.TrebleShot.app.EditableListFragment;
 import com.genonbeta.TrebleShot.app.GroupEditableListFragment;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
+import com.genonbeta.TrebleShot.database.DatabaseChangeBus;
 import com.genonbeta.TrebleShot.dialog.TransferInfoDialog;
 import com.genonbeta.TrebleShot.object.TransferGroup;
 import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.service.CommunicationService;
 import com.genonbeta.TrebleShot.service.WorkerService;
 import com.genonbeta.TrebleShot.ui.callback.TitleSupport;
 import com.genonbeta.TrebleShot.util.AppUtils;
 import com.genonbeta.TrebleShot.util.FileUtils;
+import com.genonbeta.TrebleShot.util.ProgressJournal;
 import com.genonbeta.TrebleShot.util.TransferUtils;
 import com.genonbeta.TrebleShot.widget.GroupEditableListAdapter;
 import com.genonbeta.android.database.SQLQuery;
@@ -63,14 +66,40 @@ public class TransferListFragment
         @Override
         public void onReceive(Context context, Intent intent)
         {
-            if (AccessDatabase.ACTION_DATABASE_CHANGE.equals(intent.getAction())
-                    && (AccessDatabase.TABLE_TRANSFER.equals(intent.getStringExtra(AccessDatabase.EXTRA_TABLE_NAME))
-                    || AccessDatabase.TABLE_TRANSFERGROUP.equals(intent.getStringExtra(AccessDatabase.EXTRA_TABLE_NAME))
-            ))
+            if (CommunicationService.ACTION_TRANSFER_PROGRESS.equals(intent.getAction()))
+                AppUtils.getProgressJournal().restore(intent);
+        }
+    };
+
+    private DatabaseChangeBus.Listener mDatabaseListener = new DatabaseChangeBus.Listener()
+    {
+        @Override
+        public void onDatabaseChange(DatabaseChangeBus.Change change)
+        {
+            if ((AccessDatabase.TABLE_TRANSFER.equals(change.tableName)
+                    || AccessDatabase.TABLE_TRANSFERGROUP.equals(change.tableName))
+                    && change.affectsGroup(getAdapter().getGroupId()))
                 refreshList();
         }
     };
 
+    private ProgressJournal.Listener mProgressListener = new ProgressJournal.Listener()
+    {
+        @Override
+        public void onProgress()
+        {
+            if (getActivity() != null)
+                getActivity().runOnUiThread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        refreshList();
+                    }
+                });
+        }
+    };
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState)
     {
@@ -102,7 +131,9 @@ public class TransferListFragment
     public void onResume()
     {
         super.onResume();
-        getActivity().registerReceiver(mReceiver, new IntentFilter(AccessDatabase.ACTION_DATABASE_CHANGE));
+        getActivity().registerReceiver(mReceiver, new IntentFilter(CommunicationService.ACTION_TRANSFER_PROGRESS));
+        AppUtils.getDatabase(getContext()).getChangeBus().addListener(mDatabaseListener);
+        AppUtils.getProgressJournal().addListener(mProgressListener);
     }
 
     @Override
@@ -110,6 +141,8 @@ public class TransferListFragment
     {
         super.onPause();
         getActivity().unregisterReceiver(mReceiver);
+        AppUtils.getDatabase(getContext()).getChangeBus().removeListener(mDatabaseListener);
+        AppUtils.getProgressJournal().removeListener(mProgressListener);
     }
 
     @Override
@@ -25,6 +25,7 @@ public class TransferGroup implements DatabaseObject<NetworkDevice>, Selectable
     public long dateCreated;
     public String savePath;
     public boolean isServedOnWeb;
+    public boolean isIndexPartial;
 
     private boolean mIsSelected = false;
 
@@ -55,6 +56,7 @@ public class TransferGroup implements DatabaseObject<NetworkDevice>, Selectable
         this.savePath = item.getString(AccessDatabase.FIELD_TRANSFERGROUP_SAVEPATH);
         this.dateCreated = item.getLong(AccessDatabase.FIELD_TRANSFERGROUP_DATECREATED);
         this.isServedOnWeb = item.getInt(AccessDatabase.FIELD_TRANSFERGROUP_ISSHAREDONWEB) == 1;
+        this.isIndexPartial = item.getInt(AccessDatabase.FIELD_TRANSFERGROUP_ISINDEXPARTIAL) == 1;
     }
 
     @Override
@@ -78,6 +80,7 @@ public class TransferGroup implements DatabaseObject<NetworkDevice>, Selectable
         values.put(AccessDatabase.FIELD_TRANSFERGROUP_SAVEPATH, savePath);
         values.put(AccessDatabase.FIELD_TRANSFERGROUP_DATECREATED, dateCreated);
         values.put(AccessDatabase.FIELD_TRANSFERGROUP_ISSHAREDONWEB, isServedOnWeb ? 1 : 0);
+        values.put(AccessDatabase.FIELD_TRANSFERGROUP_ISINDEXPARTIAL, isIndexPartial ? 1 : 0);
 
         return values;
     }
@@ -142,8 +145,12 @@ public class TransferGroup implements DatabaseObject<NetworkDevice>, Selectable
 
             incoming = 0;
             outgoing = 0;
+            incomingCompleted = 0;
+            outgoingCompleted = 0;
             incomingCount = 0;
             outgoingCount = 0;
+            incomingCountCompleted = 0;
+            outgoingCountCompleted = 0;
             assignees.clear();
         }
     }
@@ -35,9 +35,11 @@ public class TransferObject
     public String fileMimeType;
     public String directory;
     public String deviceId;
+    public String ranges;
     public long requestId;
     public long groupId;
     public long skippedBytes;
+    public long progressBytes;
     public long fileSize = 0;
     public int accessPort;
     public Type type = Type.INCOMING;
@@ -135,12 +137,14 @@ public class TransferObject
         values.put(AccessDatabase.FIELD_TRANSFER_NAME, friendlyName);
         values.put(AccessDatabase.FIELD_TRANSFER_SIZE, fileSize);
         values.put(AccessDatabase.FIELD_TRANSFER_MIME, fileMimeType);
-        values.put(AccessDatabase.FIELD_TRANSFER_FLAG, flag.toString());
+        values.put(AccessDatabase.FIELD_TRANSFER_FLAG, flag.getValue());
+        values.put(AccessDatabase.FIELD_TRANSFER_PROGRESSBYTES, progressBytes);
         values.put(AccessDatabase.FIELD_TRANSFER_TYPE, type.toString());
         values.put(AccessDatabase.FIELD_TRANSFER_FILE, file);
         values.put(AccessDatabase.FIELD_TRANSFER_ACCESSPORT, accessPort);
         values.put(AccessDatabase.FIELD_TRANSFER_SKIPPEDBYTES, skippedBytes);
         values.put(AccessDatabase.FIELD_TRANSFER_DIRECTORY, directory);
+        values.put(AccessDatabase.FIELD_TRANSFER_RANGES, ranges);
 
         return values;
     }
@@ -156,18 +160,12 @@ public class TransferObject
         this.groupId = item.getLong(AccessDatabase.FIELD_TRANSFER_GROUPID);
         this.deviceId = item.getString(AccessDatabase.FIELD_TRANSFER_DEVICEID);
         this.type = Type.valueOf(item.getString(AccessDatabase.FIELD_TRANSFER_TYPE));
-
-        // We may have put long in that field indicating that the file was / is in progress so generate
-        try {
-            this.flag = Flag.valueOf(item.getString(AccessDatabase.FIELD_TRANSFER_FLAG));
-        } catch (Exception e) {
-            this.flag = Flag.IN_PROGRESS;
-            this.flag.setBytesValue(item.getLong(AccessDatabase.FIELD_TRANSFER_FLAG));
-        }
-
+        this.flag = Flag.getFlag(item.getInt(AccessDatabase.FIELD_TRANSFER_FLAG));
+        this.progressBytes = item.getLong(AccessDatabase.FIELD_TRANSFER_PROGRESSBYTES);
         this.accessPort = item.getInt(AccessDatabase.FIELD_TRANSFER_ACCESSPORT);
         this.skippedBytes = item.getLong(AccessDatabase.FIELD_TRANSFER_SKIPPEDBYTES);
         this.directory = item.getString(AccessDatabase.FIELD_TRANSFER_DIRECTORY);
+        this.ranges = item.getString(AccessDatabase.FIELD_TRANSFER_RANGES);
     }
 
     @Override
@@ -261,32 +259,37 @@ public class TransferObject
         OUTGOING
     }
 
+    /**
+     * The flags are kept in the database with their values, which should not change. The bytes
+     * of a file that is in progress are kept in {@link #progressBytes}.
+     */
     public enum Flag
     {
-        INTERRUPTED,
-        PENDING,
-        REMOVED,
-        IN_PROGRESS,
-        DONE;
+        INTERRUPTED(0),
+        PENDING(1),
+        REMOVED(2),
+        IN_PROGRESS(3),
+        DONE(4);
 
-        private long bytesValue;
+        private final int value;
 
-        public long getBytesValue()
+        Flag(int value)
         {
-            return bytesValue;
+            this.value = value;
         }
 
-        public void setBytesValue(long bytesValue)
+        public static Flag getFlag(int value)
         {
-            this.bytesValue = bytesValue;
+            for (Flag flag : values())
+                if (flag.value == value)
+                    return flag;
+
+            return INTERRUPTED;
         }
 
-        @Override
-        public String toString()
+        public int getValue()
         {
-            return getBytesValue() > 0
-                    ? String.valueOf(getBytesValue())
-                    : super.toString();
+            return value;
         }
     }
 
@@ -3,6 +3,7 @@ package com.genonbeta.TrebleShot.service;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
@@ -26,26 +27,39 @@ import com.genonbeta.TrebleShot.app.Service;
 import com.genonbeta.TrebleShot.config.AppConfig;
 import com.genonbeta.TrebleShot.config.Keyword;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
+import com.genonbeta.TrebleShot.database.DatabaseChangeBus;
 import com.genonbeta.TrebleShot.exception.AssigneeNotFoundException;
 import com.genonbeta.TrebleShot.exception.ConnectionNotFoundException;
 import com.genonbeta.TrebleShot.exception.DeviceNotFoundException;
 import com.genonbeta.TrebleShot.exception.TransferGroupNotFoundException;
 import com.genonbeta.TrebleShot.fragment.FileListFragment;
 import com.genonbeta.TrebleShot.object.NetworkDevice;
+import com.genonbeta.TrebleShot.object.ShowingAssignee;
 import com.genonbeta.TrebleShot.object.TextStreamObject;
 import com.genonbeta.TrebleShot.object.TransferGroup;
 import com.genonbeta.TrebleShot.object.TransferInstance;
 import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.util.AdaptiveBufferSize;
 import com.genonbeta.TrebleShot.util.AppUtils;
+import com.genonbeta.TrebleShot.util.BandwidthScheduler;
+import com.genonbeta.TrebleShot.util.ByteBufferPool;
 import com.genonbeta.TrebleShot.util.CommunicationBridge;
 import com.genonbeta.TrebleShot.util.CommunicationNotificationHelper;
 import com.genonbeta.TrebleShot.util.DynamicNotification;
 import com.genonbeta.TrebleShot.util.FileUtils;
+import com.genonbeta.TrebleShot.util.HeaderFrameCodec;
 import com.genonbeta.TrebleShot.util.HotspotUtils;
+import com.genonbeta.TrebleShot.util.IndexPager;
 import com.genonbeta.TrebleShot.util.NetworkDeviceLoader;
 import com.genonbeta.TrebleShot.util.NetworkUtils;
 import com.genonbeta.TrebleShot.util.NotificationUtils;
 import com.genonbeta.TrebleShot.util.NsdDiscovery;
+import com.genonbeta.TrebleShot.util.PendingTransferQueue;
+import com.genonbeta.TrebleShot.util.ProgressJournal;
+import com.genonbeta.TrebleShot.util.SeamlessSession;
+import com.genonbeta.TrebleShot.util.SessionReceiver;
+import com.genonbeta.TrebleShot.util.SessionSender;
+import com.genonbeta.TrebleShot.util.SharedReadPipeline;
 import com.genonbeta.TrebleShot.util.TimeUtils;
 import com.genonbeta.TrebleShot.util.TransferUtils;
 import com.genonbeta.TrebleShot.util.UpdateUtils;
@@ -68,9 +82,12 @@ import java.io.OutputStream;
 import java.io.StreamCorruptedException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeoutException;
@@ -106,6 +123,8 @@ public class CommunicationService extends Service
     public static final String ACTION_TOGGLE_WEBSHARE = "com.genonbeta.TrebleShot.transaction.action.TOGGLE_WEBSHARE";
     public static final String ACTION_WEBSHARE_STATUS = "com.genonbeta.TrebleShot.transaction.action.WEBSHARE_STATUS";
     public static final String ACTION_REQUEST_WEBSHARE_STATUS = "com.genonbeta.TrebleShot.transaction.action.REQUEST_WEBSHARE_STATUS";
+    public static final String ACTION_PIN_TRANSFER = "com.genonbeta.TrebleShot.transaction.action.PIN_TRANSFER";
+    public static final String ACTION_TRANSFER_PROGRESS = "com.genonbeta.TrebleShot.transaction.action.TRANSFER_PROGRESS";
 
     public static final String EXTRA_DEVICE_ID = "extraDeviceId";
     public static final String EXTRA_STATUS_STARTED = "extraStatusStarted";
@@ -124,6 +143,9 @@ public class CommunicationService extends Service
     public static final String EXTRA_TASK_LIST_RUNNING = "extraTaskListRunning";
     public static final String EXTRA_DEVICE_LIST_RUNNING = "extraDeviceListRunning";
     public static final String EXTRA_TOGGLE_WEBSHARE_START_ALWAYS = "extraToggleWebShareStartAlways";
+    public static final String EXTRA_BUFFER_LENGTH = "extraBufferLength";
+    public static final String EXTRA_SOCKET_BUFFER_LENGTH = "extraSocketBufferLength";
+    public static final String EXTRA_TRANSFER_RATE = "extraTransferRate";
 
     public static final int TASK_STATUS_ONGOING = 0;
     public static final int TASK_STATUS_STOPPED = 1;
@@ -133,14 +155,51 @@ public class CommunicationService extends Service
     private WebShareServer mWebShareServer = null;
     private SeamlessServer mSeamlessServer = new SeamlessServer();
     private Map<Long, Interrupter> mOngoingIndexList = new ArrayMap<>();
+    private IndexPager mIndexPager = new IndexPager(this);
+    private Map<Long, Set<String>> mGroupPeerList = new ArrayMap<>();
+    private final Map<Long, Map<String, Set<Long>>> mPinnedTransferList = new ArrayMap<>();
     private Receive mReceive = new Receive();
     private Send mSend = new Send();
     private ExecutorService mSelfExecutor = Executors.newFixedThreadPool(10);
+    private ByteBufferPool mBufferPool = new ByteBufferPool(AppConfig.BUFFER_LENGTH_DIRECT,
+            AppConfig.SESSION_LANE_COUNT_MAX * 2);
+    private SharedReadPipeline mReadPipeline = new SharedReadPipeline(AppConfig.FANOUT_BLOCK_LENGTH,
+            AppConfig.FANOUT_BLOCK_COUNT, AppConfig.FANOUT_WAIT_MAX);
+    private BandwidthScheduler mBandwidthScheduler = new BandwidthScheduler();
     private NsdDiscovery mNsdDiscovery;
     private CommunicationNotificationHelper mNotificationHelper;
     private WifiManager.WifiLock mWifiLock;
     private MediaScannerConnection mMediaScanner;
     private HotspotUtils mHotspotUtils;
+    private ProgressJournal.Listener mProgressListener = new ProgressJournal.Listener()
+    {
+        @Override
+        public void onProgress()
+        {
+            // The lists are in another process, which has a copy of the journal of its own
+            sendBroadcast(AppUtils.getProgressJournal().writeTo(new Intent(ACTION_TRANSFER_PROGRESS)));
+        }
+    };
+    private DatabaseChangeBus.Listener mDatabaseListener = new DatabaseChangeBus.Listener()
+    {
+        @Override
+        public void onDatabaseChange(DatabaseChangeBus.Change change)
+        {
+            // The files that are added or removed by something else can't be followed by the
+            // pending queues, which follow only what is changed by the service itself
+            if (AccessDatabase.TABLE_TRANSFER.equals(change.tableName)
+                    && (change.isType(AccessDatabase.TYPE_INSERT) || change.isType(AccessDatabase.TYPE_REMOVE))) {
+                synchronized (getActiveProcessList()) {
+                    for (ProcessHolder processHolder : getActiveProcessList())
+                        if (processHolder.pendingQueue != null && change.affectsGroup(processHolder.groupId))
+                            processHolder.pendingQueue.invalidate();
+                }
+            } else if ((AccessDatabase.TABLE_TRANSFERGROUP.equals(change.tableName)
+                    || AccessDatabase.TABLE_TRANSFERASSIGNEE.equals(change.tableName))
+                    && change.isType(AccessDatabase.TYPE_REMOVE))
+                prunePinnedTransferList(change);
+        }
+    };
 
     private boolean mDestroyApproved = false;
     private boolean mSeamlessMode = false;
@@ -171,6 +230,10 @@ public class CommunicationService extends Service
         mMediaScanner.connect();
         mNsdDiscovery.registerService();
 
+        getDatabase().getChangeBus().addListener(mDatabaseListener);
+        getDatabase().setProgressJournal(AppUtils.getProgressJournal());
+        AppUtils.getProgressJournal().addListener(mProgressListener);
+
         if (getWifiLock() != null)
             getWifiLock().acquire();
 
@@ -366,6 +429,9 @@ public class CommunicationService extends Service
                         } catch (IOException e) {
                             // do nothing
                         }
+
+                        if (processHolder.session != null)
+                            processHolder.session.close();
                     }
                 }
             } else if (ACTION_TOGGLE_SEAMLESS_MODE.equals(intent.getAction())) {
@@ -408,6 +474,18 @@ public class CommunicationService extends Service
                         : TASK_STATUS_ONGOING);
             } else if (ACTION_REQUEST_TASK_RUNNING_LIST_CHANGE.equals(intent.getAction())) {
                 notifyTaskRunningListChange();
+            } else if (ACTION_PIN_TRANSFER.equals(intent.getAction())
+                    && intent.hasExtra(EXTRA_GROUP_ID)
+                    && intent.hasExtra(EXTRA_DEVICE_ID)
+                    && intent.hasExtra(EXTRA_REQUEST_ID)) {
+                long requestId = intent.getLongExtra(EXTRA_REQUEST_ID, -1);
+                Set<Long> pinnedList = getPinnedTransferList(intent.getLongExtra(EXTRA_GROUP_ID, -1),
+                        intent.getStringExtra(EXTRA_DEVICE_ID));
+
+                // The queues look the pinned files up each time they are asked for the next file
+                synchronized (pinnedList) {
+                    pinnedList.add(requestId);
+                }
             } else if (ACTION_REVOKE_ACCESS_PIN.equals(intent.getAction())) {
                 revokePinAccess();
                 refreshServiceState();
@@ -432,6 +510,9 @@ public class CommunicationService extends Service
     {
         super.onDestroy();
 
+        getDatabase().getChangeBus().removeListener(mDatabaseListener);
+        getDatabase().setProgressJournal(null);
+        AppUtils.getProgressJournal().removeListener(mProgressListener);
         mCommunicationServer.stop();
         mSeamlessServer.stop();
         mMediaScanner.disconnect();
@@ -513,6 +594,16 @@ public class CommunicationService extends Service
         return mActiveProcessList;
     }
 
+    public BandwidthScheduler getBandwidthScheduler()
+    {
+        return mBandwidthScheduler;
+    }
+
+    public ByteBufferPool getBufferPool()
+    {
+        return mBufferPool;
+    }
+
     public HotspotUtils getHotspotUtils()
     {
         return mHotspotUtils;
@@ -528,6 +619,113 @@ public class CommunicationService extends Service
         return mOngoingIndexList;
     }
 
+    public SharedReadPipeline getReadPipeline()
+    {
+        return mReadPipeline;
+    }
+
+    /**
+     * The list is kept while the device is assigned to the group and no process of it has
+     * ended, since the pending queue of the device holds on to it.
+     *
+     * @return the request ids of the files of a group that should be received first from a
+     * device
+     */
+    private Set<Long> getPinnedTransferList(long groupId, String deviceId)
+    {
+        synchronized (mPinnedTransferList) {
+            Map<String, Set<Long>> deviceList = mPinnedTransferList.get(groupId);
+
+            if (deviceList == null) {
+                deviceList = new ArrayMap<>();
+                mPinnedTransferList.put(groupId, deviceList);
+            }
+
+            Set<Long> pinnedList = deviceList.get(deviceId);
+
+            if (pinnedList == null) {
+                pinnedList = new HashSet<>();
+                deviceList.put(deviceId, pinnedList);
+            }
+
+            return pinnedList;
+        }
+    }
+
+    /**
+     * Drops the pins of the devices that are not assigned to a group that has changed anymore,
+     * which is every device when the group itself has been removed.
+     */
+    private void prunePinnedTransferList(DatabaseChangeBus.Change change)
+    {
+        List<Long> groupList = new ArrayList<>();
+
+        synchronized (mPinnedTransferList) {
+            for (long groupId : mPinnedTransferList.keySet())
+                if (change.affectsGroup(groupId))
+                    groupList.add(groupId);
+        }
+
+        for (long groupId : groupList) {
+            Set<String> deviceList = new HashSet<>();
+
+            for (ShowingAssignee assignee : TransferUtils.loadAssigneeList(getDatabase(), groupId))
+                deviceList.add(assignee.deviceId);
+
+            synchronized (mPinnedTransferList) {
+                Map<String, Set<Long>> pinnedDeviceList = mPinnedTransferList.get(groupId);
+
+                if (pinnedDeviceList == null)
+                    continue;
+
+                pinnedDeviceList.keySet().retainAll(deviceList);
+
+                if (pinnedDeviceList.isEmpty())
+                    mPinnedTransferList.remove(groupId);
+            }
+        }
+    }
+
+    /**
+     * Drops the pins of a device once its process for the group has ended for good. They are
+     * kept when another process has taken over, as its pending queue looks at the same list.
+     */
+    private void unpinTransferList(long groupId, String deviceId)
+    {
+        if (findProcessById(groupId, deviceId) != null)
+            return;
+
+        synchronized (mPinnedTransferList) {
+            Map<String, Set<Long>> deviceList = mPinnedTransferList.get(groupId);
+
+            if (deviceList == null)
+                return;
+
+            deviceList.remove(deviceId);
+
+            if (deviceList.isEmpty())
+                mPinnedTransferList.remove(groupId);
+        }
+    }
+
+    /**
+     * Drops the pin of a file that has been received, so that it is not looked up anymore.
+     */
+    private void unpinTransfer(TransferObject transferObject)
+    {
+        Set<Long> pinnedList;
+
+        synchronized (mPinnedTransferList) {
+            Map<String, Set<Long>> deviceList = mPinnedTransferList.get(transferObject.groupId);
+            pinnedList = deviceList == null ? null : deviceList.get(transferObject.deviceId);
+        }
+
+        if (pinnedList != null)
+            synchronized (pinnedList) {
+                pinnedList.remove(transferObject.requestId);
+            }
+    }
+
     public ExecutorService getSelfExecutor()
     {
         return mSelfExecutor;
@@ -550,6 +748,22 @@ public class CommunicationService extends Service
                 .putExtra(EXTRA_GROUP_ID, groupId)
                 .putExtra(EXTRA_DEVICE_ID, deviceId);
 
+        ProcessHolder processHolder = state == TASK_STATUS_ONGOING
+                ? findProcessById(groupId, deviceId)
+                : null;
+
+        if (processHolder != null) {
+            if (processHolder.session != null)
+                intent.putExtra(EXTRA_BUFFER_LENGTH, processHolder.session.getBufferLength())
+                        .putExtra(EXTRA_SOCKET_BUFFER_LENGTH, processHolder.session.getSocketBufferLength());
+            else
+                intent.putExtra(EXTRA_BUFFER_LENGTH, processHolder.bufferSize.getLength())
+                        .putExtra(EXTRA_SOCKET_BUFFER_LENGTH, processHolder.bufferSize.getSocketLength());
+
+            if (processHolder.bandwidthFlow != null)
+                intent.putExtra(EXTRA_TRANSFER_RATE, processHolder.bandwidthFlow.getRate());
+        }
+
         sendBroadcast(intent);
     }
 
@@ -653,6 +867,7 @@ public class CommunicationService extends Service
 
     public void startFileReceiving(TransferInstance transferInstance)
     {
+        mIndexPager.resume(transferInstance);
         CoolSocket.connect(new SeamlessClientHandler(transferInstance));
     }
 
@@ -808,12 +1023,19 @@ public class CommunicationService extends Service
 
                         switch (responseJSON.getString(Keyword.REQUEST)) {
                             case (Keyword.REQUEST_TRANSFER):
-                                if (responseJSON.has(Keyword.FILES_INDEX) && responseJSON.has(Keyword.TRANSFER_GROUP_ID) && getOngoingIndexList().size() < 1) {
+                                if (responseJSON.has(Keyword.FILES_INDEX) && responseJSON.has(Keyword.TRANSFER_GROUP_ID)
+                                        && mIndexPager.startHandshake(responseJSON.getLong(Keyword.TRANSFER_GROUP_ID))) {
                                     final String jsonIndex = responseJSON.getString(Keyword.FILES_INDEX);
                                     final long groupId = responseJSON.getLong(Keyword.TRANSFER_GROUP_ID);
+                                    final boolean indexPaged = responseJSON.has(Keyword.INDEX_PAGED)
+                                            && responseJSON.getBoolean(Keyword.INDEX_PAGED);
 
                                     result = true;
 
+                                    // Senders that don't see this send the rest of the index on their own
+                                    if (indexPaged)
+                                        replyJSON.put(Keyword.INDEX_PAGED, true);
+
                                     getSelfExecutor().submit(new Runnable()
                                     {
                                         @Override
@@ -831,6 +1053,7 @@ public class CommunicationService extends Service
                                                 jsonArray = new JSONArray(jsonIndex);
                                             } catch (Exception e) {
                                                 notification.cancel();
+                                                mIndexPager.endHandshake(groupId);
                                                 e.printStackTrace();
                                                 return;
                                             }
@@ -847,6 +1070,9 @@ public class CommunicationService extends Service
 
                                             TransferObject transferObject = null;
 
+                                            // Stays marked until the last page is saved, so it can be asked for again
+                                            group.isIndexPartial = indexPaged;
+
                                             getDatabase().publish(group);
                                             getDatabase().publish(assignee);
 
@@ -855,36 +1081,20 @@ public class CommunicationService extends Service
                                             }
 
                                             long uniqueId = System.currentTimeMillis(); // The uniqueIds
+                                            long cursor = Long.MIN_VALUE;
                                             List<TransferObject> pendingRegistry = new ArrayList<>();
 
                                             for (int i = 0; i < jsonArray.length(); i++) {
                                                 if (interrupter.interrupted())
                                                     break;
 
-                                                try {
-                                                    if (!(jsonArray.get(i) instanceof JSONObject))
-                                                        continue;
-
-                                                    JSONObject requestIndex = jsonArray.getJSONObject(i);
-
-                                                    if (requestIndex != null && requestIndex.has(Keyword.INDEX_FILE_NAME) && requestIndex.has(Keyword.INDEX_FILE_SIZE) && requestIndex.has(Keyword.INDEX_FILE_MIME) && requestIndex.has(Keyword.TRANSFER_REQUEST_ID)) {
-                                                        transferObject = new TransferObject(
-                                                                requestIndex.getLong(Keyword.TRANSFER_REQUEST_ID),
-                                                                groupId,
-                                                                assignee.deviceId,
-                                                                requestIndex.getString(Keyword.INDEX_FILE_NAME),
-                                                                "." + (uniqueId++) + "." + AppConfig.EXT_FILE_PART,
-                                                                requestIndex.getString(Keyword.INDEX_FILE_MIME),
-                                                                requestIndex.getLong(Keyword.INDEX_FILE_SIZE),
-                                                                TransferObject.Type.INCOMING);
+                                                TransferObject indexObject = IndexPager.createIncomingObject(jsonArray.opt(i),
+                                                        assignee, uniqueId++);
 
-                                                        if (requestIndex.has(Keyword.INDEX_DIRECTORY))
-                                                            transferObject.directory = requestIndex.getString(Keyword.INDEX_DIRECTORY);
-
-                                                        pendingRegistry.add(transferObject);
-                                                    }
-                                                } catch (JSONException e) {
-                                                    e.printStackTrace();
+                                                if (indexObject != null) {
+                                                    transferObject = indexObject;
+                                                    cursor = Math.max(cursor, indexObject.requestId);
+                                                    pendingRegistry.add(indexObject);
                                                 }
                                             }
 
@@ -908,7 +1118,11 @@ public class CommunicationService extends Service
                                                 }
                                             };
 
-                                            if (pendingRegistry.size() > 0) {
+                                            boolean pageStarted = false;
+
+                                            if (!interrupter.interrupted() && pendingRegistry.size() > 0) {
+                                                pageStarted = true;
+
                                                 if (usePublishing)
                                                     getDatabase().publish(pendingRegistry, progressUpdater);
                                                 else
@@ -917,13 +1131,19 @@ public class CommunicationService extends Service
 
                                             notification.cancel();
 
-                                            synchronized (getOngoingIndexList()) {
-                                                getOngoingIndexList().remove(group.groupId);
-                                            }
-
-                                            if (interrupter.interrupted())
-                                                getDatabase().remove(group);
-                                            else if (transferObject != null && pendingRegistry.size() > 0) {
+                                            // The rest of the pages don't keep the other requests waiting
+                                            mIndexPager.endHandshake(groupId);
+
+                                            if (interrupter.interrupted()) {
+                                                // Only the page that was being saved is taken back. A new group has
+                                                // nothing else yet, so it goes with it.
+                                                if (!usePublishing)
+                                                    getDatabase().remove(group);
+                                                else if (pageStarted)
+                                                    getDatabase().remove(pendingRegistry);
+                                            } else if (transferObject != null && pendingRegistry.size() > 0) {
+                                                // When the index comes in pages, the files of the first one can
+                                                // already be received while the rest are still being saved.
                                                 sendBroadcast(new Intent(ACTION_INCOMING_TRANSFER_READY)
                                                         .putExtra(EXTRA_GROUP_ID, groupId)
                                                         .putExtra(EXTRA_DEVICE_ID, finalDevice.deviceId));
@@ -936,6 +1156,14 @@ public class CommunicationService extends Service
                                                     }
                                                 else
                                                     getNotificationHelper().notifyTransferRequest(transferObject, finalDevice, pendingRegistry.size());
+
+                                                if (indexPaged)
+                                                    mIndexPager.receivePages(assignee, finalDevice, connection, cursor,
+                                                            uniqueId, usePublishing, isSeamlessAvailable, interrupter);
+                                            }
+
+                                            synchronized (getOngoingIndexList()) {
+                                                getOngoingIndexList().remove(group.groupId);
                                             }
                                         }
                                     });
@@ -961,6 +1189,73 @@ public class CommunicationService extends Service
                                     }
                                 }
                                 break;
+                            case (Keyword.REQUEST_INDEX_PAGE):
+                                if (responseJSON.has(Keyword.TRANSFER_GROUP_ID)) {
+                                    long groupId = responseJSON.getLong(Keyword.TRANSFER_GROUP_ID);
+                                    long cursor = responseJSON.has(Keyword.INDEX_CURSOR)
+                                            ? responseJSON.getLong(Keyword.INDEX_CURSOR)
+                                            : Long.MIN_VALUE;
+
+                                    // A group that is still being filled has more files to come
+                                    TransferUtils.putIndexPage(getDatabase(), replyJSON, groupId,
+                                            device.deviceId, cursor);
+
+                                    result = true;
+                                }
+                                break;
+                            case (Keyword.REQUEST_GROUP_PEERS):
+                                if (responseJSON.has(Keyword.TRANSFER_GROUP_ID)) {
+                                    long groupId = responseJSON.getLong(Keyword.TRANSFER_GROUP_ID);
+
+                                    try {
+                                        // Only the devices that the group is sent to can know about each other
+                                        getDatabase().reconstruct(new TransferGroup.Assignee(groupId, device.deviceId));
+
+                                        JSONArray peersArray = new JSONArray();
+
+                                        for (ShowingAssignee peer : TransferUtils.loadAssigneeList(getDatabase(), groupId))
+                                            if (!device.deviceId.equals(peer.deviceId) && peer.connection.ipAddress != null)
+                                                peersArray.put(new JSONObject()
+                                                        .put(Keyword.TRANSFER_DEVICE_ID, peer.deviceId)
+                                                        .put(Keyword.NETWORK_ADDRESS_IP, peer.connection.ipAddress));
+
+                                        replyJSON.put(Keyword.TRANSFER_PEERS, peersArray);
+                                        result = true;
+                                    } catch (Exception e) {
+                                        replyJSON.put(Keyword.ERROR, Keyword.ERROR_NOT_FOUND);
+                                    }
+                                }
+                                break;
+                            case (Keyword.REQUEST_AVAILABILITY):
+                                if (responseJSON.has(Keyword.TRANSFER_GROUP_ID)) {
+                                    long groupId = responseJSON.getLong(Keyword.TRANSFER_GROUP_ID);
+
+                                    if (isGroupPeer(groupId, device.deviceId)) {
+                                        JSONArray availableArray = new JSONArray();
+
+                                        for (TransferObject transferObject : TransferUtils.fetchCompletedTransfers(getDatabase(), groupId))
+                                            availableArray.put(transferObject.requestId);
+
+                                        replyJSON.put(Keyword.TRANSFER_AVAILABLE, availableArray);
+                                        result = true;
+                                    } else
+                                        replyJSON.put(Keyword.ERROR, Keyword.ERROR_NOT_ALLOWED);
+                                }
+                                break;
+                            case (Keyword.REQUEST_PEER_FILE):
+                                if (responseJSON.has(Keyword.TRANSFER_GROUP_ID)
+                                        && responseJSON.has(Keyword.TRANSFER_REQUEST_ID)
+                                        && responseJSON.has(Keyword.TRANSFER_DEVICE_ID)
+                                        && responseJSON.has(Keyword.TRANSFER_SOCKET_PORT)) {
+                                    if (!isGroupPeer(responseJSON.getLong(Keyword.TRANSFER_GROUP_ID), device.deviceId))
+                                        replyJSON.put(Keyword.ERROR, Keyword.ERROR_NOT_ALLOWED);
+                                    else if (SessionSender.servePeerFile(CommunicationService.this, responseJSON,
+                                            activeConnection.getClientAddress()))
+                                        result = true;
+                                    else
+                                        replyJSON.put(Keyword.ERROR, Keyword.ERROR_NOT_FOUND);
+                                }
+                                break;
                             case (Keyword.REQUEST_CLIPBOARD):
                                 if (responseJSON.has(Keyword.TRANSFER_CLIPBOARD_TEXT)) {
                                     TextStreamObject textStreamObject = new TextStreamObject(AppUtils.getUniqueNumber(), responseJSON.getString(Keyword.TRANSFER_CLIPBOARD_TEXT));
@@ -1046,6 +1341,7 @@ public class CommunicationService extends Service
             processHolder.type = TransferObject.Type.OUTGOING;
             processHolder.builder = new CoolTransfer.Send.Builder<>();
             processHolder.builder.setExtra(processHolder);
+            processHolder.bandwidthFlow = registerBandwidthFlow(true);
 
             synchronized (getActiveProcessList()) {
                 getActiveProcessList().add(processHolder);
@@ -1059,6 +1355,12 @@ public class CommunicationService extends Service
                         ? mainRequestJSON.getString(Keyword.TRANSFER_DEVICE_ID)
                         : null;
                 int groupId = mainRequestJSON.getInt(Keyword.TRANSFER_GROUP_ID);
+                boolean sessionRequested = mainRequestJSON.has(Keyword.TRANSFER_SESSION)
+                        && mainRequestJSON.getBoolean(Keyword.TRANSFER_SESSION)
+                        && mainRequestJSON.has(Keyword.TRANSFER_SOCKET_PORT);
+                boolean binaryFraming = sessionRequested && mainRequestJSON.has(Keyword.TRANSFER_SESSION_FRAMING)
+                        && HeaderFrameCodec.FRAMING_BINARY.equals(mainRequestJSON.getString(Keyword.TRANSFER_SESSION_FRAMING));
+                int laneCount = 1;
 
                 activeConnection.setId(groupId);
 
@@ -1084,6 +1386,20 @@ public class CommunicationService extends Service
                         processHolder.deviceId = transferInstance.getAssignee().deviceId;
 
                         reply.put(Keyword.RESULT, true);
+
+                        if (sessionRequested) {
+                            // Older receivers don't say how many lanes they want and expect one
+                            laneCount = mainRequestJSON.has(Keyword.TRANSFER_SESSION_LANES)
+                                    ? Math.max(1, Math.min(AppConfig.SESSION_LANE_COUNT_MAX,
+                                    mainRequestJSON.getInt(Keyword.TRANSFER_SESSION_LANES)))
+                                    : 1;
+
+                            reply.put(Keyword.TRANSFER_SESSION, true)
+                                    .put(Keyword.TRANSFER_SESSION_LANES, laneCount);
+
+                            if (binaryFraming)
+                                reply.put(Keyword.TRANSFER_SESSION_FRAMING, HeaderFrameCodec.FRAMING_BINARY);
+                        }
                     } catch (TransferGroupNotFoundException e) {
                         reply.put(Keyword.ERROR, Keyword.ERROR_NOT_FOUND);
                         e.printStackTrace();
@@ -1106,6 +1422,12 @@ public class CommunicationService extends Service
                 notifyTaskStatusChange(processHolder.groupId, processHolder.deviceId, TASK_STATUS_ONGOING);
                 notifyTaskRunningListChange();
 
+                // With a session, the files are served over a separate connection and the control
+                // connection is only used to receive the final result below.
+                if (sessionRequested)
+                    new SessionSender(CommunicationService.this, processHolder).serve(activeConnection.getClientAddress(),
+                            mainRequestJSON.getInt(Keyword.TRANSFER_SOCKET_PORT), laneCount, binaryFraming);
+
                 while (activeConnection.getSocket() != null
                         && activeConnection.getSocket().isConnected()) {
                     processHolder.builder.reset();
@@ -1135,62 +1457,26 @@ public class CommunicationService extends Service
 
                                 return;
                             } else if (!processHolder.builder.getTransferProgress().isInterrupted()) {
-                                processHolder.transferObject = new TransferObject(
-                                        request.getInt(Keyword.TRANSFER_REQUEST_ID),
-                                        processHolder.deviceId,
-                                        processHolder.type);
+                                StreamInfo streamInfo = prepareOutgoingTransfer(processHolder, request, reply);
 
-                                getDatabase().reconstruct(processHolder.transferObject);
+                                if (streamInfo != null) {
+                                    processHolder.transferObject.accessPort = request.getInt(Keyword.TRANSFER_SOCKET_PORT);
 
-                                processHolder.transferObject.accessPort = request.getInt(Keyword.TRANSFER_SOCKET_PORT);
+                                    getNotificationHelper().notifyFileTransaction(processHolder);
+                                    Log.d(TAG, "SeamlessServer.onConnected(): Proceeding to send");
 
-                                if (request.has(Keyword.SKIPPED_BYTES)) {
-                                    processHolder.transferObject.skippedBytes = request.getLong(Keyword.SKIPPED_BYTES);
-                                    Log.d(TAG, "SeamlessServes.onConnected(): Has skipped bytes: " + processHolder.transferObject.skippedBytes);
+                                    sendBuilder.setServerIp(activeConnection.getClientAddress())
+                                            .setInputStream(processHolder.bandwidthFlow.wrap(streamInfo.openInputStream()))
+                                            .setPort(processHolder.transferObject.accessPort)
+                                            .setFileSize(streamInfo.size)
+                                            .setBuffer(processHolder.bufferSize.getBuffer())
+                                            .setExtra(processHolder);
                                 }
-
-                                // This changes the state of the object to pending from any other
-                                getDatabase().update(processHolder.transferObject);
-                                StreamInfo streamInfo = StreamInfo.getStreamInfo(getApplicationContext(), Uri.parse(processHolder.transferObject.file));
-
-                                reply.put(Keyword.RESULT, true);
-
-                                if (streamInfo.size >= 0
-                                        && streamInfo.size != processHolder.transferObject.fileSize) {
-                                    reply.put(Keyword.SIZE_CHANGED, streamInfo.size);
-                                    processHolder.transferObject.fileSize = streamInfo.size;
-                                }
-
-                                getNotificationHelper().notifyFileTransaction(processHolder);
-                                Log.d(TAG, "SeamlessServer.onConnected(): Proceeding to send");
-
-                                sendBuilder.setServerIp(activeConnection.getClientAddress())
-                                        .setInputStream(streamInfo.openInputStream())
-                                        .setPort(processHolder.transferObject.accessPort)
-                                        .setFileSize(streamInfo.size)
-                                        .setBuffer(new byte[AppConfig.BUFFER_LENGTH_DEFAULT])
-                                        .setExtra(processHolder);
                             } else if (processHolder.builder.getTransferProgress().isInterrupted()) {
                                 reply.put(Keyword.RESULT, false)
                                         .put(Keyword.TRANSFER_JOB_DONE, false);
                                 return;
                             }
-                        } catch (ReconstructionFailedException e) {
-                            reply.put(Keyword.RESULT, false);
-                            reply.put(Keyword.ERROR, Keyword.ERROR_NOT_FOUND);
-                            reply.put(Keyword.FLAG, Keyword.FLAG_GROUP_EXISTS);
-
-                            processHolder.transferObject.flag = TransferObject.Flag.REMOVED;
-                        } catch (FileNotFoundException | StreamCorruptedException | StreamInfo.FolderStateException e) {
-                            Log.d(TAG, "SeamlessServer.onConnected(): File is not accessible ? " + processHolder.transferObject.friendlyName);
-
-                            reply.put(Keyword.RESULT, false);
-                            reply.put(Keyword.ERROR, Keyword.ERROR_NOT_ACCESSIBLE);
-                            reply.put(Keyword.FLAG, Keyword.FLAG_GROUP_EXISTS);
-
-                            processHolder.transferObject.flag = TransferObject.Flag.INTERRUPTED;
-
-                            e.printStackTrace();
                         } catch (Exception e) {
                             Log.d(TAG, "SeamlessServer.onConnected(): Exception is handled: " + e.toString());
 
@@ -1215,7 +1501,7 @@ public class CommunicationService extends Service
                     // We are now updating instances always at the end because it will be
                     // changed by the process itself naturally.
                     if (processHolder.transferObject != null) {
-                        Log.d(TAG, "SeamlessServer.onConnected(): Updating file instances to " + processHolder.transferObject.flag.toString());
+                        Log.d(TAG, "SeamlessServer.onConnected(): Updating file instances to " + processHolder.transferObject.flag.name());
                         getDatabase().update(processHolder.transferObject);
                     }
 
@@ -1237,13 +1523,22 @@ public class CommunicationService extends Service
                     e.printStackTrace();
                 }
 
+                boolean failed = processHolder.session == null
+                        ? !CoolTransfer.Flag.CONTINUE.equals(processHolder.builder.getFlag())
+                        : !processHolder.session.isJobDone();
+
+                if (processHolder.session != null)
+                    processHolder.session.close();
+
                 if (transferInstance != null
-                        && !CoolTransfer.Flag.CONTINUE.equals(processHolder.builder.getFlag())
+                        && failed
                         && !processHolder.builder.getTransferProgress().isInterrupted())
                     mNotificationHelper.notifyConnectionError(transferInstance, TransferObject.Type.OUTGOING, null);
                 else if (processHolder.notification != null)
                     processHolder.notification.cancel();
 
+                mBandwidthScheduler.unregister(processHolder.bandwidthFlow);
+
                 synchronized (getActiveProcessList()) {
                     getActiveProcessList().remove(processHolder);
 
@@ -1256,6 +1551,214 @@ public class CommunicationService extends Service
         }
     }
 
+    /**
+     * Reads the request for a file and prepares the reply for it. When the file cannot be
+     * served, the reply carries the error and the flag of the file is changed accordingly.
+     *
+     * @param processHolder the process that the file belongs to
+     * @param request       the request that is sent by the receiver
+     * @param reply         the reply that will be sent to the receiver
+     * @return the info to read the file from or null if it is not accessible
+     * @throws JSONException when the request is malformed
+     */
+    public StreamInfo prepareOutgoingTransfer(ProcessHolder processHolder, JSONObject request,
+                                              JSONObject reply) throws JSONException
+    {
+        try {
+            processHolder.transferObject = new TransferObject(
+                    request.getInt(Keyword.TRANSFER_REQUEST_ID),
+                    processHolder.deviceId,
+                    processHolder.type);
+
+            getDatabase().reconstruct(processHolder.transferObject);
+
+            processHolder.transferObject.skippedBytes = 0;
+
+            if (request.has(Keyword.SKIPPED_BYTES)) {
+                processHolder.transferObject.skippedBytes = request.getLong(Keyword.SKIPPED_BYTES);
+                Log.d(TAG, "SeamlessServes.onConnected(): Has skipped bytes: " + processHolder.transferObject.skippedBytes);
+            }
+
+            // This changes the state of the object to pending from any other
+            getDatabase().update(processHolder.transferObject);
+            StreamInfo streamInfo = StreamInfo.getStreamInfo(getApplicationContext(), Uri.parse(processHolder.transferObject.file));
+
+            reply.put(Keyword.RESULT, true);
+
+            if (streamInfo.size >= 0
+                    && streamInfo.size != processHolder.transferObject.fileSize) {
+                reply.put(Keyword.SIZE_CHANGED, streamInfo.size);
+                processHolder.transferObject.fileSize = streamInfo.size;
+            }
+
+            return streamInfo;
+        } catch (ReconstructionFailedException e) {
+            reply.put(Keyword.RESULT, false);
+            reply.put(Keyword.ERROR, Keyword.ERROR_NOT_FOUND);
+            reply.put(Keyword.FLAG, Keyword.FLAG_GROUP_EXISTS);
+
+            processHolder.transferObject.flag = TransferObject.Flag.REMOVED;
+        } catch (FileNotFoundException | StreamCorruptedException | StreamInfo.FolderStateException e) {
+            Log.d(TAG, "SeamlessServer.onConnected(): File is not accessible ? " + processHolder.transferObject.friendlyName);
+
+            reply.put(Keyword.RESULT, false);
+            reply.put(Keyword.ERROR, Keyword.ERROR_NOT_ACCESSIBLE);
+            reply.put(Keyword.FLAG, Keyword.FLAG_GROUP_EXISTS);
+
+            processHolder.transferObject.flag = TransferObject.Flag.INTERRUPTED;
+
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Applies the error that the sender reported for a file to the file itself.
+     *
+     * @param transferObject the file that the sender could not serve
+     * @param response       the reply of the sender
+     * @throws JSONException when the reply is malformed
+     */
+    public void applySenderError(TransferObject transferObject, JSONObject response) throws JSONException
+    {
+        if (!response.has(Keyword.FLAG) || !Keyword.FLAG_GROUP_EXISTS.equals(response.getString(Keyword.FLAG)))
+            return;
+
+        if (response.has(Keyword.ERROR) && response.getString(Keyword.ERROR).equals(Keyword.ERROR_NOT_FOUND)) {
+            transferObject.flag = TransferObject.Flag.REMOVED;
+            Log.d(TAG, "Receive.onTaskPrepareSocket(): Sender says it does not have the file defined");
+        } else if (response.has(Keyword.ERROR) && response.getString(Keyword.ERROR).equals(Keyword.ERROR_NOT_ACCESSIBLE)) {
+            transferObject.flag = TransferObject.Flag.INTERRUPTED;
+            Log.d(TAG, "Receive.onTaskPrepareSocket(): Sender says it can't open the file");
+        } else if (response.has(Keyword.ERROR) && response.getString(Keyword.ERROR).equals(Keyword.ERROR_UNKNOWN)) {
+            transferObject.flag = TransferObject.Flag.INTERRUPTED;
+            Log.d(TAG, "Receive.onTaskPrepareSocket(): Sender says an unknown error occurred");
+        }
+    }
+
+    /**
+     * Checks whether the received file has the expected size, and if so, saves it with its
+     * actual name.
+     *
+     * @param processHolder the process that received the file
+     * @param fileSize      the size the file should have
+     * @return true if the file is complete
+     */
+    public boolean completeIncomingFile(ProcessHolder processHolder, long fileSize)
+    {
+        try {
+            processHolder.currentFile.sync();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        if (fileSize != processHolder.currentFile.length()) {
+            processHolder.transferObject.flag = TransferObject.Flag.INTERRUPTED;
+            return false;
+        }
+
+        processHolder.transferObject.flag = TransferObject.Flag.DONE;
+        unpinTransfer(processHolder.transferObject);
+
+        DocumentFile currentFile = processHolder.currentFile;
+
+        if (currentFile.getParentFile() != null)
+            try {
+                processHolder.currentFile = FileUtils.saveReceivedFile(currentFile.getParentFile(), currentFile, processHolder.transferObject);
+                processHolder.transferObject.file = processHolder.currentFile.getName();
+                Log.d(TAG, "Receive.onTransferCompleted(): Saved as: " + processHolder.currentFile.getName());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+        return true;
+    }
+
+    public void notifyIncomingFileChanged(ProcessHolder processHolder)
+    {
+        DocumentFile currentFile = processHolder.currentFile;
+
+        if (currentFile instanceof LocalDocumentFile && mMediaScanner.isConnected())
+            mMediaScanner.scanFile(((LocalDocumentFile) currentFile).getFile().getAbsolutePath(), processHolder.transferObject.fileMimeType);
+
+        if (currentFile.getParentFile() != null)
+            sendBroadcast(new Intent(FileListFragment.ACTION_FILE_LIST_CHANGED)
+                    .putExtra(FileListFragment.EXTRA_FILE_PARENT, currentFile.getParentFile().getUri())
+                    .putExtra(FileListFragment.EXTRA_FILE_NAME, currentFile.getName()));
+    }
+
+    /**
+     * Sets the priority of a process from the bytes that it has left, so the transfers that end
+     * soon are not held back by the large ones.
+     */
+    public void applyBandwidthPriority(ProcessHolder processHolder, long remainingByte)
+    {
+        if (processHolder.bandwidthFlow != null)
+            processHolder.bandwidthFlow.setPriority(remainingByte <= AppConfig.BANDWIDTH_INTERACTIVE_LENGTH_MAX
+                    ? BandwidthScheduler.Priority.INTERACTIVE
+                    : BandwidthScheduler.Priority.BULK);
+    }
+
+    /**
+     * @param key of the preference that has the limit in kilobytes
+     * @return the bytes that can be copied in a second, or 0 for no limit
+     */
+    private long getBandwidthLimit(String key)
+    {
+        try {
+            return Math.max(0, Long.valueOf(getDefaultPreferences().getString(key, "0")) * 1024);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Registers a process on the bandwidth scheduler with the limits that are set now.
+     *
+     * @param outgoing true if the process sends the files
+     */
+    public BandwidthScheduler.Flow registerBandwidthFlow(boolean outgoing)
+    {
+        mBandwidthScheduler.setLimits(getBandwidthLimit("bandwidth_limit"),
+                getBandwidthLimit("bandwidth_limit_incoming"),
+                getBandwidthLimit("bandwidth_limit_outgoing"));
+
+        return mBandwidthScheduler.register(outgoing);
+    }
+
+    /**
+     * @return true if the device is known to receive the same group as this device, which makes
+     * it a peer that can ask for the files that have been received
+     */
+    private boolean isGroupPeer(long groupId, String deviceId)
+    {
+        synchronized (mGroupPeerList) {
+            Set<String> peerList = mGroupPeerList.get(groupId);
+            return peerList != null && peerList.contains(deviceId);
+        }
+    }
+
+    /**
+     * @param peerList the devices that the sender says receive the same group
+     */
+    public void setGroupPeers(long groupId, Set<String> peerList)
+    {
+        synchronized (mGroupPeerList) {
+            mGroupPeerList.put(groupId, peerList);
+        }
+    }
+
+    private int getSessionLaneCount()
+    {
+        try {
+            return Math.max(1, Math.min(AppConfig.SESSION_LANE_COUNT_MAX,
+                    Integer.valueOf(getDefaultPreferences().getString("session_lanes", "2"))));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
     private class SeamlessClientHandler implements CoolSocket.Client.ConnectionHandler
     {
         private TransferInstance mTransfer;
@@ -1269,6 +1772,9 @@ public class CommunicationService extends Service
         public void onConnect(CoolSocket.Client client)
         {
             NetworkDevice thisDevice = AppUtils.getLocalDevice(CommunicationService.this);
+            ServerSocket sessionServer = null;
+            int laneCount = 1;
+            boolean binaryFraming = false;
             boolean retry = false;
 
             ProcessHolder processHolder = new ProcessHolder();
@@ -1278,6 +1784,11 @@ public class CommunicationService extends Service
             processHolder.deviceId = mTransfer.getAssignee().deviceId;
             processHolder.activeConnection = new CoolSocket.ActiveConnection(AppConfig.DEFAULT_SOCKET_TIMEOUT);
             processHolder.builder = new CoolTransfer.Receive.Builder<>();
+            processHolder.bandwidthFlow = registerBandwidthFlow(false);
+            processHolder.pendingQueue = new PendingTransferQueue(getDatabase(), processHolder.groupId,
+                    processHolder.deviceId, processHolder.type, getDefaultPreferences().getString("transfer_order",
+                    PendingTransferQueue.POLICY_NAME), getPinnedTransferList(processHolder.groupId,
+                    processHolder.deviceId));
 
             processHolder.builder.setExtra(processHolder);
 
@@ -1320,11 +1831,27 @@ public class CommunicationService extends Service
                 }
 
                 try {
-                    processHolder.activeConnection.reply(new JSONObject()
+                    JSONObject mainRequest = new JSONObject()
                             .put(Keyword.TRANSFER_GROUP_ID, processHolder.groupId)
-                            .put(Keyword.TRANSFER_DEVICE_ID, thisDevice.deviceId)
-                            .toString());
-                    Log.d(TAG, "SeamlessClientHandler.onConnect(): reply: empty");
+                            .put(Keyword.TRANSFER_DEVICE_ID, thisDevice.deviceId);
+
+                    try {
+                        // Peers that don't know about sessions will ignore this and the files
+                        // will be requested one by one the old way.
+                        // The accepted sockets will have channels to receive the files with
+                        sessionServer = ServerSocketChannel.open().socket();
+                        sessionServer.setReceiveBufferSize(AdaptiveBufferSize.SOCKET_LENGTH_MAX);
+                        sessionServer.bind(new InetSocketAddress(0));
+                        mainRequest.put(Keyword.TRANSFER_SESSION, true)
+                                .put(Keyword.TRANSFER_SESSION_LANES, getSessionLaneCount())
+                                .put(Keyword.TRANSFER_SESSION_FRAMING, HeaderFrameCodec.FRAMING_BINARY)
+                                .put(Keyword.TRANSFER_SOCKET_PORT, sessionServer.getLocalPort());
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+
+                    processHolder.activeConnection.reply(mainRequest.toString());
+                    Log.d(TAG, "SeamlessClientHandler.onConnect(): reply: " + mainRequest.toString());
 
                     CoolSocket.ActiveConnection.Response response = processHolder.activeConnection.receive();
                     JSONObject request = new JSONObject(response.response);
@@ -1339,7 +1866,7 @@ public class CommunicationService extends Service
 
                         if (Keyword.ERROR_NOT_FOUND.equals(errorCode)) {
                             ContentValues contentValues = new ContentValues();
-                            contentValues.put(AccessDatabase.FIELD_TRANSFER_FLAG, TransferObject.Flag.REMOVED.toString());
+                            contentValues.put(AccessDatabase.FIELD_TRANSFER_FLAG, TransferObject.Flag.REMOVED.getValue());
 
                             getDatabase().update(TransferUtils.createTransferSelection(
                                     processHolder.groupId,
@@ -1351,12 +1878,29 @@ public class CommunicationService extends Service
                         getNotificationHelper().notifyConnectionError(mTransfer, TransferObject.Type.INCOMING, errorCode);
                         return;
                     }
+
+                    if (sessionServer != null && (!request.has(Keyword.TRANSFER_SESSION)
+                            || !request.getBoolean(Keyword.TRANSFER_SESSION))) {
+                        sessionServer.close();
+                        sessionServer = null;
+                    } else if (sessionServer != null) {
+                        laneCount = request.has(Keyword.TRANSFER_SESSION_LANES)
+                                ? request.getInt(Keyword.TRANSFER_SESSION_LANES)
+                                : 1;
+
+                        // Senders that don't know the binary format leave it out and JSON is used
+                        binaryFraming = request.has(Keyword.TRANSFER_SESSION_FRAMING)
+                                && HeaderFrameCodec.FRAMING_BINARY.equals(request.getString(Keyword.TRANSFER_SESSION_FRAMING));
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
                     return;
                 }
 
-                {
+                if (sessionServer != null)
+                    retry = new SessionReceiver(CommunicationService.this, mTransfer, processHolder)
+                            .receive(sessionServer, laneCount, binaryFraming);
+                else {
                     while (processHolder.activeConnection.getSocket() != null
                             && processHolder.activeConnection.getSocket().isConnected()) {
                         processHolder.builder.reset();
@@ -1367,11 +1911,7 @@ public class CommunicationService extends Service
                             break;
 
                         try {
-                            TransferObject firstAvailableTransfer = TransferUtils
-                                    .fetchValidTransfer(CommunicationService.this,
-                                            processHolder.groupId,
-                                            processHolder.deviceId,
-                                            processHolder.type);
+                            TransferObject firstAvailableTransfer = processHolder.pendingQueue.poll(null);
 
                             if (firstAvailableTransfer == null) {
                                 Log.d(TAG, "SeamlessClientHandler(): Exiting because there is no pending file instance left");
@@ -1380,17 +1920,28 @@ public class CommunicationService extends Service
 
                             processHolder.transferObject = firstAvailableTransfer;
                             processHolder.currentFile = FileUtils.getIncomingTransactionFile(getApplicationContext(), processHolder.transferObject, mTransfer.getGroup());
+
+                            // A striped file may have gaps, so its length can't be used to resume it
+                            if (processHolder.transferObject.ranges != null) {
+                                processHolder.currentFile.delete();
+                                processHolder.transferObject.ranges = null;
+                                processHolder.currentFile = FileUtils.getIncomingTransactionFile(getApplicationContext(), processHolder.transferObject, mTransfer.getGroup());
+                            }
                             StreamInfo streamInfo = StreamInfo.getStreamInfo(getApplicationContext(), processHolder.currentFile.getUri());
 
                             getNotificationHelper().notifyFileTransaction(processHolder);
 
                             {
                                 Receive.Builder<ProcessHolder> receiveBuilder = (Receive.Builder<ProcessHolder>) processHolder.builder;
+                                ServerSocket fileServer = new ServerSocket();
 
-                                receiveBuilder.setOutputStream(streamInfo.openOutputStream())
-                                        .setServerSocket(new ServerSocket(0))
+                                fileServer.setReceiveBufferSize(AdaptiveBufferSize.SOCKET_LENGTH_MAX);
+                                fileServer.bind(new InetSocketAddress(0));
+
+                                receiveBuilder.setOutputStream(processHolder.bandwidthFlow.wrap(streamInfo.openOutputStream()))
+                                        .setServerSocket(fileServer)
                                         .setTimeout(AppConfig.DEFAULT_SOCKET_TIMEOUT)
-                                        .setBuffer(new byte[AppConfig.BUFFER_LENGTH_DEFAULT])
+                                        .setBuffer(processHolder.bufferSize.getBuffer())
                                         .setFileSize(processHolder.transferObject.fileSize)
                                         .setExtra(processHolder);
 
@@ -1423,18 +1974,8 @@ public class CommunicationService extends Service
                                             handler.getTransferProgress().interrupt();
                                             Log.d(TAG, "Receive.onTaskPrepareSocket(): Transfer should be closed, babe!");
                                             break;
-                                        } else if (response.has(Keyword.FLAG) && Keyword.FLAG_GROUP_EXISTS.equals(response.getString(Keyword.FLAG))) {
-                                            if (response.has(Keyword.ERROR) && response.getString(Keyword.ERROR).equals(Keyword.ERROR_NOT_FOUND)) {
-                                                handler.getExtra().transferObject.flag = TransferObject.Flag.REMOVED;
-                                                Log.d(TAG, "Receive.onTaskPrepareSocket(): Sender says it does not have the file defined");
-                                            } else if (response.has(Keyword.ERROR) && response.getString(Keyword.ERROR).equals(Keyword.ERROR_NOT_ACCESSIBLE)) {
-                                                handler.getExtra().transferObject.flag = TransferObject.Flag.INTERRUPTED;
-                                                Log.d(TAG, "Receive.onTaskPrepareSocket(): Sender says it can't open the file");
-                                            } else if (response.has(Keyword.ERROR) && response.getString(Keyword.ERROR).equals(Keyword.ERROR_UNKNOWN)) {
-                                                handler.getExtra().transferObject.flag = TransferObject.Flag.INTERRUPTED;
-                                                Log.d(TAG, "Receive.onTaskPrepareSocket(): Sender says an unknown error occurred");
-                                            }
-                                        }
+                                        } else
+                                            applySenderError(handler.getExtra().transferObject, response);
                                     } else {
                                         long sizeChanged = response.has(Keyword.SIZE_CHANGED)
                                                 ? response.getLong(Keyword.SIZE_CHANGED)
@@ -1472,7 +2013,7 @@ public class CommunicationService extends Service
                             if (processHolder.transferObject != null) {
                                 // We are now updating instances always at the end because it will be
                                 // changed by the process itself naturally
-                                Log.d(TAG, "SeamlessClientHandler.onConnect(): Updating file instances to " + processHolder.transferObject.flag.toString());
+                                Log.d(TAG, "SeamlessClientHandler.onConnect(): Updating file instances to " + processHolder.transferObject.flag.name());
                                 getDatabase().update(processHolder.transferObject);
                             }
                         }
@@ -1482,7 +2023,9 @@ public class CommunicationService extends Service
                 // Check if all the pending files are flagged with Flag.DONE
                 try {
                     DocumentFile savePath = FileUtils.getSavePath(getApplicationContext(), mTransfer.getGroup());
-                    boolean isJobDone = CoolTransfer.Flag.CONTINUE.equals(processHolder.builder.getFlag());
+                    boolean isJobDone = processHolder.session == null
+                            ? CoolTransfer.Flag.CONTINUE.equals(processHolder.builder.getFlag())
+                            : processHolder.session.isJobDone();
                     boolean hasLeftFiles = getDatabase().getFirstFromTable(TransferUtils.createTransferSelection(
                             processHolder.groupId,
                             processHolder.deviceId,
@@ -1524,6 +2067,15 @@ public class CommunicationService extends Service
                     e.printStackTrace();
                 }
 
+                try {
+                    if (sessionServer != null && !sessionServer.isClosed())
+                        sessionServer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                mBandwidthScheduler.unregister(processHolder.bandwidthFlow);
+
                 synchronized (getActiveProcessList()) {
                     getActiveProcessList().remove(processHolder);
                 }
@@ -1541,7 +2093,8 @@ public class CommunicationService extends Service
                     } catch (Exception e) {
                         Log.d(TAG, "SeamlessClientHandler.onConnect(): Restart is requested, but transfer instance failed to reconstruct");
                     }
-                }
+                } else
+                    unpinTransferList(processHolder.groupId, processHolder.deviceId);
             }
         }
     }
@@ -1578,9 +2131,11 @@ public class CommunicationService extends Service
             handler.getExtra().notification.updateProgress(100, percentage, false);
 
             handler.getExtra().transferObject.flag = TransferObject.Flag.IN_PROGRESS;
-            handler.getExtra().transferObject.flag.setBytesValue(handler.getTransferProgress().getCurrentTransferredByte());
+            handler.getExtra().transferObject.progressBytes = handler.getTransferProgress().getCurrentTransferredByte();
 
-            getDatabase().update(handler.getExtra().transferObject);
+            if (AppUtils.getProgressJournal().record(handler.getExtra().transferObject,
+                    handler.getTransferProgress().getCurrentTransferredByte()))
+                getDatabase().update(handler.getExtra().transferObject);
 
             // We have transferred bytes now, so reset the counter; cuz it works
             handler.getExtra().attemptsLeft = 2;
@@ -1589,28 +2144,12 @@ public class CommunicationService extends Service
         @Override
         public void onTaskEnd(TransferHandler<ProcessHolder> handler)
         {
-            try {
-                handler.getExtra().currentFile.sync();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-
-            if (handler.getFileSize() == handler.getExtra().currentFile.length()) {
-                handler.getExtra().transferObject.flag = TransferObject.Flag.DONE;
-                DocumentFile currentFile = handler.getExtra().currentFile;
+            // The buffer of a file is picked when it starts, so the next file gets the new size
+            handler.getExtra().bufferSize.onTransferred(handler.getFileSize()
+                    - handler.getExtra().transferObject.skippedBytes);
 
-                if (currentFile.getParentFile() != null)
-                    try {
-                        handler.getExtra().currentFile = FileUtils.saveReceivedFile(currentFile.getParentFile(), currentFile, handler.getExtra().transferObject);
-                        handler.getExtra().transferObject.file = handler.getExtra().currentFile.getName();
-                        Log.d(TAG, "Receive.onTransferCompleted(): Saved as: " + handler.getExtra().currentFile.getName());
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-            } else {
-                handler.getExtra().transferObject.flag = TransferObject.Flag.INTERRUPTED;
+            if (!completeIncomingFile(handler.getExtra(), handler.getFileSize()))
                 handler.setFlag(Flag.CANCEL_CURRENT);
-            }
         }
 
         @Override
@@ -1632,8 +2171,10 @@ public class CommunicationService extends Service
                 TransferGroup.Index indexInstance = new TransferGroup.Index();
 
                 getDatabase().calculateTransactionSize(handler.getExtra().transferObject.groupId, indexInstance);
+                AppUtils.getProgressJournal().addUnsavedByte(handler.getExtra().transferObject.groupId, indexInstance);
 
                 handler.getTransferProgress().setTotalByte(indexInstance.incoming - indexInstance.incomingCompleted);
+                applyBandwidthPriority(handler.getExtra(), indexInstance.incoming - indexInstance.incomingCompleted);
             }
 
             return Flag.CONTINUE;
@@ -1658,17 +2199,8 @@ public class CommunicationService extends Service
         {
             super.onProcessListChanged(processList, handler, isAdded);
 
-            if (!isAdded) {
-                DocumentFile currentFile = handler.getExtra().currentFile;
-
-                if (currentFile instanceof LocalDocumentFile && mMediaScanner.isConnected())
-                    mMediaScanner.scanFile(((LocalDocumentFile) currentFile).getFile().getAbsolutePath(), handler.getExtra().transferObject.fileMimeType);
-
-                if (currentFile.getParentFile() != null)
-                    sendBroadcast(new Intent(FileListFragment.ACTION_FILE_LIST_CHANGED)
-                            .putExtra(FileListFragment.EXTRA_FILE_PARENT, currentFile.getParentFile().getUri())
-                            .putExtra(FileListFragment.EXTRA_FILE_NAME, currentFile.getName()));
-            }
+            if (!isAdded)
+                notifyIncomingFileChanged(handler.getExtra());
         }
     }
 
@@ -1692,14 +2224,19 @@ public class CommunicationService extends Service
             handler.getExtra().notification.updateProgress(100, percentage, false);
 
             handler.getExtra().transferObject.flag = TransferObject.Flag.IN_PROGRESS;
-            handler.getExtra().transferObject.flag.setBytesValue(handler.getTransferProgress().getCurrentTransferredByte());
+            handler.getExtra().transferObject.progressBytes = handler.getTransferProgress().getCurrentTransferredByte();
 
-            getDatabase().update(handler.getExtra().transferObject);
+            if (AppUtils.getProgressJournal().record(handler.getExtra().transferObject,
+                    handler.getTransferProgress().getCurrentTransferredByte()))
+                getDatabase().update(handler.getExtra().transferObject);
         }
 
         @Override
         public void onTaskEnd(TransferHandler<ProcessHolder> handler)
         {
+            handler.getExtra().bufferSize.onTransferred(handler.getFileSize()
+                    - handler.getExtra().transferObject.skippedBytes);
+
             handler.getExtra().transferObject.flag = handler.getTransferProgress().getCurrentTransferredByte() == handler.getFileSize()
                     ? TransferObject.Flag.DONE
                     : TransferObject.Flag.INTERRUPTED;
@@ -1726,7 +2263,9 @@ public class CommunicationService extends Service
                 TransferGroup.Index indexInstance = new TransferGroup.Index();
 
                 getDatabase().calculateTransactionSize(handler.getExtra().transferObject.groupId, indexInstance);
+                AppUtils.getProgressJournal().addUnsavedByte(handler.getExtra().transferObject.groupId, indexInstance);
                 handler.getTransferProgress().setTotalByte(indexInstance.outgoing - indexInstance.outgoingCompleted);
+                applyBandwidthPriority(handler.getExtra(), indexInstance.outgoing - indexInstance.outgoingCompleted);
             }
 
             return Flag.CONTINUE;
@@ -1757,10 +2296,38 @@ public class CommunicationService extends Service
         public DynamicNotification notification;
         public TransferObject transferObject;
         public DocumentFile currentFile;
+        public SeamlessSession session;
+        public SeamlessSession.Lane lane;
+        public BandwidthScheduler.Flow bandwidthFlow;
+        public PendingTransferQueue pendingQueue;
+        public AdaptiveBufferSize bufferSize = new AdaptiveBufferSize(AppConfig.BUFFER_LENGTH_DEFAULT,
+                AppConfig.BUFFER_LENGTH_DIRECT);
         public TransferObject.Type type;
         public String deviceId;
         public boolean recoverInterruptions = false;
         public long groupId;
         public int attemptsLeft = 2;
+
+        /**
+         * @param lane of the session that the returned holder will be working on
+         * @return a holder that shares everything but the current file with this one
+         */
+        public ProcessHolder createLane(SeamlessSession.Lane lane)
+        {
+            ProcessHolder laneHolder = new ProcessHolder();
+
+            laneHolder.builder = builder;
+            laneHolder.activeConnection = activeConnection;
+            laneHolder.notification = notification;
+            laneHolder.session = session;
+            laneHolder.lane = lane;
+            laneHolder.bandwidthFlow = bandwidthFlow;
+            laneHolder.pendingQueue = pendingQueue;
+            laneHolder.type = type;
+            laneHolder.deviceId = deviceId;
+            laneHolder.groupId = groupId;
+
+            return laneHolder;
+        }
     }
 }
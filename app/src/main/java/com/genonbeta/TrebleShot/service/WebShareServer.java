@@ -19,6 +19,7 @@ import com.genonbeta.TrebleShot.config.AppConfig;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
 import com.genonbeta.TrebleShot.object.TransferGroup;
 import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.util.AdaptiveBufferSize;
 import com.genonbeta.TrebleShot.util.AppUtils;
 import com.genonbeta.TrebleShot.util.CommunicationNotificationHelper;
 import com.genonbeta.TrebleShot.util.DynamicNotification;
@@ -64,6 +65,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import androidx.annotation.StringRes;
+import androidx.collection.ArrayMap;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
@@ -156,16 +158,18 @@ public class WebShareServer extends NanoHTTPD
                         if (inputStream == null || outputStream == null)
                             throw new IOException("Failed to open streams to start copying");
 
-                        byte[] buffer = new byte[AppConfig.BUFFER_LENGTH_DEFAULT];
+                        AdaptiveBufferSize bufferSize = new AdaptiveBufferSize(AppConfig.BUFFER_LENGTH_DEFAULT,
+                                AppConfig.BUFFER_LENGTH_DIRECT);
+                        byte[] buffer;
                         int len = 0;
                         long lastRead = System.currentTimeMillis();
                         long lastNotified = 0;
                         long totalRead = 0;
 
                         while (len != -1) {
-                            if ((len = inputStream.read(buffer)) > 0) {
+                            if ((len = inputStream.read(buffer = bufferSize.getBuffer(), 0, bufferSize.getLength())) > 0) {
                                 outputStream.write(buffer, 0, len);
-                                outputStream.flush();
+                                bufferSize.onTransferred(len);
                                 lastRead = System.currentTimeMillis();
                                 totalRead += len;
                             }
@@ -182,6 +186,7 @@ public class WebShareServer extends NanoHTTPD
                                 throw new Exception("Timed out or interrupted. Exiting!");
                         }
 
+                        outputStream.flush();
                         outputStream.close();
                         inputStream.close();
                     } catch (Exception e) {
@@ -383,12 +388,20 @@ public class WebShareServer extends NanoHTTPD
                         .setOrderBy(AccessDatabase.FIELD_TRANSFERGROUP_DATECREATED + " DESC"),
                 TransferGroup.class);
 
+        Map<Long, TransferGroup.Index> indexMap = new ArrayMap<>();
+
+        for (TransferGroup group : groupList)
+            if (group.isServedOnWeb)
+                indexMap.put(group.groupId, new TransferGroup.Index());
+
+        AppUtils.getDatabase(mContext).calculateTransactionSize(indexMap);
+        AppUtils.getProgressJournal().addUnsavedByte(indexMap);
+
         for (TransferGroup group : groupList) {
             if (!group.isServedOnWeb)
                 continue;
 
-            TransferGroup.Index index = new TransferGroup.Index();
-            AppUtils.getDatabase(mContext).calculateTransactionSize(group.groupId, index);
+            TransferGroup.Index index = indexMap.get(group.groupId);
 
             if (index.outgoingCount < 1)
                 continue;
@@ -11,6 +11,7 @@ import com.genonbeta.CoolSocket.CoolSocket;
 import com.genonbeta.TrebleShot.R;
 import com.genonbeta.TrebleShot.activity.AddDevicesToTransferActivity;
 import com.genonbeta.TrebleShot.adapter.NetworkDeviceListAdapter;
+import com.genonbeta.TrebleShot.config.AppConfig;
 import com.genonbeta.TrebleShot.config.Keyword;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
 import com.genonbeta.TrebleShot.object.NetworkDevice;
@@ -20,6 +21,7 @@ import com.genonbeta.TrebleShot.service.WorkerService;
 import com.genonbeta.TrebleShot.ui.UIConnectionUtils;
 import com.genonbeta.TrebleShot.util.AppUtils;
 import com.genonbeta.TrebleShot.util.CommunicationBridge;
+import com.genonbeta.TrebleShot.util.TransferUtils;
 import com.genonbeta.android.database.SQLQuery;
 import com.genonbeta.android.database.SQLiteDatabase;
 import com.genonbeta.android.framework.util.Interrupter;
@@ -70,11 +72,19 @@ public class AddDeviceRunningTask extends WorkerService.RunningTask<AddDevicesTo
                     {
                         client.setDevice(mDevice);
 
+                        // The assignee that is saved before the receiver answers, which should be
+                        // removed unless the receiver accepts.
+                        TransferGroup.Assignee unconfirmedAssignee = null;
+
                         try {
                             boolean doPublish = false;
                             final JSONObject jsonRequest = new JSONObject();
                             final TransferGroup.Assignee assignee = new TransferGroup.Assignee(mGroup, mDevice, mConnection);
                             final List<TransferObject> pendingRegistry = new ArrayList<>();
+                            // Read before the files, so the ones that are saved in the meantime
+                            // are asked for in pages instead of being left out
+                            final boolean groupIndexing = TransferUtils.isIndexPartial(
+                                    AppUtils.getDatabase(context), mGroup.groupId);
 
                             final List<TransferObject> existingRegistry =
                                     new ArrayList<>(AppUtils.getDatabase(context).castQuery(
@@ -82,7 +92,8 @@ public class AddDeviceRunningTask extends WorkerService.RunningTask<AddDevicesTo
                                                     .setWhere(AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
                                                                     + AccessDatabase.FIELD_TRANSFER_TYPE + "=?",
                                                             String.valueOf(mGroup.groupId),
-                                                            TransferObject.Type.OUTGOING.toString()), TransferObject.class));
+                                                            TransferObject.Type.OUTGOING.toString())
+                                                    .setOrderBy(AccessDatabase.FIELD_TRANSFER_ID + " ASC"), TransferObject.class));
                             final SQLiteDatabase.ProgressUpdater progressUpdater = new SQLiteDatabase.ProgressUpdater()
                             {
                                 @Override
@@ -119,32 +130,30 @@ public class AddDeviceRunningTask extends WorkerService.RunningTask<AddDevicesTo
                             if (existingRegistry.size() == 0)
                                 throw new Exception("Empty share holder id: " + mGroup.groupId);
 
+                            // Receivers that know about pages get only the first page with the request
+                            // and ask for the rest themselves, so the whole index is never held as a
+                            // single string on either side. A group that is still being filled is
+                            // always sent in pages, so that the receiver keeps asking for the new files.
+                            // The receiver says in its reply whether it will ask for them.
+                            final boolean pagedIndex = groupIndexing || existingRegistry.size() > AppConfig.INDEX_PAGE_LENGTH;
                             JSONArray filesArray = new JSONArray();
+                            long pageCursor = Long.MIN_VALUE;
 
                             for (TransferObject transferObject : existingRegistry) {
                                 publishStatusText(transferObject.friendlyName);
 
-                                TransferObject copyObject = new TransferObject(AccessDatabase.convertValues(transferObject.getValues()));
-
                                 if (getInterrupter().interrupted())
                                     throw new InterruptedException("Interrupted by user");
 
-                                copyObject.deviceId = assignee.deviceId; // We will clone the file index with new deviceId
-                                copyObject.flag = TransferObject.Flag.PENDING;
-                                copyObject.accessPort = 0;
-                                copyObject.skippedBytes = 0;
-                                JSONObject thisJson = new JSONObject();
+                                // We will clone the file index with new deviceId
+                                TransferObject copyObject = TransferUtils.createAssigneeCopy(transferObject, assignee.deviceId);
 
                                 try {
-                                    thisJson.put(Keyword.INDEX_FILE_NAME, copyObject.friendlyName);
-                                    thisJson.put(Keyword.INDEX_FILE_SIZE, copyObject.fileSize);
-                                    thisJson.put(Keyword.TRANSFER_REQUEST_ID, copyObject.requestId);
-                                    thisJson.put(Keyword.INDEX_FILE_MIME, copyObject.fileMimeType);
-
-                                    if (copyObject.directory != null)
-                                        thisJson.put(Keyword.INDEX_DIRECTORY, copyObject.directory);
+                                    if (!pagedIndex || filesArray.length() < AppConfig.INDEX_PAGE_LENGTH) {
+                                        filesArray.put(TransferUtils.createIndexEntry(copyObject));
+                                        pageCursor = copyObject.requestId;
+                                    }
 
-                                    filesArray.put(thisJson);
                                     pendingRegistry.add(copyObject);
                                 } catch (Exception e) {
                                     Log.e(AddDevicesToTransferActivity.TAG, "Sender error on fileUri: " + e.getClass().getName() + " : " + copyObject.friendlyName);
@@ -154,6 +163,30 @@ public class AddDeviceRunningTask extends WorkerService.RunningTask<AddDevicesTo
                             // so that if the user rejects, it won't be removed from the sender
                             jsonRequest.put(Keyword.FILES_INDEX, filesArray.toString());
 
+                            if (pagedIndex) {
+                                jsonRequest.put(Keyword.INDEX_PAGED, true);
+
+                                // The rest of the pages are read from the database when they are asked for
+                                publishStatusText(context.getString(R.string.mesg_organizingFiles));
+                                saveRegistry(context, assignee, pendingRegistry, doPublish, progressUpdater);
+
+                                // The share may have added files after the registry was read. The ones
+                                // that come after this are given to the assignee by the share itself.
+                                if (groupIndexing) {
+                                    List<TransferObject> lateRegistry = new ArrayList<>();
+
+                                    for (TransferObject lateObject : TransferUtils.fetchUnassignedTransfers(
+                                            AppUtils.getDatabase(context), mGroup.groupId,
+                                            existingRegistry.get(existingRegistry.size() - 1).requestId))
+                                        lateRegistry.add(TransferUtils.createAssigneeCopy(lateObject, assignee.deviceId));
+
+                                    AppUtils.getDatabase(context).publish(lateRegistry, progressUpdater);
+                                }
+
+                                if (!doPublish)
+                                    unconfirmedAssignee = assignee;
+                            }
+
                             getInterrupter().addCloser(new Interrupter.Closer()
                             {
                                 @Override
@@ -186,17 +219,14 @@ public class AddDeviceRunningTask extends WorkerService.RunningTask<AddDevicesTo
                             JSONObject clientResponse = new JSONObject(response.response);
 
                             if (clientResponse.has(Keyword.RESULT) && clientResponse.getBoolean(Keyword.RESULT)) {
-                                publishStatusText(context.getString(R.string.mesg_organizingFiles));
-
-                                if (doPublish)
-                                    AppUtils.getDatabase(context).publish(assignee);
-                                else
-                                    AppUtils.getDatabase(context).insert(assignee);
+                                unconfirmedAssignee = null;
 
-                                if (doPublish)
-                                    AppUtils.getDatabase(context).publish(pendingRegistry, progressUpdater);
-                                else
-                                    AppUtils.getDatabase(context).insert(pendingRegistry, progressUpdater);
+                                if (!pagedIndex) {
+                                    publishStatusText(context.getString(R.string.mesg_organizingFiles));
+                                    saveRegistry(context, assignee, pendingRegistry, doPublish, progressUpdater);
+                                } else if (!clientResponse.has(Keyword.INDEX_PAGED)
+                                        || !clientResponse.getBoolean(Keyword.INDEX_PAGED))
+                                    sendRemainingIndex(client, context, assignee, pageCursor);
 
                                 if (getAnchorListener() != null) {
                                     getAnchorListener().setResult(RESULT_OK, new Intent()
@@ -230,6 +260,9 @@ public class AddDeviceRunningTask extends WorkerService.RunningTask<AddDevicesTo
                                     });
                             }
                         } finally {
+                            if (unconfirmedAssignee != null)
+                                AppUtils.getDatabase(context).remove(unconfirmedAssignee);
+
                             if (getAnchorListener() != null)
                                 getAnchorListener().runOnUiThread(new Runnable()
                                 {
@@ -243,4 +276,73 @@ public class AddDeviceRunningTask extends WorkerService.RunningTask<AddDevicesTo
                     }
                 });
     }
+
+    /**
+     * Receivers that don't confirm the paged index keep only the first page, so the files that
+     * come after it are sent to them in another request as a single index, which is what they
+     * expect. Such a receiver can't be told about the files that a share adds later, so the
+     * index is sent only after the share has found all of them.
+     *
+     * @param cursor the last request id of the page that the receiver has
+     */
+    private void sendRemainingIndex(CommunicationBridge.Client client, Context context,
+                                    TransferGroup.Assignee assignee, long cursor) throws Exception
+    {
+        JSONArray filesArray = new JSONArray();
+        List<TransferObject> indexPage;
+
+        publishStatusText(context.getString(R.string.mesg_organizingFiles));
+
+        while (TransferUtils.isIndexPartial(AppUtils.getDatabase(context), assignee.groupId)) {
+            if (getInterrupter().interrupted())
+                throw new InterruptedException("Interrupted by user");
+
+            Thread.sleep(AppConfig.INDEX_PAGE_POLL_INTERVAL);
+        }
+
+        do {
+            indexPage = TransferUtils.fetchIndexPage(AppUtils.getDatabase(context), assignee.groupId,
+                    assignee.deviceId, cursor, AppConfig.INDEX_PAGE_LENGTH);
+
+            for (TransferObject indexObject : indexPage) {
+                filesArray.put(TransferUtils.createIndexEntry(indexObject));
+                cursor = indexObject.requestId;
+            }
+        } while (indexPage.size() >= AppConfig.INDEX_PAGE_LENGTH);
+
+        if (filesArray.length() == 0)
+            return;
+
+        CoolSocket.ActiveConnection activeConnection = client.communicate(mDevice, mConnection);
+
+        try {
+            activeConnection.reply(new JSONObject()
+                    .put(Keyword.REQUEST, Keyword.REQUEST_TRANSFER)
+                    .put(Keyword.TRANSFER_GROUP_ID, assignee.groupId)
+                    .put(Keyword.FILES_INDEX, filesArray.toString())
+                    .toString());
+
+            JSONObject response = new JSONObject(activeConnection.receive().response);
+
+            if (!response.has(Keyword.RESULT) || !response.getBoolean(Keyword.RESULT))
+                throw new CommunicationBridge.CommunicationException("The receiver refused the rest of the index");
+        } finally {
+            activeConnection.getSocket().close();
+        }
+    }
+
+    private void saveRegistry(Context context, TransferGroup.Assignee assignee,
+                              List<TransferObject> registry, boolean doPublish,
+                              SQLiteDatabase.ProgressUpdater progressUpdater)
+    {
+        if (doPublish)
+            AppUtils.getDatabase(context).publish(assignee);
+        else
+            AppUtils.getDatabase(context).insert(assignee);
+
+        if (doPublish)
+            AppUtils.getDatabase(context).publish(registry, progressUpdater);
+        else
+            AppUtils.getDatabase(context).insert(registry, progressUpdater);
+    }
 }
\ No newline at end of file
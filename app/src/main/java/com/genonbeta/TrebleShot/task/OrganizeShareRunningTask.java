@@ -6,11 +6,13 @@ import com.genonbeta.TrebleShot.R;
 import com.genonbeta.TrebleShot.activity.AddDevicesToTransferActivity;
 import com.genonbeta.TrebleShot.activity.ShareActivity;
 import com.genonbeta.TrebleShot.activity.ViewTransferActivity;
+import com.genonbeta.TrebleShot.config.AppConfig;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
 import com.genonbeta.TrebleShot.object.TransferGroup;
 import com.genonbeta.TrebleShot.object.TransferObject;
 import com.genonbeta.TrebleShot.service.WorkerService;
 import com.genonbeta.TrebleShot.util.AppUtils;
+import com.genonbeta.TrebleShot.util.TransferUtils;
 import com.genonbeta.android.database.SQLQuery;
 import com.genonbeta.android.database.SQLiteDatabase;
 
@@ -22,6 +24,25 @@ public class OrganizeShareRunningTask extends WorkerService.RunningTask<ShareAct
 {
     private List<Uri> mFileUris;
     private List<CharSequence> mFileNames;
+    private TransferGroup mGroup = new TransferGroup(AppUtils.getUniqueNumber());
+    private boolean mProgressive = false;
+    private boolean mGroupPublished = false;
+    private SQLiteDatabase.ProgressUpdater mProgressUpdater = new SQLiteDatabase.ProgressUpdater()
+    {
+        @Override
+        public void onProgressChange(int total, int current)
+        {
+            // The progress bar belongs to the walk on a progressive share
+            if (!mProgressive && getAnchorListener() != null)
+                getAnchorListener().updateProgress(total, current);
+        }
+
+        @Override
+        public boolean onProgressState()
+        {
+            return !getInterrupter().interrupted();
+        }
+    };
 
     public OrganizeShareRunningTask(List<Uri> fileUris, List<CharSequence> fileNames)
     {
@@ -40,43 +61,101 @@ public class OrganizeShareRunningTask extends WorkerService.RunningTask<ShareAct
         }
 
         final List<ShareActivity.SelectableStream> measuredObjects = new ArrayList<>();
-        final List<TransferObject> pendingObjects = new ArrayList<>();
-        final TransferGroup groupInstance = new TransferGroup(AppUtils.getUniqueNumber());
-
-        for (int position = 0; position < mFileUris.size(); position++) {
-            if (getInterrupter().interrupted())
-                break;
 
-            publishStatusText(getService().getString(R.string.text_transferStatusFiles,
-                    position, mFileUris.size()));
+        // On a progressive share, the group is published with the first files that are found and
+        // the rest are added to it while the walk goes on.
+        mProgressive = AppUtils.getDefaultPreferences(getService()).getBoolean("progressive_share", false);
 
-            if (getAnchorListener() != null) {
-                getAnchorListener().updateProgress(getAnchorListener().getProgressBar().getMax(),
-                        getAnchorListener().getProgressBar().getProgress() + 1);
-            }
+        // The group is saved with the mark, so the service knows about it from the first page on
+        mGroup.isIndexPartial = mProgressive;
 
-            Uri fileUri = mFileUris.get(position);
-            String fileName = mFileNames != null ? String.valueOf(mFileNames.get(position)) : null;
+        try {
+            for (int position = 0; position < mFileUris.size(); position++) {
+                if (getInterrupter().interrupted())
+                    break;
 
-            try {
-                ShareActivity.SelectableStream selectableStream =
-                        new ShareActivity.SelectableStream(getService(), fileUri, null);
+                publishStatusText(getService().getString(R.string.text_transferStatusFiles,
+                        position, mFileUris.size()));
 
-                if (selectableStream.getDocumentFile().isDirectory())
-                    ShareActivity.createFolderStructure(selectableStream.getDocumentFile(),
-                            selectableStream.getDocumentFile().getName(), measuredObjects,
-                            this);
-                else {
-                    if (fileName != null)
-                        selectableStream.setFriendlyName(fileName);
+                if (getAnchorListener() != null) {
+                    getAnchorListener().updateProgress(getAnchorListener().getProgressBar().getMax(),
+                            getAnchorListener().getProgressBar().getProgress() + 1);
+                }
 
-                    measuredObjects.add(selectableStream);
+                Uri fileUri = mFileUris.get(position);
+                String fileName = mFileNames != null ? String.valueOf(mFileNames.get(position)) : null;
+
+                try {
+                    ShareActivity.SelectableStream selectableStream =
+                            new ShareActivity.SelectableStream(getService(), fileUri, null);
+
+                    if (selectableStream.getDocumentFile().isDirectory())
+                        ShareActivity.createFolderStructure(selectableStream.getDocumentFile(),
+                                selectableStream.getDocumentFile().getName(), measuredObjects,
+                                this);
+                    else {
+                        if (fileName != null)
+                            selectableStream.setFriendlyName(fileName);
+
+                        measuredObjects.add(selectableStream);
+                        onStreamMeasured(measuredObjects);
+                    }
+                } catch (FileNotFoundException e) {
+                    e.printStackTrace();
                 }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
             }
+
+            if (getAnchorListener() != null)
+                getAnchorListener().updateText(thisTask, getService().getString(R.string.mesg_completing));
+
+            saveStreams(measuredObjects);
+        } finally {
+            mGroup.isIndexPartial = false;
+
+            if (mProgressive && mGroupPublished)
+                TransferUtils.setIndexPartial(AppUtils.getDatabase(getService()), mGroup.groupId, false);
         }
 
+        if (getInterrupter().interrupted()) {
+            if (mGroupPublished)
+                AppUtils.getDatabase(getService()).remove(mGroup);
+            else
+                AppUtils.getDatabase(getService()).remove(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                        .setWhere(String.format("%s = ?", AccessDatabase.FIELD_TRANSFER_GROUPID),
+                                String.valueOf(mGroup.groupId)));
+        } else if (!mGroupPublished)
+            publishGroup();
+
+        if (getAnchorListener() != null)
+            getAnchorListener().finish();
+    }
+
+    /**
+     * Called when a file is found. On a progressive share, the files that are found are saved
+     * once there are enough of them, so that they can be sent before the walk is over.
+     *
+     * @param measuredObjects the files that are found and not saved yet
+     */
+    public void onStreamMeasured(List<ShareActivity.SelectableStream> measuredObjects)
+    {
+        if (mProgressive && measuredObjects.size() >= AppConfig.INDEX_PAGE_LENGTH
+                && !getInterrupter().interrupted())
+            saveStreams(measuredObjects);
+    }
+
+    private void publishGroup()
+    {
+        AppUtils.getDatabase(getService()).insert(mGroup);
+        mGroupPublished = true;
+
+        ViewTransferActivity.startInstance(getService(), mGroup.groupId);
+        AddDevicesToTransferActivity.startInstance(getService(), mGroup.groupId);
+    }
+
+    private void saveStreams(List<ShareActivity.SelectableStream> measuredObjects)
+    {
+        final List<TransferObject> pendingObjects = new ArrayList<>();
+
         for (ShareActivity.SelectableStream selectableStream : measuredObjects) {
             if (getInterrupter().interrupted())
                 break;
@@ -86,7 +165,7 @@ public class OrganizeShareRunningTask extends WorkerService.RunningTask<ShareAct
             long requestId = AppUtils.getUniqueNumber();
 
             TransferObject transferObject = new TransferObject(requestId,
-                    groupInstance.groupId,
+                    mGroup.groupId,
                     selectableStream.getSelectableTitle(),
                     selectableStream.getDocumentFile().getUri().toString(),
                     selectableStream.getDocumentFile().getType(),
@@ -98,37 +177,19 @@ public class OrganizeShareRunningTask extends WorkerService.RunningTask<ShareAct
             pendingObjects.add(transferObject);
         }
 
-        if (getAnchorListener() != null)
-            getAnchorListener().updateText(thisTask, getService().getString(R.string.mesg_completing));
+        measuredObjects.clear();
 
-        AppUtils.getDatabase(getService()).insert(pendingObjects, new SQLiteDatabase.ProgressUpdater()
-        {
-            @Override
-            public void onProgressChange(int total, int current)
-            {
-                if (getAnchorListener() != null)
-                    getAnchorListener().updateProgress(total, current);
-            }
+        AppUtils.getDatabase(getService()).insert(pendingObjects, mProgressUpdater);
 
-            @Override
-            public boolean onProgressState()
-            {
-                return !getInterrupter().interrupted();
-            }
-        });
+        if (mProgressive && pendingObjects.size() > 0 && !getInterrupter().interrupted()) {
+            // The devices that were added before these files were found need their own copies.
+            // The ones that ask for pages find them in the next page, and the others are sent
+            // them with the rest of the index once the walk is over.
+            TransferUtils.publishToAssignees(AppUtils.getDatabase(getService()), mGroup.groupId,
+                    pendingObjects, mProgressUpdater);
 
-        if (getInterrupter().interrupted()) {
-            AppUtils.getDatabase(getService()).remove(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
-                    .setWhere(String.format("%s = ?", AccessDatabase.FIELD_TRANSFER_GROUPID),
-                            String.valueOf(groupInstance.groupId)));
-        } else {
-            AppUtils.getDatabase(getService()).insert(groupInstance);
-
-            ViewTransferActivity.startInstance(getService(), groupInstance.groupId);
-            AddDevicesToTransferActivity.startInstance(getService(), groupInstance.groupId);
+            if (!mGroupPublished)
+                publishGroup();
         }
-
-        if (getAnchorListener() != null)
-            getAnchorListener().finish();
     }
 }
@@ -0,0 +1,152 @@
+package com.genonbeta.TrebleShot.util;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Picks the size of the copy buffer and the socket buffers of a connection from what the
+ * connection is actually doing. The copy buffer is grown while the throughput keeps getting
+ * better and is shrunk when it gets worse. The socket buffers follow the bandwidth-delay product,
+ * which is the amount of bytes that can be on the way at once.
+ */
+public class AdaptiveBufferSize
+{
+    public static final int ADJUST_INTERVAL = 1000;
+    public static final int LENGTH_INITIAL = 64 * 1024;
+    public static final int SOCKET_LENGTH_MIN = 64 * 1024;
+    public static final int SOCKET_LENGTH_MAX = 4 * 1024 * 1024;
+
+    private byte[] mBuffer;
+    private int mLengthMin;
+    private int mLengthMax;
+    private int mLength;
+    private int mSocketLength = SOCKET_LENGTH_MIN;
+    private int mDirection = 1;
+    private long mWindowStart = System.currentTimeMillis();
+    private long mWindowBytes = 0;
+    private long mThroughput = 0;
+    private long mRoundTripTime = 0;
+
+    /**
+     * @param lengthMin the smallest copy buffer that can be picked
+     * @param lengthMax the largest copy buffer that can be picked
+     */
+    public AdaptiveBufferSize(int lengthMin, int lengthMax)
+    {
+        mLengthMin = lengthMin;
+        mLengthMax = lengthMax;
+        mLength = Math.max(lengthMin, Math.min(lengthMax, LENGTH_INITIAL));
+    }
+
+    /**
+     * Applies the send buffer size to the socket. The system may choose to use a different size.
+     * The receive buffer is not changed, because the window that the other side is allowed to
+     * fill is agreed on when the connection is made. It should be set to
+     * {@link #SOCKET_LENGTH_MAX} on the server socket before it is bound instead.
+     *
+     * @param socket to apply the size to
+     */
+    public void apply(Socket socket)
+    {
+        try {
+            socket.setSendBufferSize(getSocketLength());
+        } catch (SocketException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The buffer is kept for the next copy, and a new one is made only when the size has grown
+     * past it, so it may be larger than {@link #getLength()} after the size has shrunk.
+     *
+     * @return a copy buffer that is at least {@link #getLength()} bytes long
+     */
+    public synchronized byte[] getBuffer()
+    {
+        if (mBuffer == null || mBuffer.length < mLength)
+            mBuffer = new byte[mLength];
+
+        return mBuffer;
+    }
+
+    /**
+     * @return the byte count that should be copied at once
+     */
+    public synchronized int getLength()
+    {
+        return mLength;
+    }
+
+    /**
+     * @return the smoothed time it took for a request to be answered in milliseconds, or 0 if it
+     * is not known yet
+     */
+    public synchronized long getRoundTripTime()
+    {
+        return mRoundTripTime;
+    }
+
+    public synchronized int getSocketLength()
+    {
+        return mSocketLength;
+    }
+
+    /**
+     * @return the throughput of the last interval in bytes per second
+     */
+    public synchronized long getThroughput()
+    {
+        return mThroughput;
+    }
+
+    /**
+     * @param time that passed between a request and its answer in milliseconds
+     */
+    public synchronized void onRoundTrip(long time)
+    {
+        mRoundTripTime = mRoundTripTime == 0 ? time : (7 * mRoundTripTime + time) / 8;
+    }
+
+    /**
+     * Counts the bytes that have been copied and adjusts the sizes once per
+     * {@link #ADJUST_INTERVAL}.
+     *
+     * @param bytes that have been copied since the last call
+     * @return true if the sizes have changed and should be applied
+     */
+    public synchronized boolean onTransferred(long bytes)
+    {
+        long currentTime = System.currentTimeMillis();
+
+        mWindowBytes += bytes;
+
+        if (currentTime - mWindowStart < ADJUST_INTERVAL)
+            return false;
+
+        long throughput = mWindowBytes * 1000 / (currentTime - mWindowStart);
+        int previousLength = mLength;
+        int previousSocketLength = mSocketLength;
+        int length = mLength;
+
+        // Keep going the same way while it pays off, turn back when it makes things worse, and
+        // stay where it is when there is no real difference.
+        if (mThroughput > 0 && throughput < mThroughput * 9 / 10)
+            mDirection = -mDirection;
+
+        if (mThroughput == 0 || throughput < mThroughput * 9 / 10 || throughput > mThroughput * 21 / 20)
+            length = mDirection > 0 ? length * 2 : length / 2;
+
+        mLength = Math.max(mLengthMin, Math.min(mLengthMax, length));
+        mThroughput = throughput;
+        mWindowStart = currentTime;
+        mWindowBytes = 0;
+
+        long bandwidthDelay = mRoundTripTime > 0
+                ? throughput * mRoundTripTime / 1000
+                : mLength * 4;
+
+        mSocketLength = (int) Math.max(SOCKET_LENGTH_MIN, Math.min(SOCKET_LENGTH_MAX, bandwidthDelay * 2));
+
+        return mLength != previousLength || mSocketLength != previousSocketLength;
+    }
+}
@@ -56,6 +56,7 @@ public class AppUtils
 
     private static int mUniqueNumber = 0;
     private static AccessDatabase mDatabase;
+    private static ProgressJournal mProgressJournal;
     private static SuperPreferences mDefaultPreferences;
     private static SuperPreferences mDefaultLocalPreferences;
     private static SuperPreferences mViewingPreferences;
@@ -202,6 +203,14 @@ public class AppUtils
         return mDatabase;
     }
 
+    public static synchronized ProgressJournal getProgressJournal()
+    {
+        if (mProgressJournal == null)
+            mProgressJournal = new ProgressJournal();
+
+        return mProgressJournal;
+    }
+
     public static Keyword.Flavor getBuildFlavor()
     {
         try {
@@ -0,0 +1,334 @@
+package com.genonbeta.TrebleShot.util;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares the link between the transfers that run at the same time. Each transfer is a
+ * {@link Flow} with a token bucket of its own, whose rate is a share of the limit of its
+ * direction, or of the global limit when its direction has none. The share of a flow follows the
+ * weight of its {@link Priority}, so the small transfers that the user waits for are not starved
+ * by the bulk ones.
+ * <p>
+ * When there is no limit, the flows run freely unless an interactive flow runs next to a bulk
+ * one. The bulk flows then get their share of the highest rate that the link has reached lately,
+ * while the interactive ones still run freely.
+ * <p>
+ * The bytes are paid for after they are copied, so a flow that has copied more than its tokens
+ * waits until the debt is paid off before it copies again.
+ */
+public class BandwidthScheduler
+{
+    private static final long MEASURE_INTERVAL = 1000;
+
+    private final List<Flow> mFlowList = new ArrayList<>();
+    private final TokenBucket mGlobalBucket = new TokenBucket();
+    private final TokenBucket mIncomingBucket = new TokenBucket();
+    private final TokenBucket mOutgoingBucket = new TokenBucket();
+    private long mGlobalLimit = 0;
+    private long mIncomingLimit = 0;
+    private long mOutgoingLimit = 0;
+    private long mPeakRate = 0;
+    private long mMeasuredByte = 0;
+    private long mMeasureTime = System.currentTimeMillis();
+
+    /**
+     * @param outgoing true if the flow sends the bytes
+     * @return the flow that the copies of a transfer should go through, which should be
+     * unregistered when the transfer ends
+     */
+    public synchronized Flow register(boolean outgoing)
+    {
+        Flow flow = new Flow(outgoing);
+
+        mFlowList.add(flow);
+        updateShares();
+
+        return flow;
+    }
+
+    public synchronized void unregister(Flow flow)
+    {
+        if (mFlowList.remove(flow))
+            updateShares();
+    }
+
+    /**
+     * @return the bytes copied in a second by all the flows
+     */
+    public synchronized long getRate()
+    {
+        long rate = 0;
+
+        for (Flow flow : mFlowList)
+            rate += flow.getRate();
+
+        return rate;
+    }
+
+    private boolean hasPriority(Priority priority)
+    {
+        for (Flow flow : mFlowList)
+            if (flow.mPriority == priority)
+                return true;
+
+        return false;
+    }
+
+    private synchronized void onTransferred(long bytes)
+    {
+        long currentTime = System.currentTimeMillis();
+        long elapsedTime = currentTime - mMeasureTime;
+
+        mMeasuredByte += bytes;
+
+        if (elapsedTime < MEASURE_INTERVAL)
+            return;
+
+        long rate = mMeasuredByte * 1000 / elapsedTime;
+
+        // The bulk flows are held back while the flows are mixed, so what is measured then
+        // doesn't show how fast the link is
+        mPeakRate = hasPriority(Priority.INTERACTIVE) && hasPriority(Priority.BULK)
+                ? Math.max(mPeakRate, rate)
+                : Math.max(mPeakRate * 9 / 10, rate);
+
+        mMeasuredByte = 0;
+        mMeasureTime = currentTime;
+
+        updateShares();
+    }
+
+    /**
+     * @param globalLimit   the bytes all the flows can copy in a second, or 0 for no limit
+     * @param incomingLimit the bytes the incoming flows can copy in a second, or 0 for no limit
+     * @param outgoingLimit the bytes the outgoing flows can copy in a second, or 0 for no limit
+     */
+    public synchronized void setLimits(long globalLimit, long incomingLimit, long outgoingLimit)
+    {
+        mGlobalLimit = globalLimit;
+        mIncomingLimit = incomingLimit;
+        mOutgoingLimit = outgoingLimit;
+
+        mGlobalBucket.setRate(globalLimit);
+        mIncomingBucket.setRate(incomingLimit);
+        mOutgoingBucket.setRate(outgoingLimit);
+
+        updateShares();
+    }
+
+    private void updateShares()
+    {
+        boolean mixed = hasPriority(Priority.INTERACTIVE) && hasPriority(Priority.BULK);
+
+        for (Flow flow : mFlowList) {
+            long limit = flow.mOutgoing ? mOutgoingLimit : mIncomingLimit;
+            boolean sameDirection = limit > 0;
+
+            if (limit <= 0)
+                limit = mGlobalLimit;
+
+            if (limit <= 0 && mixed && Priority.BULK.equals(flow.mPriority))
+                limit = mPeakRate;
+
+            if (limit <= 0) {
+                flow.mBucket.setRate(0);
+                continue;
+            }
+
+            int totalWeight = 0;
+
+            for (Flow sharingFlow : mFlowList)
+                if (!sameDirection || sharingFlow.mOutgoing == flow.mOutgoing)
+                    totalWeight += sharingFlow.mPriority.weight;
+
+            flow.mBucket.setRate(limit * flow.mPriority.weight / totalWeight);
+        }
+    }
+
+    public enum Priority
+    {
+        INTERACTIVE(4),
+        BULK(1);
+
+        private final int weight;
+
+        Priority(int weight)
+        {
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * The copies of a transfer. The lanes of a session share the same flow.
+     */
+    public class Flow
+    {
+        private final boolean mOutgoing;
+        private final TokenBucket mBucket = new TokenBucket();
+        private Priority mPriority = Priority.BULK;
+        private long mRate = 0;
+        private long mMeasuredByte = 0;
+        private long mMeasureTime = System.currentTimeMillis();
+
+        Flow(boolean outgoing)
+        {
+            mOutgoing = outgoing;
+        }
+
+        /**
+         * Pays for the bytes that have been copied and waits if the flow, its direction or all
+         * the flows have gone over their rate.
+         *
+         * @throws InterruptedIOException if the thread is interrupted while waiting
+         */
+        public void consume(long bytes) throws InterruptedIOException
+        {
+            TokenBucket directionBucket = mOutgoing ? mOutgoingBucket : mIncomingBucket;
+            long waitTime = Math.max(mBucket.reserve(bytes),
+                    Math.max(directionBucket.reserve(bytes), mGlobalBucket.reserve(bytes)));
+
+            measure(bytes);
+            onTransferred(bytes);
+
+            if (waitTime > 0)
+                try {
+                    Thread.sleep(waitTime);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted while waiting for the bandwidth");
+                }
+        }
+
+        public Priority getPriority()
+        {
+            synchronized (BandwidthScheduler.this) {
+                return mPriority;
+            }
+        }
+
+        /**
+         * @return the bytes copied in a second lately
+         */
+        public synchronized long getRate()
+        {
+            // A flow that has stopped copying is not still shown at its last rate
+            return System.currentTimeMillis() - mMeasureTime > MEASURE_INTERVAL * 2 ? 0 : mRate;
+        }
+
+        private synchronized void measure(long bytes)
+        {
+            long currentTime = System.currentTimeMillis();
+            long elapsedTime = currentTime - mMeasureTime;
+
+            mMeasuredByte += bytes;
+
+            if (elapsedTime >= MEASURE_INTERVAL) {
+                mRate = mMeasuredByte * 1000 / elapsedTime;
+                mMeasuredByte = 0;
+                mMeasureTime = currentTime;
+            }
+        }
+
+        public void setPriority(Priority priority)
+        {
+            synchronized (BandwidthScheduler.this) {
+                mPriority = priority;
+                updateShares();
+            }
+        }
+
+        public InputStream wrap(InputStream inputStream)
+        {
+            return new FilterInputStream(inputStream)
+            {
+                @Override
+                public int read() throws IOException
+                {
+                    int read = super.read();
+
+                    if (read != -1)
+                        consume(1);
+
+                    return read;
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException
+                {
+                    int len = super.read(bytes, offset, length);
+
+                    if (len > 0)
+                        consume(len);
+
+                    return len;
+                }
+            };
+        }
+
+        public OutputStream wrap(OutputStream outputStream)
+        {
+            return new FilterOutputStream(outputStream)
+            {
+                @Override
+                public void write(int oneByte) throws IOException
+                {
+                    out.write(oneByte);
+                    consume(1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException
+                {
+                    // Not what FilterOutputStream does, which writes the bytes one by one
+                    out.write(bytes, offset, length);
+                    consume(length);
+                }
+            };
+        }
+    }
+
+    private static class TokenBucket
+    {
+        private long mRate = 0;
+        private double mTokens = 0;
+        private long mTime = System.currentTimeMillis();
+
+        private void refill(long currentTime)
+        {
+            // A second worth of bytes can be copied at once after a pause
+            mTokens = Math.min(mRate, mTokens + (currentTime - mTime) * mRate / 1000d);
+            mTime = currentTime;
+        }
+
+        /**
+         * @return the time in milliseconds to wait for the bytes to be paid for
+         */
+        synchronized long reserve(long bytes)
+        {
+            if (mRate <= 0)
+                return 0;
+
+            refill(System.currentTimeMillis());
+            mTokens -= bytes;
+
+            return mTokens >= 0 ? 0 : (long) (-mTokens * 1000 / mRate);
+        }
+
+        synchronized void setRate(long rate)
+        {
+            if (rate == mRate)
+                return;
+
+            refill(System.currentTimeMillis());
+
+            mRate = Math.max(0, rate);
+            mTokens = Math.min(mTokens, mRate);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.genonbeta.TrebleShot.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the direct buffers that are no longer in use so that the next transfer can use them
+ * without allocating new ones. Direct buffers are expensive to allocate and are released late
+ * by the garbage collector, so allocating one per file adds up on long sessions.
+ */
+public class ByteBufferPool
+{
+    private final List<ByteBuffer> mBufferList = new ArrayList<>();
+    private int mCapacity;
+    private int mPoolSize;
+
+    /**
+     * @param capacity the size of the buffers that are given away
+     * @param poolSize the number of buffers that are kept at most when they are released
+     */
+    public ByteBufferPool(int capacity, int poolSize)
+    {
+        mCapacity = capacity;
+        mPoolSize = poolSize;
+    }
+
+    /**
+     * @return a cleared buffer that is either reused or allocated now
+     */
+    public ByteBuffer acquire()
+    {
+        synchronized (mBufferList) {
+            if (mBufferList.size() > 0) {
+                ByteBuffer buffer = mBufferList.remove(mBufferList.size() - 1);
+                buffer.clear();
+
+                return buffer;
+            }
+        }
+
+        return ByteBuffer.allocateDirect(mCapacity);
+    }
+
+    public int getCapacity()
+    {
+        return mCapacity;
+    }
+
+    /**
+     * Gives the buffer back to the pool. The buffer should not be used after this.
+     *
+     * @param buffer that was acquired from this pool
+     */
+    public void release(ByteBuffer buffer)
+    {
+        if (buffer == null || buffer.capacity() != mCapacity)
+            return;
+
+        synchronized (mBufferList) {
+            if (mBufferList.size() < mPoolSize)
+                mBufferList.add(buffer);
+        }
+    }
+}
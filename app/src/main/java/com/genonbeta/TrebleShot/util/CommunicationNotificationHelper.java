@@ -232,6 +232,15 @@ public class CommunicationNotificationHelper
                 TransferUtils.createUniqueTransferId(processHolder.groupId, device.deviceId, processHolder.transferObject.type),
                 NotificationUtils.NOTIFICATION_CHANNEL_HIGH);
         CoolTransfer.TransferProgress progress = processHolder.builder.getTransferProgress();
+        long transferredByte = processHolder.session == null
+                ? progress.getTransferredByte()
+                : processHolder.session.getTransferredByte();
+        long timeElapsed = processHolder.session == null
+                ? progress.getTimeElapsed()
+                : processHolder.session.getElapsedTime();
+        int transferredFileCount = processHolder.session == null
+                ? progress.getTransferredFileCount()
+                : processHolder.session.getTransferredFileCount();
 
         notification
                 .setSmallIcon(android.R.drawable.stat_sys_download_done)
@@ -239,11 +248,11 @@ public class CommunicationNotificationHelper
                 .setAutoCancel(true)
                 .setDefaults(getUtils().getNotificationSettings())
                 .setPriority(NotificationCompat.PRIORITY_HIGH)
-                .setContentText(getContext().getString(R.string.text_receivedTransfer, FileUtils.sizeExpression(progress.getTransferredByte(), false), TimeUtils.getFriendlyElapsedTime(getContext(), progress.getTimeElapsed())));
+                .setContentText(getContext().getString(R.string.text_receivedTransfer, FileUtils.sizeExpression(transferredByte, false), TimeUtils.getFriendlyElapsedTime(getContext(), timeElapsed)));
 
-        if (progress.getTransferredFileCount() != 1) {
+        if (transferredFileCount != 1) {
             notification
-                    .setContentTitle(getContext().getResources().getQuantityString(R.plurals.text_fileReceiveCompletedSummary, progress.getTransferredFileCount(), progress.getTransferredFileCount()))
+                    .setContentTitle(getContext().getResources().getQuantityString(R.plurals.text_fileReceiveCompletedSummary, transferredFileCount, transferredFileCount))
                     .setContentIntent(PendingIntent.getActivity(getContext(), AppUtils.getUniqueNumber(), new Intent(getContext(), FileExplorerActivity.class)
                             .putExtra(FileExplorerActivity.EXTRA_FILE_PATH, savePath.getUri()), 0));
         } else {
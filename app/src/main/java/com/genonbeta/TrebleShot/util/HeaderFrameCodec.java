@@ -0,0 +1,192 @@
+package com.genonbeta.TrebleShot.util;
+
+import com.genonbeta.TrebleShot.config.Keyword;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes the header frames of a session lane in a compact binary form instead of JSON text. The
+ * keys that the lanes use are written as a single byte and the values are written with their
+ * type, so neither side has to build or parse any text for a header. The headers are still
+ * {@link JSONObject}s on both ends, so the code that uses them doesn't change with the format.
+ * <p>
+ * The key table is shared by both sides, so new keys should only be added to its end. Keys that
+ * are not in the table are written as they are.
+ */
+public class HeaderFrameCodec
+{
+    public static final String FRAMING_BINARY = "binary";
+
+    private static final int KEY_UNKNOWN = 0xFF;
+
+    private static final int TYPE_FALSE = 0;
+    private static final int TYPE_TRUE = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_DOUBLE = 3;
+    private static final int TYPE_STRING = 4;
+    private static final int TYPE_ARRAY = 5;
+    private static final int TYPE_OBJECT = 6;
+    private static final int TYPE_NULL = 7;
+
+    private static final String[] KEYS = {
+            Keyword.RESULT,
+            Keyword.TRANSFER_REQUEST_ID,
+            Keyword.TRANSFER_GROUP_ID,
+            Keyword.SKIPPED_BYTES,
+            Keyword.SIZE_CHANGED,
+            Keyword.FLAG,
+            Keyword.ERROR,
+            Keyword.TRANSFER_JOB_DONE,
+            Keyword.TRANSFER_RANGE_START,
+            Keyword.TRANSFER_RANGE_LENGTH,
+            Keyword.TRANSFER_FILE_DONE,
+            Keyword.TRANSFER_BATCH,
+            Keyword.TRANSFER_CHECKSUM,
+            Keyword.TRANSFER_DELTA,
+            Keyword.TRANSFER_COMPRESSION,
+            Keyword.INDEX_FILE_SIZE
+    };
+
+    private static final Map<String, Integer> KEY_INDEXES = new HashMap<>();
+
+    static {
+        for (int i = 0; i < KEYS.length; i++)
+            KEY_INDEXES.put(KEYS[i], i);
+    }
+
+    public static JSONObject decode(byte[] frame, int length) throws IOException, JSONException
+    {
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(frame, 0, length));
+        JSONObject header = readObject(inputStream);
+
+        if (inputStream.available() > 0)
+            throw new StreamCorruptedException("Header frame has " + inputStream.available()
+                    + " bytes that don't belong to it");
+
+        return header;
+    }
+
+    public static void encode(JSONObject header, DataOutputStream outputStream)
+            throws IOException, JSONException
+    {
+        writeObject(header, outputStream);
+    }
+
+    private static JSONObject readObject(DataInputStream inputStream) throws IOException, JSONException
+    {
+        JSONObject object = new JSONObject();
+        int count = inputStream.readUnsignedShort();
+
+        for (int i = 0; i < count; i++) {
+            int keyIndex = inputStream.readUnsignedByte();
+            String key;
+
+            if (keyIndex == KEY_UNKNOWN)
+                key = inputStream.readUTF();
+            else if (keyIndex < KEYS.length)
+                key = KEYS[keyIndex];
+            else
+                throw new StreamCorruptedException("Header frame has an unknown key: " + keyIndex);
+
+            object.put(key, readValue(inputStream));
+        }
+
+        return object;
+    }
+
+    private static Object readValue(DataInputStream inputStream) throws IOException, JSONException
+    {
+        int type = inputStream.readUnsignedByte();
+
+        switch (type) {
+            case TYPE_FALSE:
+                return false;
+            case TYPE_TRUE:
+                return true;
+            case TYPE_LONG:
+                return inputStream.readLong();
+            case TYPE_DOUBLE:
+                return inputStream.readDouble();
+            case TYPE_STRING:
+                return inputStream.readUTF();
+            case TYPE_ARRAY: {
+                JSONArray array = new JSONArray();
+                int count = inputStream.readInt();
+
+                for (int i = 0; i < count; i++)
+                    array.put(readValue(inputStream));
+
+                return array;
+            }
+            case TYPE_OBJECT:
+                return readObject(inputStream);
+            case TYPE_NULL:
+                return JSONObject.NULL;
+            default:
+                throw new StreamCorruptedException("Header frame has an unknown type: " + type);
+        }
+    }
+
+    private static void writeObject(JSONObject object, DataOutputStream outputStream)
+            throws IOException, JSONException
+    {
+        Iterator<String> keys = object.keys();
+
+        outputStream.writeShort(object.length());
+
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Integer keyIndex = KEY_INDEXES.get(key);
+
+            if (keyIndex == null) {
+                outputStream.writeByte(KEY_UNKNOWN);
+                outputStream.writeUTF(key);
+            } else
+                outputStream.writeByte(keyIndex);
+
+            writeValue(object.get(key), outputStream);
+        }
+    }
+
+    private static void writeValue(Object value, DataOutputStream outputStream)
+            throws IOException, JSONException
+    {
+        if (value instanceof Boolean)
+            outputStream.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte) {
+            outputStream.writeByte(TYPE_LONG);
+            outputStream.writeLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            outputStream.writeByte(TYPE_DOUBLE);
+            outputStream.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+
+            outputStream.writeByte(TYPE_ARRAY);
+            outputStream.writeInt(array.length());
+
+            for (int i = 0; i < array.length(); i++)
+                writeValue(array.get(i), outputStream);
+        } else if (value instanceof JSONObject) {
+            outputStream.writeByte(TYPE_OBJECT);
+            writeObject((JSONObject) value, outputStream);
+        } else if (value == null || JSONObject.NULL.equals(value))
+            outputStream.writeByte(TYPE_NULL);
+        else {
+            outputStream.writeByte(TYPE_STRING);
+            outputStream.writeUTF(value.toString());
+        }
+    }
+}
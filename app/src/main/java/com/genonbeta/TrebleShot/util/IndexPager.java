@@ -0,0 +1,279 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.util.Log;
+
+import com.genonbeta.CoolSocket.CoolSocket;
+import com.genonbeta.TrebleShot.config.AppConfig;
+import com.genonbeta.TrebleShot.config.Keyword;
+import com.genonbeta.TrebleShot.object.NetworkDevice;
+import com.genonbeta.TrebleShot.object.TransferGroup;
+import com.genonbeta.TrebleShot.object.TransferInstance;
+import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.service.CommunicationService;
+import com.genonbeta.android.database.SQLiteDatabase;
+import com.genonbeta.android.framework.util.Interrupter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Receives the index of a group that the sender gives in pages. The first page comes with the
+ * transfer request, and the rest are asked for while the files of the earlier pages are being
+ * received. The groups whose pages are being received are kept in the ongoing index list of the
+ * {@link CommunicationService}.
+ */
+public class IndexPager
+{
+    public static final String TAG = IndexPager.class.getSimpleName();
+
+    private final CommunicationService mService;
+    private final Set<Long> mHandshakeList = new HashSet<>();
+
+    public IndexPager(CommunicationService service)
+    {
+        mService = service;
+    }
+
+    /**
+     * @param index    the entry that the sender put in the index
+     * @param uniqueId used to give the file a temporary name that doesn't collide with the others
+     * @return the incoming file that the entry describes, or null if the entry is not valid
+     */
+    public static TransferObject createIncomingObject(Object index, TransferGroup.Assignee assignee, long uniqueId)
+    {
+        if (!(index instanceof JSONObject))
+            return null;
+
+        JSONObject requestIndex = (JSONObject) index;
+
+        try {
+            if (requestIndex.has(Keyword.INDEX_FILE_NAME) && requestIndex.has(Keyword.INDEX_FILE_SIZE) && requestIndex.has(Keyword.INDEX_FILE_MIME) && requestIndex.has(Keyword.TRANSFER_REQUEST_ID)) {
+                TransferObject transferObject = new TransferObject(
+                        requestIndex.getLong(Keyword.TRANSFER_REQUEST_ID),
+                        assignee.groupId,
+                        assignee.deviceId,
+                        requestIndex.getString(Keyword.INDEX_FILE_NAME),
+                        "." + uniqueId + "." + AppConfig.EXT_FILE_PART,
+                        requestIndex.getString(Keyword.INDEX_FILE_MIME),
+                        requestIndex.getLong(Keyword.INDEX_FILE_SIZE),
+                        TransferObject.Type.INCOMING);
+
+                if (requestIndex.has(Keyword.INDEX_DIRECTORY))
+                    transferObject.directory = requestIndex.getString(Keyword.INDEX_DIRECTORY);
+
+                return transferObject;
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    public void endHandshake(long groupId)
+    {
+        synchronized (mService.getOngoingIndexList()) {
+            mHandshakeList.remove(groupId);
+        }
+    }
+
+    /**
+     * Asks the sender for the pages of the index that didn't come with the transfer request and
+     * saves each of them as soon as it arrives, so that the files in them can be received without
+     * waiting for the rest.
+     *
+     * <p>
+     * The sender may still be adding files to the group, in which case it is asked again until it
+     * says that the index is complete. A page that fails is asked for again a few times before
+     * giving up, and the group stays marked as partially indexed until the last page is saved, so
+     * the rest can be asked for when receiving is started again.
+     *
+     * @param cursor         the largest request id that has been saved so far
+     * @param uniqueId       the next id to use for the temporary file names
+     * @param startReceiving true if receiving should be started again when new files are saved
+     *                       after the previous session has ended
+     */
+    public void receivePages(final TransferGroup.Assignee assignee, final NetworkDevice device,
+                             final NetworkDevice.Connection connection, final long cursor,
+                             final long uniqueId, final boolean usePublishing,
+                             final boolean startReceiving, final Interrupter interrupter)
+    {
+        CommunicationBridge.connect(mService.getDatabase(), true, new CommunicationBridge.Client.ConnectionHandler()
+        {
+            @Override
+            public void onConnect(CommunicationBridge.Client client)
+            {
+                long currentCursor = cursor;
+                long currentUniqueId = uniqueId;
+                int pageCount = 0;
+                int attemptsLeft = AppConfig.INDEX_PAGE_RETRY_COUNT;
+                boolean indexComplete = false;
+                SQLiteDatabase.ProgressUpdater progressUpdater = new SQLiteDatabase.ProgressUpdater()
+                {
+                    @Override
+                    public void onProgressChange(int total, int current)
+                    {
+                    }
+
+                    @Override
+                    public boolean onProgressState()
+                    {
+                        return !interrupter.interrupted();
+                    }
+                };
+
+                while (!interrupter.interrupted()) {
+                    List<TransferObject> pageRegistry = new ArrayList<>();
+                    long pageCursor = currentCursor;
+
+                    try {
+                        CoolSocket.ActiveConnection activeConnection = client.communicate(device, connection);
+
+                        activeConnection.reply(new JSONObject()
+                                .put(Keyword.REQUEST, Keyword.REQUEST_INDEX_PAGE)
+                                .put(Keyword.TRANSFER_GROUP_ID, assignee.groupId)
+                                .put(Keyword.INDEX_CURSOR, currentCursor)
+                                .toString());
+
+                        JSONObject response = new JSONObject(activeConnection.receive().response);
+                        activeConnection.getSocket().close();
+
+                        if (!response.has(Keyword.RESULT) || !response.getBoolean(Keyword.RESULT))
+                            throw new CommunicationBridge.CommunicationException("The sender refused to give the index page");
+
+                        JSONArray filesArray = response.getJSONArray(Keyword.FILES_INDEX);
+
+                        for (int i = 0; i < filesArray.length(); i++) {
+                            TransferObject transferObject = createIncomingObject(filesArray.opt(i),
+                                    assignee, currentUniqueId++);
+
+                            if (transferObject != null) {
+                                pageCursor = Math.max(pageCursor, transferObject.requestId);
+                                pageRegistry.add(transferObject);
+                            }
+                        }
+
+                        if (pageRegistry.size() > 0) {
+                            if (usePublishing)
+                                mService.getDatabase().publish(pageRegistry, progressUpdater);
+                            else
+                                mService.getDatabase().insert(pageRegistry, progressUpdater);
+
+                            // A page that has been cut short is taken back, so the files that are
+                            // saved always end at the cursor that the rest can be asked from.
+                            if (interrupter.interrupted()) {
+                                mService.getDatabase().remove(pageRegistry);
+                                break;
+                            }
+
+                            currentCursor = pageCursor;
+                            pageCount++;
+
+                            if (startReceiving && mService.findProcessById(assignee.groupId, assignee.deviceId) == null)
+                                try {
+                                    mService.startFileReceiving(assignee.groupId, assignee.deviceId);
+                                } catch (Exception e) {
+                                    e.printStackTrace();
+                                }
+                        }
+
+                        attemptsLeft = AppConfig.INDEX_PAGE_RETRY_COUNT;
+
+                        if (response.getBoolean(Keyword.INDEX_COMPLETE)) {
+                            indexComplete = true;
+                            break;
+                        }
+
+                        // The sender has nothing more for now, but it is still finding files
+                        if (filesArray.length() < AppConfig.INDEX_PAGE_LENGTH)
+                            Thread.sleep(AppConfig.INDEX_PAGE_POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+
+                        // The page is asked for again from where the last saved one ends
+                        if (pageRegistry.size() > 0)
+                            mService.getDatabase().remove(pageRegistry);
+
+                        if (--attemptsLeft < 1)
+                            break;
+
+                        try {
+                            Thread.sleep(AppConfig.INDEX_PAGE_RETRY_DELAY);
+                        } catch (InterruptedException e1) {
+                            break;
+                        }
+                    }
+                }
+
+                if (indexComplete)
+                    TransferUtils.setIndexPartial(mService.getDatabase(), assignee.groupId, false);
+
+                Log.d(TAG, "receivePages(): Saved " + pageCount + " more pages for " + assignee.groupId
+                        + (indexComplete ? "" : ", the index is still partial"));
+            }
+        });
+    }
+
+    /**
+     * Asks for the rest of the index of a group whose pages stopped coming before the last one,
+     * unless the pages of the group are already being received.
+     */
+    public void resume(final TransferInstance transferInstance)
+    {
+        final TransferGroup group = transferInstance.getGroup();
+        final Interrupter interrupter = new Interrupter();
+
+        if (!group.isIndexPartial)
+            return;
+
+        synchronized (mService.getOngoingIndexList()) {
+            if (mService.getOngoingIndexList().containsKey(group.groupId))
+                return;
+
+            mService.getOngoingIndexList().put(group.groupId, interrupter);
+        }
+
+        mService.getSelfExecutor().submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    receivePages(transferInstance.getAssignee(), transferInstance.getDevice(),
+                            transferInstance.getConnection(), TransferUtils.findIndexCursor(mService.getDatabase(),
+                                    group.groupId, transferInstance.getDevice().deviceId),
+                            System.currentTimeMillis(), true, true, interrupter);
+                } finally {
+                    synchronized (mService.getOngoingIndexList()) {
+                        mService.getOngoingIndexList().remove(group.groupId);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The first page of an index is saved by one transfer request at a time, while the pages
+     * that follow it can be received alongside the others.
+     *
+     * @return true if the first page of the group can be saved now
+     */
+    public boolean startHandshake(long groupId)
+    {
+        synchronized (mService.getOngoingIndexList()) {
+            if (mHandshakeList.size() > 0 || mService.getOngoingIndexList().containsKey(groupId))
+                return false;
+
+            mHandshakeList.add(groupId);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.genonbeta.TrebleShot.util;
+
+import com.genonbeta.TrebleShot.database.AccessDatabase;
+import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.android.database.SQLQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the pending files of a process in the order that they should be transferred in, so the
+ * next file is taken from memory instead of being queried from the database with an order each
+ * time. The files are loaded once and kept in arrays of their fields, which are walked with a
+ * cursor. The directories and the types are interned since many files share them.
+ * <p>
+ * The queue follows the flags that the service changes itself: the files it takes are not
+ * pending anymore, and the files it puts back with {@link #offer(TransferObject)} are. It is
+ * loaded again only when it is invalidated, which should happen when the files are added or
+ * removed by something else, and when it runs out, which is when the files that have been put
+ * back to pending by something else show up.
+ * <p>
+ * The files that the user has pinned always come first, and the rest follow the policy.
+ */
+public class PendingTransferQueue
+{
+    public static final String POLICY_NAME = "name";
+    public static final String POLICY_SMALLEST = "smallest";
+    public static final String POLICY_MEDIA = "media";
+    public static final String POLICY_RECENT = "recent";
+
+    private static final String[] MEDIA_TYPES = {"image/", "video/", "audio/"};
+
+    private final AccessDatabase mDatabase;
+    private final long mGroupId;
+    private final String mDeviceId;
+    private final TransferObject.Type mType;
+    private final Set<Long> mPinnedList;
+    private final Comparator<TransferObject> mComparator;
+    private final BitSet mTakenList = new BitSet();
+    private long[] mRequestIds = new long[0];
+    private long[] mFileSizes = new long[0];
+    private long[] mSkippedBytes = new long[0];
+    private int[] mAccessPorts = new int[0];
+    private String[] mNames = new String[0];
+    private String[] mFiles = new String[0];
+    private String[] mMimeTypes = new String[0];
+    private String[] mDirectories = new String[0];
+    private String[] mRanges = new String[0];
+    private long[] mSortedIds = new long[0];
+    private int[] mSortedIndexes = new int[0];
+    private int mPosition = 0;
+    private boolean mInvalidated = true;
+
+    /**
+     * @param policy     one of the POLICY_ constants, which is {@link #POLICY_NAME} if unknown
+     * @param pinnedList the request ids of the files of the group for the device that should
+     *                   come first, which is synchronized on when it is read
+     */
+    public PendingTransferQueue(AccessDatabase database, long groupId, String deviceId,
+                                TransferObject.Type type, String policy, Set<Long> pinnedList)
+    {
+        mDatabase = database;
+        mGroupId = groupId;
+        mDeviceId = deviceId;
+        mType = type;
+        mPinnedList = pinnedList;
+        mComparator = createComparator(policy);
+    }
+
+    private static int compareText(String first, String second)
+    {
+        // The database puts the null values first too, so the old order stays the same
+        if (first == null || second == null)
+            return first == null ? (second == null ? 0 : -1) : 1;
+
+        return first.compareTo(second);
+    }
+
+    private static Comparator<TransferObject> createComparator(String policy)
+    {
+        final Comparator<TransferObject> nameComparator = new Comparator<TransferObject>()
+        {
+            @Override
+            public int compare(TransferObject first, TransferObject second)
+            {
+                int result = compareText(first.directory, second.directory);
+                return result != 0 ? result : compareText(first.friendlyName, second.friendlyName);
+            }
+        };
+
+        if (POLICY_SMALLEST.equals(policy))
+            return new Comparator<TransferObject>()
+            {
+                @Override
+                public int compare(TransferObject first, TransferObject second)
+                {
+                    return first.fileSize != second.fileSize
+                            ? (first.fileSize < second.fileSize ? -1 : 1)
+                            : nameComparator.compare(first, second);
+                }
+            };
+        else if (POLICY_MEDIA.equals(policy))
+            return new Comparator<TransferObject>()
+            {
+                @Override
+                public int compare(TransferObject first, TransferObject second)
+                {
+                    int firstRank = getMediaRank(first.fileMimeType);
+                    int secondRank = getMediaRank(second.fileMimeType);
+
+                    return firstRank != secondRank
+                            ? firstRank - secondRank
+                            : nameComparator.compare(first, second);
+                }
+            };
+        else if (POLICY_RECENT.equals(policy))
+            // The request ids grow with time, so the files that were added last come first
+            return new Comparator<TransferObject>()
+            {
+                @Override
+                public int compare(TransferObject first, TransferObject second)
+                {
+                    return first.requestId == second.requestId
+                            ? 0
+                            : (first.requestId > second.requestId ? -1 : 1);
+                }
+            };
+
+        return nameComparator;
+    }
+
+    private static int getMediaRank(String mimeType)
+    {
+        if (mimeType != null)
+            for (int i = 0; i < MEDIA_TYPES.length; i++)
+                if (mimeType.startsWith(MEDIA_TYPES[i]))
+                    return i;
+
+        return MEDIA_TYPES.length;
+    }
+
+    private TransferObject create(int index)
+    {
+        TransferObject transferObject = new TransferObject(mRequestIds[index], mGroupId, mDeviceId,
+                mNames[index], mFiles[index], mMimeTypes[index], mFileSizes[index], mType);
+
+        transferObject.skippedBytes = mSkippedBytes[index];
+        transferObject.accessPort = mAccessPorts[index];
+        transferObject.directory = mDirectories[index];
+        transferObject.ranges = mRanges[index];
+
+        return transferObject;
+    }
+
+    /**
+     * @return the place of the file in the order, or -1 if it is not loaded
+     */
+    private int indexOf(long requestId)
+    {
+        int position = Arrays.binarySearch(mSortedIds, requestId);
+        return position < 0 ? -1 : mSortedIndexes[position];
+    }
+
+    /**
+     * Drops what has been loaded, so that the files are read from the database again the next
+     * time they are needed.
+     */
+    public synchronized void invalidate()
+    {
+        mInvalidated = true;
+    }
+
+    private boolean isAvailable(int index, Collection<Long> excludedIds)
+    {
+        return !mTakenList.get(index)
+                && (excludedIds == null || !excludedIds.contains(mRequestIds[index]));
+    }
+
+    private void load()
+    {
+        List<TransferObject> pendingList = mDatabase.castQuery(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_TYPE + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_DEVICEID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_FLAG + "=?",
+                        mType.toString(), String.valueOf(mGroupId), mDeviceId,
+                        String.valueOf(TransferObject.Flag.PENDING.getValue())), TransferObject.class);
+
+        Collections.sort(pendingList, mComparator);
+
+        int size = pendingList.size();
+
+        mRequestIds = new long[size];
+        mFileSizes = new long[size];
+        mSkippedBytes = new long[size];
+        mAccessPorts = new int[size];
+        mNames = new String[size];
+        mFiles = new String[size];
+        mMimeTypes = new String[size];
+        mDirectories = new String[size];
+        mRanges = new String[size];
+
+        for (int i = 0; i < size; i++) {
+            TransferObject transferObject = pendingList.get(i);
+
+            mRequestIds[i] = transferObject.requestId;
+            mFileSizes[i] = transferObject.fileSize;
+            mSkippedBytes[i] = transferObject.skippedBytes;
+            mAccessPorts[i] = transferObject.accessPort;
+            mNames[i] = transferObject.friendlyName;
+            mFiles[i] = transferObject.file;
+            mMimeTypes[i] = transferObject.fileMimeType == null ? null : transferObject.fileMimeType.intern();
+            mDirectories[i] = transferObject.directory == null ? null : transferObject.directory.intern();
+            mRanges[i] = transferObject.ranges;
+        }
+
+        // The request ids are sorted on their own so that a file can be found without a walk
+        List<Integer> indexList = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++)
+            indexList.add(i);
+
+        Collections.sort(indexList, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer first, Integer second)
+            {
+                long firstId = mRequestIds[first];
+                long secondId = mRequestIds[second];
+
+                return firstId == secondId ? 0 : (firstId < secondId ? -1 : 1);
+            }
+        });
+
+        mSortedIds = new long[size];
+        mSortedIndexes = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            mSortedIndexes[i] = indexList.get(i);
+            mSortedIds[i] = mRequestIds[mSortedIndexes[i]];
+        }
+
+        mTakenList.clear();
+        mPosition = 0;
+        mInvalidated = false;
+    }
+
+    /**
+     * @return the place of the next file that is available, or -1 if there is none
+     */
+    private int next(Collection<Long> excludedIds)
+    {
+        int pinnedIndex = -1;
+
+        synchronized (mPinnedList) {
+            for (long requestId : mPinnedList) {
+                int index = indexOf(requestId);
+
+                // The pinned files keep the order of the policy among themselves
+                if (index != -1 && (pinnedIndex == -1 || index < pinnedIndex)
+                        && isAvailable(index, excludedIds))
+                    pinnedIndex = index;
+            }
+        }
+
+        if (pinnedIndex != -1)
+            return pinnedIndex;
+
+        while (mPosition < mRequestIds.length && mTakenList.get(mPosition))
+            mPosition++;
+
+        for (int index = mPosition; index < mRequestIds.length; index++)
+            if (isAvailable(index, excludedIds))
+                return index;
+
+        return -1;
+    }
+
+    /**
+     * Puts back a file that has been taken but was not transferred, or that has been made
+     * pending again. The fields that have changed since it was taken are kept.
+     */
+    public synchronized void offer(TransferObject transferObject)
+    {
+        int index = indexOf(transferObject.requestId);
+
+        if (index == -1) {
+            mInvalidated = true;
+            return;
+        }
+
+        mFileSizes[index] = transferObject.fileSize;
+        mSkippedBytes[index] = transferObject.skippedBytes;
+        mRanges[index] = transferObject.ranges;
+        mTakenList.clear(index);
+        mPosition = Math.min(mPosition, index);
+    }
+
+    /**
+     * Takes the next file that is pending.
+     *
+     * @param excludedIds the request ids that are already taken, or null
+     * @return the file, or null if there is no pending file left
+     */
+    public synchronized TransferObject poll(Collection<Long> excludedIds)
+    {
+        boolean loaded = false;
+
+        if (mInvalidated) {
+            load();
+            loaded = true;
+        }
+
+        int index = next(excludedIds);
+
+        if (index == -1 && !loaded) {
+            load();
+            index = next(excludedIds);
+        }
+
+        if (index == -1)
+            return null;
+
+        mTakenList.set(index);
+
+        return create(index);
+    }
+
+    /**
+     * Takes a file out of its order, such as the one that is received from somewhere else.
+     *
+     * @return the file, or null if it is not pending or has already been taken
+     */
+    public synchronized TransferObject take(long requestId)
+    {
+        if (mInvalidated)
+            load();
+
+        int index = indexOf(requestId);
+
+        if (index == -1 || mTakenList.get(index))
+            return null;
+
+        mTakenList.set(index);
+
+        return create(index);
+    }
+
+    /**
+     * Takes the files at the head of the queue that are small enough to be sent one after
+     * another in a single batch. The batch ends at the first file that is too large, so the
+     * files still go in the order of the queue. The files that are striped are never part of a
+     * batch.
+     *
+     * @param fileSizeMax the size a file can have at most
+     * @param limit       the number of files a batch can have at most
+     * @param excludedIds the request ids that are already taken, or null
+     */
+    public synchronized List<TransferObject> pollBatch(long fileSizeMax, int limit,
+                                                       Collection<Long> excludedIds)
+    {
+        List<TransferObject> batchList = new ArrayList<>();
+
+        if (mInvalidated)
+            load();
+
+        while (batchList.size() < limit) {
+            int index = next(excludedIds);
+
+            if (index == -1 || mFileSizes[index] > fileSizeMax || mRanges[index] != null)
+                break;
+
+            mTakenList.set(index);
+            batchList.add(create(index));
+        }
+
+        return batchList;
+    }
+}
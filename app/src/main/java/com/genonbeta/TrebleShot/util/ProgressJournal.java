@@ -0,0 +1,337 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.content.Intent;
+
+import com.genonbeta.TrebleShot.config.AppConfig;
+import com.genonbeta.TrebleShot.object.TransferGroup;
+import com.genonbeta.TrebleShot.object.TransferObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the byte counts of the files that are being transferred in memory, so the progress is
+ * written to the database only now and then instead of on every tick. Each write to the database
+ * is also a system broadcast that every list showing the transfers reloads on, which is why the
+ * lists are told about the progress by the listeners of the journal instead.
+ * <p>
+ * A file is written when it is first seen, when enough time has passed or enough bytes have been
+ * copied since the last time, and by the service itself whenever its flag changes, which is when
+ * it is forgotten by the journal.
+ * <p>
+ * The service runs in a process of its own, so the journal there is copied to the lists with
+ * {@link #writeTo(Intent)} and {@link #restore(Intent)}.
+ */
+public class ProgressJournal
+{
+    private static final String EXTRA_GROUP_ID_LIST = "groupIdList";
+    private static final String EXTRA_REQUEST_ID_LIST = "requestIdList";
+    private static final String EXTRA_DEVICE_ID_LIST = "deviceIdList";
+    private static final String EXTRA_TYPE_LIST = "typeList";
+    private static final String EXTRA_BYTE_LIST = "byteList";
+    private static final String EXTRA_CHECKPOINT_BYTE_LIST = "checkpointByteList";
+
+    private final Map<String, Entry> mEntryList = new HashMap<>();
+    private final List<Listener> mListenerList = new ArrayList<>();
+    private long mNotifyTime = 0;
+    private long mSweepTime = 0;
+
+    private static String createKey(TransferObject.Type type, String deviceId, long requestId)
+    {
+        return type + ":" + deviceId + ":" + requestId;
+    }
+
+    private static String createKey(TransferObject transferObject)
+    {
+        return createKey(transferObject.type, transferObject.deviceId, transferObject.requestId);
+    }
+
+    public void addListener(Listener listener)
+    {
+        synchronized (mListenerList) {
+            mListenerList.add(listener);
+        }
+    }
+
+    /**
+     * Drops a file whose state has been written to the database, which is where its bytes are
+     * counted from now on.
+     */
+    public void forget(TransferObject.Type type, String deviceId, long requestId)
+    {
+        boolean removed;
+
+        synchronized (this) {
+            removed = mEntryList.remove(createKey(type, deviceId, requestId)) != null;
+        }
+
+        // The copies of the journal shouldn't keep the file either
+        if (removed)
+            notifyListeners();
+    }
+
+    /**
+     * Drops the files that have been written with a query instead of one by one, where only
+     * the group or the file might be known from the conditions of the query.
+     *
+     * @param groupId   the group of the files, or null if every group may have been written
+     * @param requestId the file, or null if every file of the group may have been written
+     */
+    public void forget(Long groupId, Long requestId)
+    {
+        boolean removed = false;
+
+        synchronized (this) {
+            Iterator<Entry> iterator = mEntryList.values().iterator();
+
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+
+                if ((groupId == null || groupId == entry.groupId)
+                        && (requestId == null || requestId == entry.requestId)) {
+                    iterator.remove();
+                    removed = true;
+                }
+            }
+        }
+
+        if (removed)
+            notifyListeners();
+    }
+
+    /**
+     * @return the bytes of the file that are on the other side, which are the ones in memory if
+     * the file is still being transferred
+     */
+    public synchronized long getTransferredByte(TransferObject transferObject)
+    {
+        if (TransferObject.Flag.IN_PROGRESS.equals(transferObject.flag)) {
+            Entry entry = mEntryList.get(createKey(transferObject));
+
+            if (entry != null)
+                return entry.byteCount;
+        }
+
+        return transferObject.progressBytes;
+    }
+
+    private void notifyListeners()
+    {
+        List<Listener> listenerList;
+
+        synchronized (mListenerList) {
+            listenerList = new ArrayList<>(mListenerList);
+        }
+
+        for (Listener listener : listenerList)
+            listener.onProgress();
+    }
+
+    /**
+     * Keeps the bytes of a file that has made progress.
+     *
+     * @param transferObject the file, whose flag is already set to the progress
+     * @param byteCount      the bytes of the file that are on the other side
+     * @return true if the file should be written to the database now
+     */
+    public boolean record(TransferObject transferObject, long byteCount)
+    {
+        long currentTime = System.currentTimeMillis();
+        boolean checkpoint = false;
+        boolean notify = false;
+
+        synchronized (this) {
+            sweep(currentTime);
+
+            String key = createKey(transferObject);
+            Entry entry = mEntryList.get(key);
+
+            if (entry == null) {
+                entry = new Entry();
+                entry.groupId = transferObject.groupId;
+                entry.requestId = transferObject.requestId;
+                entry.deviceId = transferObject.deviceId;
+                entry.type = transferObject.type;
+                mEntryList.put(key, entry);
+                checkpoint = true;
+            }
+
+            entry.byteCount = byteCount;
+            entry.time = currentTime;
+
+            if (checkpoint || byteCount < entry.checkpointByte
+                    || byteCount - entry.checkpointByte >= AppConfig.PROGRESS_CHECKPOINT_LENGTH
+                    || currentTime - entry.checkpointTime >= AppConfig.PROGRESS_CHECKPOINT_INTERVAL) {
+                entry.checkpointByte = byteCount;
+                entry.checkpointTime = currentTime;
+                checkpoint = true;
+            }
+
+            // The lanes of a session record in turns, which would otherwise make the lists
+            // reload a few times in a row
+            if (currentTime - mNotifyTime >= AppConfig.DEFAULT_NOTIFICATION_DELAY) {
+                mNotifyTime = currentTime;
+                notify = true;
+            }
+        }
+
+        if (notify)
+            notifyListeners();
+
+        return checkpoint;
+    }
+
+    /**
+     * Adds the bytes that have been copied since the files were last written to the database to
+     * the indexes that {@link com.genonbeta.TrebleShot.database.AccessDatabase} has calculated.
+     *
+     * @param indexMap the indexes, mapped to the ids of their groups
+     */
+    public synchronized void addUnsavedByte(Map<Long, TransferGroup.Index> indexMap)
+    {
+        for (Map.Entry<Long, TransferGroup.Index> entry : indexMap.entrySet())
+            addUnsavedByte(entry.getKey(), entry.getValue());
+    }
+
+    public synchronized void addUnsavedByte(long groupId, TransferGroup.Index indexObject)
+    {
+        indexObject.incomingCompleted += getUnsavedByte(groupId, TransferObject.Type.INCOMING);
+        indexObject.outgoingCompleted += getUnsavedByte(groupId, TransferObject.Type.OUTGOING);
+    }
+
+    /**
+     * @return the bytes of the files of a group that have been copied since they were last
+     * written to the database
+     */
+    public synchronized long getUnsavedByte(long groupId, TransferObject.Type type)
+    {
+        long unsavedByte = 0;
+
+        for (Entry entry : mEntryList.values())
+            if (entry.groupId == groupId && entry.type == type)
+                unsavedByte += Math.max(0, entry.byteCount - entry.checkpointByte);
+
+        return unsavedByte;
+    }
+
+    public void removeListener(Listener listener)
+    {
+        synchronized (mListenerList) {
+            mListenerList.remove(listener);
+        }
+    }
+
+    /**
+     * Replaces the files with the ones that another process has written with
+     * {@link #writeTo(Intent)}. This is only for the processes that don't transfer themselves.
+     */
+    public void restore(Intent intent)
+    {
+        long[] groupIds = intent.getLongArrayExtra(EXTRA_GROUP_ID_LIST);
+        long[] requestIds = intent.getLongArrayExtra(EXTRA_REQUEST_ID_LIST);
+        String[] deviceIds = intent.getStringArrayExtra(EXTRA_DEVICE_ID_LIST);
+        String[] types = intent.getStringArrayExtra(EXTRA_TYPE_LIST);
+        long[] byteCounts = intent.getLongArrayExtra(EXTRA_BYTE_LIST);
+        long[] checkpointBytes = intent.getLongArrayExtra(EXTRA_CHECKPOINT_BYTE_LIST);
+
+        if (groupIds == null || requestIds == null || deviceIds == null || types == null
+                || byteCounts == null || checkpointBytes == null)
+            return;
+
+        long currentTime = System.currentTimeMillis();
+
+        synchronized (this) {
+            mEntryList.clear();
+
+            for (int i = 0; i < groupIds.length; i++) {
+                Entry entry = new Entry();
+
+                entry.groupId = groupIds[i];
+                entry.requestId = requestIds[i];
+                entry.deviceId = deviceIds[i];
+                entry.type = TransferObject.Type.valueOf(types[i]);
+                entry.byteCount = byteCounts[i];
+                entry.checkpointByte = checkpointBytes[i];
+                entry.time = currentTime;
+                entry.checkpointTime = currentTime;
+
+                mEntryList.put(createKey(entry.type, entry.deviceId, entry.requestId), entry);
+            }
+        }
+
+        notifyListeners();
+    }
+
+    /**
+     * Forgets the files that have not made progress for a while, which are the ones that have
+     * ended or stopped. Their last state is what the service has written to the database.
+     */
+    private void sweep(long currentTime)
+    {
+        if (currentTime - mSweepTime < AppConfig.PROGRESS_CHECKPOINT_INTERVAL)
+            return;
+
+        mSweepTime = currentTime;
+
+        Iterator<Entry> iterator = mEntryList.values().iterator();
+
+        while (iterator.hasNext())
+            if (currentTime - iterator.next().time >= AppConfig.PROGRESS_CHECKPOINT_INTERVAL)
+                iterator.remove();
+    }
+
+    /**
+     * @return the intent with the files that are kept, so another process can restore them
+     */
+    public synchronized Intent writeTo(Intent intent)
+    {
+        int size = mEntryList.size();
+        long[] groupIds = new long[size];
+        long[] requestIds = new long[size];
+        String[] deviceIds = new String[size];
+        String[] types = new String[size];
+        long[] byteCounts = new long[size];
+        long[] checkpointBytes = new long[size];
+        int position = 0;
+
+        for (Entry entry : mEntryList.values()) {
+            groupIds[position] = entry.groupId;
+            requestIds[position] = entry.requestId;
+            deviceIds[position] = entry.deviceId;
+            types[position] = entry.type.toString();
+            byteCounts[position] = entry.byteCount;
+            checkpointBytes[position] = entry.checkpointByte;
+            position++;
+        }
+
+        return intent.putExtra(EXTRA_GROUP_ID_LIST, groupIds)
+                .putExtra(EXTRA_REQUEST_ID_LIST, requestIds)
+                .putExtra(EXTRA_DEVICE_ID_LIST, deviceIds)
+                .putExtra(EXTRA_TYPE_LIST, types)
+                .putExtra(EXTRA_BYTE_LIST, byteCounts)
+                .putExtra(EXTRA_CHECKPOINT_BYTE_LIST, checkpointBytes);
+    }
+
+    public interface Listener
+    {
+        /**
+         * Called on the thread that has changed the journal, and only once in a while.
+         */
+        void onProgress();
+    }
+
+    private static class Entry
+    {
+        private long groupId;
+        private long requestId;
+        private String deviceId;
+        private TransferObject.Type type;
+        private long byteCount;
+        private long time;
+        private long checkpointByte;
+        private long checkpointTime;
+    }
+}
@@ -0,0 +1,1355 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import com.genonbeta.TrebleShot.config.AppConfig;
+import com.genonbeta.TrebleShot.config.Keyword;
+import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.android.framework.io.DocumentFile;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A seamless session keeps data connections open between the sender and the receiver so that
+ * every file of a transfer group can be streamed over them. Each connection is a {@link Lane}
+ * and on each lane, a file is preceded by a length-prefixed header frame and followed by exactly
+ * the number of bytes the header announces.
+ * <p>
+ * The session is negotiated once over the control channel of the seamless server. Peers that do
+ * not know about sessions simply ignore the request and the per-file protocol is used instead.
+ * When there is more than one lane, each of them carries a different file at the same time and
+ * the progress of the session is the sum of them.
+ * <p>
+ * Large files can also be split into a {@link Stripe} whose ranges are requested on different
+ * lanes and written at their own offsets in the same file.
+ * <p>
+ * When the receiver asks for it, the bytes of a file or a range are followed by a trailer frame
+ * that has their checksum, which both sides compute while the bytes pass through them.
+ * <p>
+ * A part file whose source has changed since it was started can be resumed by comparing the
+ * digests of their chunks, after which only the chunks that differ are sent.
+ * <p>
+ * Files that look compressible can be sent as deflated blocks, each of which is preceded by its
+ * original and compressed length. The progress is always counted in the original bytes.
+ * <p>
+ * When both sides agree on it, the header frames are written with {@link HeaderFrameCodec}
+ * instead of JSON text.
+ */
+public class SeamlessSession
+{
+    public static final String TAG = SeamlessSession.class.getSimpleName();
+
+    public static final int FRAME_LENGTH_MAX = 1024 * 1024;
+    public static final int COMPRESSION_SAMPLE_LENGTH = 64 * 1024;
+    public static final double COMPRESSION_ENTROPY_MAX = 7.0;
+
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    // Types that are compressed already, so their bytes don't get any smaller
+    private static final String[] COMPRESSED_TYPES = {"image/", "video/", "audio/", "application/zip",
+            "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+            "application/x-7z-compressed", "application/x-rar-compressed", "application/java-archive",
+            "application/vnd.android.package-archive", "application/epub+zip", "application/pdf",
+            "application/ogg", "application/vnd.openxmlformats-officedocument"};
+
+    // Exceptions to the types above that are not compressed
+    private static final String[] UNCOMPRESSED_TYPES = {"image/svg+xml", "image/bmp", "image/x-ms-bmp",
+            "audio/wav", "audio/x-wav"};
+
+    private final List<Lane> mLaneList = new ArrayList<>();
+    private final Set<Long> mVerifyFailedSet = new HashSet<>();
+    private BandwidthScheduler.Flow mBandwidthFlow;
+    private boolean mChecksumEnabled = false;
+    private boolean mBinaryFraming = false;
+    private long mStartTime = System.currentTimeMillis();
+    private long mTotalByte = 0;
+    private long mTransferredByte = 0;
+    private long mLastNotified = 0;
+    private long mVerifiedByte = 0;
+    private long mVerifyTime = 0;
+    private int mTransferredFileCount = 0;
+
+    public Lane addLane(Socket socket) throws IOException
+    {
+        Lane lane = new Lane(socket);
+
+        synchronized (mLaneList) {
+            mLaneList.add(lane);
+        }
+
+        return lane;
+    }
+
+    public synchronized void addTransferredByte(long transferredByte)
+    {
+        mTransferredByte += transferredByte;
+    }
+
+    public void close()
+    {
+        synchronized (mLaneList) {
+            for (Lane lane : mLaneList)
+                lane.close();
+        }
+    }
+
+    /**
+     * @return the average size of the copy buffers that the lanes use now
+     */
+    public int getBufferLength()
+    {
+        synchronized (mLaneList) {
+            if (mLaneList.size() == 0)
+                return 0;
+
+            long length = 0;
+
+            for (Lane lane : mLaneList)
+                length += lane.getBufferSize().getLength();
+
+            return (int) (length / mLaneList.size());
+        }
+    }
+
+    /**
+     * Splits the chunks that differ between two versions of a file into the ranges that should be
+     * sent. Chunks that follow each other are sent as one range, and the bytes after the part
+     * that both versions have are sent at the end.
+     *
+     * @param differing the indexes of the chunks that differ in ascending order
+     * @param overlap   the byte count that both versions have and that has been compared
+     * @param fileSize  the size of the new version
+     * @return the start and the length of each range in the order they are sent
+     */
+    public static List<long[]> createDeltaRanges(JSONArray differing, long overlap, long fileSize)
+            throws JSONException
+    {
+        List<long[]> rangeList = new ArrayList<>();
+        long chunkLength = getDeltaChunkLength(overlap);
+
+        for (int i = 0; i < differing.length(); i++) {
+            long start = differing.getLong(i) * chunkLength;
+            long end = Math.min(overlap, start + chunkLength);
+            long[] lastRange = rangeList.size() > 0 ? rangeList.get(rangeList.size() - 1) : null;
+
+            if (lastRange != null && lastRange[0] + lastRange[1] == start)
+                lastRange[1] = end - lastRange[0];
+            else
+                rangeList.add(new long[]{start, end - start});
+        }
+
+        if (fileSize > overlap) {
+            long[] lastRange = rangeList.size() > 0 ? rangeList.get(rangeList.size() - 1) : null;
+
+            if (lastRange != null && lastRange[0] + lastRange[1] == overlap)
+                lastRange[1] = fileSize - lastRange[0];
+            else
+                rangeList.add(new long[]{overlap, fileSize - overlap});
+        }
+
+        return rangeList;
+    }
+
+    /**
+     * Computes a digest for each chunk of the first {@param length} bytes of the input, so that
+     * two versions of a file can be compared without sending either of them.
+     *
+     * @param inputStream to read the chunks from
+     * @param length      the byte count to be compared
+     * @return the digests in hex in the order of the chunks
+     * @throws IOException when the input fails or ends before {@param length}
+     */
+    public static JSONArray digestChunks(InputStream inputStream, long length) throws IOException
+    {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        JSONArray chunks = new JSONArray();
+        byte[] buffer = new byte[AppConfig.BUFFER_LENGTH_DEFAULT];
+        long chunkLength = getDeltaChunkLength(length);
+        long read = 0;
+
+        while (read < length) {
+            long chunkEnd = Math.min(length, read + chunkLength);
+
+            while (read < chunkEnd) {
+                int len = inputStream.read(buffer, 0, (int) Math.min(buffer.length, chunkEnd - read));
+
+                if (len == -1)
+                    throw new EOFException("Stream ended before " + length + " bytes were compared");
+
+                digest.update(buffer, 0, len);
+                read += len;
+            }
+
+            StringBuilder hex = new StringBuilder();
+
+            for (byte b : digest.digest())
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+
+            chunks.put(hex.toString());
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Decides whether a file is worth compressing from its type, and if the type doesn't tell,
+     * from the entropy of its first bytes.
+     *
+     * @param mimeType    the type of the file, if known
+     * @param inputStream to read the sample from, positioned at the start of the file
+     * @return true if the bytes of the file are likely to get smaller when they are deflated
+     * @throws IOException when the sample could not be read
+     */
+    public static boolean isCompressible(String mimeType, InputStream inputStream) throws IOException
+    {
+        if (mimeType != null) {
+            String type = mimeType.toLowerCase(Locale.US);
+            boolean uncompressed = false;
+
+            for (String uncompressedType : UNCOMPRESSED_TYPES)
+                if (type.startsWith(uncompressedType)) {
+                    uncompressed = true;
+                    break;
+                }
+
+            if (!uncompressed)
+                for (String compressedType : COMPRESSED_TYPES)
+                    if (type.startsWith(compressedType))
+                        return false;
+        }
+
+        byte[] sample = new byte[COMPRESSION_SAMPLE_LENGTH];
+        int length = 0;
+        int len;
+
+        while (length < sample.length && (len = inputStream.read(sample, length, sample.length - length)) != -1)
+            length += len;
+
+        if (length == 0)
+            return false;
+
+        int[] counts = new int[256];
+        double entropy = 0;
+
+        for (int i = 0; i < length; i++)
+            counts[sample[i] & 0xFF]++;
+
+        for (int count : counts)
+            if (count > 0) {
+                double probability = (double) count / length;
+                entropy -= probability * Math.log(probability);
+            }
+
+        // In bits per byte, where 8 means the bytes are as random as they can be
+        return entropy / Math.log(2) < COMPRESSION_ENTROPY_MAX;
+    }
+
+    /**
+     * @param overlap the byte count that is compared
+     * @return the chunk length that keeps the digests of that many bytes in a single frame
+     */
+    public static long getDeltaChunkLength(long overlap)
+    {
+        long chunkLength = AppConfig.SESSION_DELTA_CHUNK_LENGTH;
+
+        while (overlap / chunkLength >= AppConfig.SESSION_DELTA_CHUNK_COUNT_MAX)
+            chunkLength *= 2;
+
+        return chunkLength;
+    }
+
+    public long getElapsedTime()
+    {
+        return System.currentTimeMillis() - mStartTime;
+    }
+
+    public List<Lane> getLaneList()
+    {
+        return mLaneList;
+    }
+
+    public synchronized int getPercentage()
+    {
+        return mTotalByte <= 0 ? 0 : (int) Math.min(100, (mTransferredByte * 100) / mTotalByte);
+    }
+
+    /**
+     * @return the average size of the socket buffers that the lanes use now
+     */
+    public int getSocketBufferLength()
+    {
+        synchronized (mLaneList) {
+            if (mLaneList.size() == 0)
+                return 0;
+
+            long length = 0;
+
+            for (Lane lane : mLaneList)
+                length += lane.getBufferSize().getSocketLength();
+
+            return (int) (length / mLaneList.size());
+        }
+    }
+
+    public synchronized long getTimeRemaining()
+    {
+        if (mTransferredByte <= 0 || mTotalByte <= mTransferredByte)
+            return 0;
+
+        return (getElapsedTime() * (mTotalByte - mTransferredByte)) / mTransferredByte;
+    }
+
+    public synchronized long getTotalByte()
+    {
+        return mTotalByte;
+    }
+
+    public synchronized long getTransferredByte()
+    {
+        return mTransferredByte;
+    }
+
+    public synchronized int getTransferredFileCount()
+    {
+        return mTransferredFileCount;
+    }
+
+    /**
+     * @return the byte count that has been passed through a checksum
+     */
+    public synchronized long getVerifiedByte()
+    {
+        return mVerifiedByte;
+    }
+
+    /**
+     * @return the time spent on computing checksums in milliseconds, summed up for all the lanes
+     */
+    public synchronized long getVerifyTime()
+    {
+        return mVerifyTime / 1000000;
+    }
+
+    public synchronized void incrementTransferredFileCount()
+    {
+        mTransferredFileCount++;
+    }
+
+    /**
+     * @return true if the header frames are written with {@link HeaderFrameCodec}
+     */
+    public boolean isBinaryFraming()
+    {
+        return mBinaryFraming;
+    }
+
+    /**
+     * @return true if the receiver of this session asks for the checksum of each file
+     */
+    public boolean isChecksumEnabled()
+    {
+        return mChecksumEnabled;
+    }
+
+    /**
+     * @return true if there is at least one lane and all of them have been told that the job is
+     * done
+     */
+    public boolean isJobDone()
+    {
+        synchronized (mLaneList) {
+            if (mLaneList.size() == 0)
+                return false;
+
+            for (Lane lane : mLaneList)
+                if (!lane.isJobDone())
+                    return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param delay the minimum time that should pass between two notifications
+     * @return true if the listeners should be notified about the progress
+     */
+    public synchronized boolean isNotifyTime(long delay)
+    {
+        long currentTime = System.currentTimeMillis();
+
+        if (currentTime - mLastNotified < delay)
+            return false;
+
+        mLastNotified = currentTime;
+        return true;
+    }
+
+    /**
+     * Should be set before the lanes start, since both sides should use the same format from the
+     * first header on.
+     */
+    public void setBinaryFraming(boolean binaryFraming)
+    {
+        mBinaryFraming = binaryFraming;
+    }
+
+    /**
+     * @param flow that the bytes of all the lanes are paid for on, or null to copy them freely
+     */
+    public void setBandwidthFlow(BandwidthScheduler.Flow flow)
+    {
+        mBandwidthFlow = flow;
+    }
+
+    public void setChecksumEnabled(boolean enabled)
+    {
+        mChecksumEnabled = enabled;
+    }
+
+    public synchronized void setTotalByte(long totalByte)
+    {
+        mTotalByte = totalByte;
+    }
+
+    /**
+     * Keeps track of the files whose checksum didn't match, so that a file that keeps failing is
+     * not requested again and again in the same session.
+     *
+     * @param requestId of the file that has failed the verification
+     * @return true if this is the first time the file failed and it should be requested again
+     */
+    public boolean onVerifyFailed(long requestId)
+    {
+        synchronized (mVerifyFailedSet) {
+            return mVerifyFailedSet.add(requestId);
+        }
+    }
+
+    private synchronized void addVerifyTime(long bytes, long time)
+    {
+        mVerifiedByte += bytes;
+        mVerifyTime += time;
+    }
+
+    public interface CopyListener
+    {
+        boolean onCopied(long copied);
+    }
+
+    /**
+     * A single data connection of a session. Lanes don't share anything other than the progress,
+     * so a failing lane doesn't affect the others.
+     */
+    public class Lane
+    {
+        private Socket mSocket;
+        private DataInputStream mInputStream;
+        private DataOutputStream mOutputStream;
+        private ReadableByteChannel mReadableChannel;
+        private Selector mReadSelector;
+        private SelectionKey mReadKey;
+        private AdaptiveBufferSize mBufferSize = new AdaptiveBufferSize(AppConfig.BUFFER_LENGTH_DEFAULT,
+                AppConfig.BUFFER_LENGTH_DIRECT);
+        private CRC32 mChecksum;
+        private byte[] mChecksumBuffer;
+        private byte[] mPlainBuffer;
+        private byte[] mCompressedBuffer;
+        private byte[] mFrameBuffer;
+        private ByteArrayOutputStream mFrameOutput;
+        private DataOutputStream mFrameDataOutput;
+        private long mHeaderSentTime = 0;
+        private long mLastNotified = 0;
+        private boolean mJobDone = false;
+
+        public Lane(Socket socket) throws IOException
+        {
+            mSocket = socket;
+            // Not buffered, so that nothing after a header is read ahead of the channel
+            mInputStream = new DataInputStream(socket.getInputStream());
+            mOutputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),
+                    AppConfig.BUFFER_LENGTH_DEFAULT));
+
+            mBufferSize.apply(socket);
+        }
+
+        public void close()
+        {
+            try {
+                if (!mSocket.isClosed())
+                    mSocket.close();
+
+                if (mReadSelector != null)
+                    mReadSelector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Puts the channel of the socket back to blocking, so that the headers can be read from the
+         * stream of the socket again.
+         */
+        private void finishChannelRead() throws IOException
+        {
+            if (mReadKey == null)
+                return;
+
+            // The channel can't block while it is still registered, so the key is removed first
+            mReadKey.cancel();
+            mReadKey = null;
+
+            if (mSocket.getChannel().isOpen()) {
+                mReadSelector.selectNow();
+                mSocket.getChannel().configureBlocking(true);
+            }
+        }
+
+        /**
+         * @return the checksum of the bytes since {@link #startChecksum()}, after which no more
+         * bytes are added to it
+         */
+        public long finishChecksum()
+        {
+            long value = mChecksum == null ? 0 : mChecksum.getValue();
+            mChecksum = null;
+
+            return value;
+        }
+
+        public AdaptiveBufferSize getBufferSize()
+        {
+            return mBufferSize;
+        }
+
+        private byte[] getCompressedBuffer(int length)
+        {
+            if (mCompressedBuffer == null || mCompressedBuffer.length < length)
+                mCompressedBuffer = new byte[length];
+
+            return mCompressedBuffer;
+        }
+
+        public DataInputStream getInputStream()
+        {
+            return mInputStream;
+        }
+
+        public DataOutputStream getOutputStream()
+        {
+            return mOutputStream;
+        }
+
+        private byte[] getPlainBuffer(int length)
+        {
+            if (mPlainBuffer == null || mPlainBuffer.length < length)
+                mPlainBuffer = new byte[length];
+
+            return mPlainBuffer;
+        }
+
+        /**
+         * Used only when the socket doesn't have a channel of its own. The bytes then pass through
+         * the small array of the wrapper before they reach the buffer.
+         *
+         * @return the channel that the bytes that follow a header can be read from
+         */
+        private ReadableByteChannel getReadableChannel()
+        {
+            if (mReadableChannel == null)
+                mReadableChannel = Channels.newChannel(mInputStream);
+
+            return mReadableChannel;
+        }
+
+        public SeamlessSession getSession()
+        {
+            return SeamlessSession.this;
+        }
+
+        public Socket getSocket()
+        {
+            return mSocket;
+        }
+
+        public boolean isJobDone()
+        {
+            return mJobDone;
+        }
+
+        /**
+         * Unlike {@link SeamlessSession#isNotifyTime(long)}, this is only for the file of this
+         * lane, so the lanes don't take the turns of each other.
+         *
+         * @param delay the minimum time that should pass between two notifications
+         * @return true if the progress of the file of this lane should be published
+         */
+        public boolean isNotifyTime(long delay)
+        {
+            long currentTime = System.currentTimeMillis();
+
+            if (currentTime - mLastNotified < delay)
+                return false;
+
+            mLastNotified = currentTime;
+            return true;
+        }
+
+        /**
+         * Counts the bytes for the session and lets the buffer sizes of the lane follow the
+         * throughput. When the session has a bandwidth flow, this waits for the bytes to be paid
+         * for before the next copy.
+         */
+        private void onTransferred(long bytes) throws InterruptedIOException
+        {
+            // What is read after the bytes is not an answer to a header anymore
+            mHeaderSentTime = 0;
+
+            addTransferredByte(bytes);
+
+            if (mBufferSize.onTransferred(bytes))
+                mBufferSize.apply(mSocket);
+
+            if (mBandwidthFlow != null)
+                mBandwidthFlow.consume(bytes);
+        }
+
+        /**
+         * Reads the bytes that follow a header into the buffer, as many as it has room for. Between
+         * {@link #startChannelRead()} and {@link #finishChannelRead()}, they go from the channel of
+         * the socket to the buffer without being copied on the way.
+         *
+         * @return the byte count that has been read, or -1 if the lane has ended
+         */
+        private int read(ByteBuffer buffer) throws IOException
+        {
+            if (mReadKey == null)
+                return getReadableChannel().read(buffer);
+
+            int timeout = mSocket.getSoTimeout();
+
+            while (true) {
+                int len = mSocket.getChannel().read(buffer);
+
+                if (len != 0)
+                    return len;
+
+                // The channel ignores the timeout of the socket, so it is applied here, otherwise
+                // a stalled lane would wait forever instead of failing so that it can be retried
+                if (mReadSelector.select(timeout) > 0)
+                    mReadSelector.selectedKeys().clear();
+                else if (timeout > 0)
+                    throw new SocketTimeoutException("Lane received nothing in " + timeout + " ms");
+            }
+        }
+
+        public JSONObject readHeader() throws IOException, JSONException
+        {
+            byte[] lengthBytes = new byte[4];
+            mInputStream.readFully(lengthBytes);
+
+            if (mHeaderSentTime > 0) {
+                mBufferSize.onRoundTrip(System.currentTimeMillis() - mHeaderSentTime);
+                mHeaderSentTime = 0;
+            }
+
+            int length = ByteBuffer.wrap(lengthBytes).getInt();
+
+            if (length < 0 || length > FRAME_LENGTH_MAX)
+                throw new StreamCorruptedException("Header frame has an invalid length: " + length);
+
+            if (mFrameBuffer == null || mFrameBuffer.length < length)
+                mFrameBuffer = new byte[Math.max(length, 256)];
+
+            mInputStream.readFully(mFrameBuffer, 0, length);
+
+            return mBinaryFraming
+                    ? HeaderFrameCodec.decode(mFrameBuffer, length)
+                    : new JSONObject(new String(mFrameBuffer, 0, length, "UTF-8"));
+        }
+
+        /**
+         * Receives exactly {@param length} bytes and writes them to the given position of the
+         * channel, so that a file can be resumed or received in ranges without seeking a stream.
+         * When the lane ends before that, it can no longer be trusted since the other side is
+         * still sending the remaining bytes, so an {@link EOFException} is thrown.
+         *
+         * @param fileChannel to write to
+         * @param position    where the first byte should go
+         * @param length      the byte count that should be received
+         * @param buffer      the buffer to be used during the copy
+         * @param listener    notified after each write, can stop the copy by returning false
+         * @return the byte count that has been received
+         * @throws IOException when one of the channels fails or the lane ends early
+         */
+        public long receive(FileChannel fileChannel, long position, long length, ByteBuffer buffer,
+                            CopyListener listener) throws IOException
+        {
+            long copied = 0;
+
+            startChannelRead();
+
+            try {
+                while (copied < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(Math.min(buffer.capacity(), mBufferSize.getLength()),
+                            length - copied));
+
+                    int len = read(buffer);
+
+                    if (len == -1)
+                        throw new EOFException("Lane ended before " + length + " bytes were received");
+
+                    buffer.flip();
+                    updateChecksum(buffer);
+
+                    while (buffer.hasRemaining())
+                        fileChannel.write(buffer, position + copied + buffer.position());
+
+                    copied += len;
+                    onTransferred(len);
+
+                    if (listener != null && !listener.onCopied(copied))
+                        break;
+                }
+            } finally {
+                finishChannelRead();
+            }
+
+            return copied;
+        }
+
+        /**
+         * Same as {@link #receive(FileChannel, long, long, ByteBuffer, CopyListener)} but for the
+         * files that can only be written as a stream.
+         */
+        public long receive(OutputStream outputStream, long length, ByteBuffer buffer,
+                            CopyListener listener) throws IOException
+        {
+            WritableByteChannel writableChannel = Channels.newChannel(outputStream);
+            long copied = 0;
+
+            startChannelRead();
+
+            try {
+                while (copied < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(Math.min(buffer.capacity(), mBufferSize.getLength()),
+                            length - copied));
+
+                    int len = read(buffer);
+
+                    if (len == -1)
+                        throw new EOFException("Lane ended before " + length + " bytes were received");
+
+                    buffer.flip();
+                    updateChecksum(buffer);
+
+                    while (buffer.hasRemaining())
+                        writableChannel.write(buffer);
+
+                    copied += len;
+                    onTransferred(len);
+
+                    if (listener != null && !listener.onCopied(copied))
+                        break;
+                }
+            } finally {
+                finishChannelRead();
+            }
+
+            outputStream.flush();
+            return copied;
+        }
+
+        /**
+         * Sends {@param length} bytes of the input starting from {@param position}. When the input
+         * is a file and the lane has a channel, the bytes are passed to the socket by the system
+         * without being copied into the memory of the app. Otherwise, they are copied through the
+         * given buffer.
+         *
+         * @param inputStream to read from
+         * @param position    the byte count to skip before sending
+         * @param length      the byte count that should be sent
+         * @param buffer      the buffer to be used when the input is not a file
+         * @param listener    notified after each write, can stop the copy by returning false
+         * @return the byte count that has been sent
+         * @throws IOException when one of the streams fails or the input ends early
+         */
+        public long send(InputStream inputStream, long position, long length, ByteBuffer buffer,
+                         CopyListener listener) throws IOException
+        {
+            SocketChannel socketChannel = mSocket.getChannel();
+            FileChannel fileChannel = null;
+
+            // The header should leave before the bytes that are written to the channel directly
+            mOutputStream.flush();
+
+            if (mChecksum == null && socketChannel != null && inputStream instanceof FileInputStream)
+                try {
+                    fileChannel = ((FileInputStream) inputStream).getChannel();
+
+                    // Pipes and sockets that look like files can't be positioned
+                    if (fileChannel.size() < position + length)
+                        fileChannel = null;
+                } catch (IOException e) {
+                    fileChannel = null;
+                }
+
+            return fileChannel == null
+                    ? send(inputStream, socketChannel, position, length, buffer, listener)
+                    : send(fileChannel, socketChannel, position, length, listener);
+        }
+
+        private long send(FileChannel fileChannel, SocketChannel socketChannel, long position,
+                          long length, CopyListener listener) throws IOException
+        {
+            long copied = 0;
+
+            while (copied < length) {
+                long len = fileChannel.transferTo(position + copied,
+                        Math.min(mBufferSize.getLength(), length - copied), socketChannel);
+
+                if (len <= 0)
+                    throw new EOFException("File ended before " + length + " bytes were sent");
+
+                copied += len;
+                onTransferred(len);
+
+                if (listener != null && !listener.onCopied(copied))
+                    break;
+            }
+
+            return copied;
+        }
+
+        private long send(InputStream inputStream, SocketChannel socketChannel, long position,
+                          long length, ByteBuffer buffer, CopyListener listener) throws IOException
+        {
+            skip(inputStream, position);
+
+            ReadableByteChannel readableChannel = Channels.newChannel(inputStream);
+            WritableByteChannel writableChannel = socketChannel == null
+                    ? Channels.newChannel(mSocket.getOutputStream())
+                    : socketChannel;
+            long copied = 0;
+
+            while (copied < length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(Math.min(buffer.capacity(), mBufferSize.getLength()),
+                        length - copied));
+
+                int len = readableChannel.read(buffer);
+
+                if (len == -1)
+                    throw new EOFException("Stream ended before " + length + " bytes were sent");
+
+                buffer.flip();
+                updateChecksum(buffer);
+
+                while (buffer.hasRemaining())
+                    writableChannel.write(buffer);
+
+                copied += len;
+                onTransferred(len);
+
+                if (listener != null && !listener.onCopied(copied))
+                    break;
+            }
+
+            return copied;
+        }
+
+        /**
+         * Same as {@link #receive(OutputStream, long, ByteBuffer, CopyListener)} but for the
+         * bytes that are sent with {@link #sendCompressed(InputStream, long, long, CopyListener)}.
+         *
+         * @param length the byte count that should be received after they are inflated
+         * @return the byte count that has been received after they are inflated
+         * @throws IOException when the output fails, the lane ends early or a block is corrupt
+         */
+        public long receiveCompressed(OutputStream outputStream, long length, CopyListener listener)
+                throws IOException
+        {
+            Inflater inflater = new Inflater();
+            long copied = 0;
+
+            try {
+                while (copied < length) {
+                    int plainLength = mInputStream.readInt();
+                    int compressedLength = mInputStream.readInt();
+
+                    // The sender never makes a block larger than its buffer, so a larger one is
+                    // not allocated whatever the rest of the file is
+                    if (plainLength <= 0 || plainLength > length - copied || plainLength > FRAME_LENGTH_MAX
+                            || compressedLength <= 0 || compressedLength > FRAME_LENGTH_MAX)
+                        throw new StreamCorruptedException("Compressed block has an invalid length: "
+                                + compressedLength + "/" + plainLength);
+
+                    byte[] plain = getPlainBuffer(plainLength);
+                    byte[] compressed = getCompressedBuffer(compressedLength);
+                    int inflated = 0;
+
+                    mInputStream.readFully(compressed, 0, compressedLength);
+
+                    inflater.reset();
+                    inflater.setInput(compressed, 0, compressedLength);
+
+                    try {
+                        while (inflated < plainLength && !inflater.finished()) {
+                            int len = inflater.inflate(plain, inflated, plainLength - inflated);
+
+                            if (len == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                                break;
+
+                            inflated += len;
+                        }
+                    } catch (DataFormatException e) {
+                        throw new StreamCorruptedException("Compressed block is corrupt: " + e.getMessage());
+                    }
+
+                    if (inflated != plainLength)
+                        throw new StreamCorruptedException("Compressed block has " + inflated
+                                + " bytes instead of " + plainLength);
+
+                    updateChecksum(ByteBuffer.wrap(plain, 0, inflated));
+                    outputStream.write(plain, 0, inflated);
+
+                    copied += inflated;
+                    onTransferred(inflated);
+
+                    if (listener != null && !listener.onCopied(copied))
+                        break;
+                }
+            } finally {
+                inflater.end();
+            }
+
+            outputStream.flush();
+            return copied;
+        }
+
+        /**
+         * Sends {@param length} bytes of the input starting from {@param position} as deflated
+         * blocks. Each block is compressed on its own, so the receiver can inflate it as soon as it
+         * arrives.
+         *
+         * @return the byte count that has been sent before it was compressed
+         * @throws IOException when one of the streams fails or the input ends early
+         */
+        public long sendCompressed(InputStream inputStream, long position, long length,
+                                   CopyListener listener) throws IOException
+        {
+            skip(inputStream, position);
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            long copied = 0;
+
+            try {
+                while (copied < length) {
+                    int plainLength = (int) Math.min(mBufferSize.getLength(), length - copied);
+                    byte[] plain = getPlainBuffer(plainLength);
+                    byte[] compressed = getCompressedBuffer(plainLength + plainLength / 8 + 64);
+                    int compressedLength = 0;
+                    int read = 0;
+
+                    while (read < plainLength) {
+                        int len = inputStream.read(plain, read, plainLength - read);
+
+                        if (len == -1)
+                            throw new EOFException("Stream ended before " + length + " bytes were sent");
+
+                        read += len;
+                    }
+
+                    updateChecksum(ByteBuffer.wrap(plain, 0, plainLength));
+
+                    deflater.reset();
+                    deflater.setInput(plain, 0, plainLength);
+                    deflater.finish();
+
+                    while (!deflater.finished()) {
+                        if (compressedLength == compressed.length)
+                            compressed = mCompressedBuffer = Arrays.copyOf(compressed, compressed.length * 2);
+
+                        compressedLength += deflater.deflate(compressed, compressedLength,
+                                compressed.length - compressedLength);
+                    }
+
+                    mOutputStream.writeInt(plainLength);
+                    mOutputStream.writeInt(compressedLength);
+                    mOutputStream.write(compressed, 0, compressedLength);
+
+                    copied += plainLength;
+                    onTransferred(plainLength);
+
+                    if (listener != null && !listener.onCopied(copied))
+                        break;
+                }
+
+                mOutputStream.flush();
+            } finally {
+                deflater.end();
+            }
+
+            return copied;
+        }
+
+        public void setJobDone(boolean jobDone)
+        {
+            mJobDone = jobDone;
+        }
+
+        private void skip(InputStream inputStream, long position) throws IOException
+        {
+            while (position > 0) {
+                long skipped = inputStream.skip(position);
+
+                if (skipped <= 0)
+                    throw new IOException("Could not skip the bytes that the receiver has");
+
+                position -= skipped;
+            }
+        }
+
+        /**
+         * Lets the bytes that follow a header be read from the channel of the socket when it has
+         * one. The channel doesn't block until {@link #finishChannelRead()}, so that
+         * {@link #read(ByteBuffer)} can wait for it with the timeout of the socket.
+         */
+        private void startChannelRead() throws IOException
+        {
+            SocketChannel socketChannel = mSocket.getChannel();
+
+            if (socketChannel == null)
+                return;
+
+            if (mReadSelector == null)
+                mReadSelector = Selector.open();
+
+            socketChannel.configureBlocking(false);
+            mReadKey = socketChannel.register(mReadSelector, SelectionKey.OP_READ);
+        }
+
+        /**
+         * Starts computing the checksum of the bytes that are sent or received on this lane. The
+         * files are not sent with {@link FileChannel#transferTo} while it is computed, since
+         * their bytes never pass through the app then.
+         */
+        public void startChecksum()
+        {
+            mChecksum = new CRC32();
+
+            if (mChecksumBuffer == null)
+                mChecksumBuffer = new byte[AppConfig.BUFFER_LENGTH_DEFAULT];
+        }
+
+        /**
+         * Adds the remaining bytes of the buffer to the checksum without moving its position.
+         */
+        private void updateChecksum(ByteBuffer buffer)
+        {
+            if (mChecksum == null)
+                return;
+
+            long startTime = System.nanoTime();
+            int length = buffer.remaining();
+
+            if (buffer.hasArray())
+                mChecksum.update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            else {
+                // The checksum can't read a direct buffer on the older versions
+                ByteBuffer view = buffer.duplicate();
+
+                while (view.hasRemaining()) {
+                    int len = Math.min(view.remaining(), mChecksumBuffer.length);
+
+                    view.get(mChecksumBuffer, 0, len);
+                    mChecksum.update(mChecksumBuffer, 0, len);
+                }
+            }
+
+            addVerifyTime(length, System.nanoTime() - startTime);
+        }
+
+        /**
+         * Finishes the checksum and compares it with the one in the trailer that the other side
+         * sends after the bytes.
+         *
+         * @return true if the bytes are the same as the ones that were sent
+         */
+        public boolean verifyChecksum() throws IOException, JSONException
+        {
+            long checksum = finishChecksum();
+            JSONObject trailer = readHeader();
+
+            return trailer.has(Keyword.TRANSFER_CHECKSUM)
+                    && trailer.getLong(Keyword.TRANSFER_CHECKSUM) == checksum;
+        }
+
+        /**
+         * Finishes the checksum and sends it in a trailer for {@link #verifyChecksum()}.
+         */
+        public void writeChecksum() throws IOException, JSONException
+        {
+            writeHeader(new JSONObject().put(Keyword.TRANSFER_CHECKSUM, finishChecksum()));
+        }
+
+        public void writeHeader(JSONObject header) throws IOException, JSONException
+        {
+            if (mBinaryFraming) {
+                if (mFrameOutput == null) {
+                    mFrameOutput = new ByteArrayOutputStream(256);
+                    mFrameDataOutput = new DataOutputStream(mFrameOutput);
+                }
+
+                mFrameOutput.reset();
+                HeaderFrameCodec.encode(header, mFrameDataOutput);
+                mFrameDataOutput.flush();
+
+                if (mFrameOutput.size() > FRAME_LENGTH_MAX)
+                    throw new StreamCorruptedException("Header frame is too long: " + mFrameOutput.size());
+
+                mOutputStream.writeInt(mFrameOutput.size());
+                mFrameOutput.writeTo(mOutputStream);
+            } else {
+                byte[] frame = header.toString().getBytes("UTF-8");
+
+                mOutputStream.writeInt(frame.length);
+                mOutputStream.write(frame);
+            }
+
+            mOutputStream.flush();
+
+            mHeaderSentTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A file that is received in ranges of {@link AppConfig#SESSION_RANGE_LENGTH} bytes. The ranges
+     * that are already in the file are kept as a string of '0' and '1' in
+     * {@link TransferObject#ranges}, so an interrupted file only loses the ranges that were not
+     * complete.
+     */
+    public static class Stripe
+    {
+        private TransferObject mTransferObject;
+        private DocumentFile mFile;
+        private ParcelFileDescriptor mDescriptor;
+        private FileChannel mChannel;
+        private BitSet mCompleted = new BitSet();
+        private BitSet mClaimed = new BitSet();
+        private int mRangeCount;
+        private boolean mFailed = false;
+
+        public Stripe(TransferObject transferObject, DocumentFile file)
+        {
+            mTransferObject = transferObject;
+            mFile = file;
+            mRangeCount = (int) ((transferObject.fileSize + AppConfig.SESSION_RANGE_LENGTH - 1)
+                    / AppConfig.SESSION_RANGE_LENGTH);
+
+            String ranges = transferObject.ranges;
+
+            // A different range count means the file has changed, so nothing in it can be trusted
+            if (ranges != null && ranges.length() == mRangeCount)
+                for (int i = 0; i < mRangeCount; i++)
+                    if (ranges.charAt(i) == '1')
+                        mCompleted.set(i);
+
+            transferObject.ranges = toString();
+        }
+
+        /**
+         * @return the index of a range that nobody is working on, or -1 if there is none left
+         */
+        public synchronized int claim()
+        {
+            if (mFailed)
+                return -1;
+
+            for (int i = 0; i < mRangeCount; i++)
+                if (!mCompleted.get(i) && !mClaimed.get(i)) {
+                    mClaimed.set(i);
+                    return i;
+                }
+
+            return -1;
+        }
+
+        public synchronized void close()
+        {
+            try {
+                if (mChannel != null)
+                    mChannel.close();
+
+                if (mDescriptor != null)
+                    mDescriptor.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            mChannel = null;
+            mDescriptor = null;
+        }
+
+        /**
+         * Marks the range as received.
+         *
+         * @param range that has been received
+         * @return true if this was the last range that was missing
+         */
+        public synchronized boolean complete(int range)
+        {
+            boolean wasComplete = isComplete();
+
+            mClaimed.clear(range);
+            mCompleted.set(range);
+            mTransferObject.ranges = toString();
+
+            return !wasComplete && isComplete();
+        }
+
+        public synchronized long getCompletedLength()
+        {
+            long length = 0;
+
+            for (int i = mCompleted.nextSetBit(0); i >= 0; i = mCompleted.nextSetBit(i + 1))
+                length += getRangeLength(i);
+
+            return length;
+        }
+
+        public DocumentFile getFile()
+        {
+            return mFile;
+        }
+
+        public long getRangeLength(int range)
+        {
+            return Math.min(AppConfig.SESSION_RANGE_LENGTH, mTransferObject.fileSize - getRangeStart(range));
+        }
+
+        public long getRangeStart(int range)
+        {
+            return (long) range * AppConfig.SESSION_RANGE_LENGTH;
+        }
+
+        public TransferObject getTransferObject()
+        {
+            return mTransferObject;
+        }
+
+        public synchronized boolean isComplete()
+        {
+            return mCompleted.cardinality() == mRangeCount;
+        }
+
+        public synchronized boolean isFailed()
+        {
+            return mFailed;
+        }
+
+        /**
+         * Opens the file for writing at any position if it is not open already. The file is not
+         * truncated, so the ranges that are already there are kept. Since the ranges, and not the
+         * length, tell what the file has, the whole file is allocated at once where possible so
+         * that the ranges don't end up scattered on the disk.
+         */
+        public synchronized FileChannel open(Context context) throws IOException
+        {
+            if (mChannel == null) {
+                mDescriptor = context.getContentResolver().openFileDescriptor(mFile.getUri(), "rw");
+
+                if (mDescriptor == null)
+                    throw new IOException("Could not open the file for writing: " + mFile.getUri());
+
+                mChannel = new FileOutputStream(mDescriptor.getFileDescriptor()).getChannel();
+
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                        && mChannel.size() < mTransferObject.fileSize)
+                    try {
+                        Os.posix_fallocate(mDescriptor.getFileDescriptor(), 0, mTransferObject.fileSize);
+                    } catch (ErrnoException e) {
+                        // Not every file system supports it, the ranges will be written anyway
+                        e.printStackTrace();
+                    }
+            }
+
+            return mChannel;
+        }
+
+        /**
+         * Gives up on a range so that it can be claimed again.
+         */
+        public synchronized void release(int range)
+        {
+            mClaimed.clear(range);
+        }
+
+        public synchronized void setFailed()
+        {
+            mFailed = true;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            StringBuilder builder = new StringBuilder(mRangeCount);
+
+            for (int i = 0; i < mRangeCount; i++)
+                builder.append(mCompleted.get(i) ? '1' : '0');
+
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,1201 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.util.Log;
+
+import com.genonbeta.CoolSocket.CoolSocket;
+import com.genonbeta.TrebleShot.config.AppConfig;
+import com.genonbeta.TrebleShot.config.Keyword;
+import com.genonbeta.TrebleShot.object.NetworkDevice;
+import com.genonbeta.TrebleShot.object.TransferGroup;
+import com.genonbeta.TrebleShot.object.TransferInstance;
+import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.service.CommunicationService;
+import com.genonbeta.android.framework.io.DocumentFile;
+import com.genonbeta.android.framework.io.LocalDocumentFile;
+import com.genonbeta.android.framework.io.StreamInfo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The side of a {@link SeamlessSession} that receives the files. Each lane claims a pending file
+ * and asks the sender for it, so that no file is received twice. The files that other devices
+ * receiving the same group have completed can also be received from them while the lanes go on
+ * with the rest.
+ */
+public class SessionReceiver extends SessionTransfer
+{
+    public static final String TAG = SessionReceiver.class.getSimpleName();
+
+    private final TransferInstance mTransfer;
+    private final Set<Long> mOngoingList = new HashSet<>();
+    private final List<SeamlessSession.Stripe> mStripeList = new ArrayList<>();
+    private final List<CommunicationService.ProcessHolder> mFailedLaneList = new ArrayList<>();
+    private final AtomicBoolean mLanesRunning = new AtomicBoolean(true);
+
+    public SessionReceiver(CommunicationService service, TransferInstance transferInstance,
+                           CommunicationService.ProcessHolder processHolder)
+    {
+        super(service, processHolder);
+        mTransfer = transferInstance;
+    }
+
+    /**
+     * Asks a peer for the files that it has received completely.
+     *
+     * @return false if the peer could not be reached or refused to answer
+     */
+    private boolean refreshPeerAvailability(long groupId, PeerSource peer)
+    {
+        try {
+            CoolSocket.ActiveConnection activeConnection = new CommunicationBridge.Client(getDatabase())
+                    .communicate(new NetworkDevice(peer.deviceId), new NetworkDevice.Connection(peer.ipAddress));
+
+            try {
+                activeConnection.reply(new JSONObject()
+                        .put(Keyword.REQUEST, Keyword.REQUEST_AVAILABILITY)
+                        .put(Keyword.TRANSFER_GROUP_ID, groupId)
+                        .toString());
+
+                JSONObject response = new JSONObject(activeConnection.receive().response);
+
+                if (!response.has(Keyword.RESULT) || !response.getBoolean(Keyword.RESULT))
+                    return false;
+
+                JSONArray availableArray = response.getJSONArray(Keyword.TRANSFER_AVAILABLE);
+                Set<Long> availableList = new HashSet<>();
+
+                for (int i = 0; i < availableArray.length(); i++)
+                    availableList.add(availableArray.getLong(i));
+
+                peer.setAvailableList(availableList);
+            } finally {
+                activeConnection.getSocket().close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Picks a pending file that the peer has and claims it so that the lanes leave it alone.
+     * A peer that is known to be slower than a lane of the sender claims nothing, and a file
+     * that an idle and faster peer also has is left to that peer.
+     */
+    private TransferObject claimPeerFile(PeerSource peer, List<PeerSource> peerList)
+    {
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+        long peerByte = 0;
+
+        for (PeerSource otherPeer : peerList)
+            peerByte += otherPeer.getTransferredByte();
+
+        long laneThroughput = (getSession().getTransferredByte() - peerByte)
+                / Math.max(1, getSession().getElapsedTime())
+                / Math.max(1, getSession().getLaneList().size());
+
+        if (peer.isMeasured() && peer.getThroughput() < laneThroughput)
+            return null;
+
+        synchronized (mOngoingList) {
+            for (Long requestId : peer.getAvailableList()) {
+                if (mOngoingList.contains(requestId) || isFasterPeerIdle(peer, peerList, requestId))
+                    continue;
+
+                TransferObject transferObject = processHolder.pendingQueue.take(requestId);
+
+                if (transferObject == null)
+                    continue;
+
+                // Small files go faster in batches from the sender than one by one from a peer
+                if (transferObject.ranges != null
+                        || transferObject.fileSize <= AppConfig.SESSION_BATCH_FILE_LENGTH_MAX) {
+                    processHolder.pendingQueue.offer(transferObject);
+                    continue;
+                }
+
+                mOngoingList.add(requestId);
+                peer.busy = true;
+
+                return transferObject;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Completes a file that has been received as a whole on a lane.
+     */
+    private void finishIncomingFile(CommunicationService.ProcessHolder laneHolder)
+    {
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+
+        if (getService().completeIncomingFile(laneHolder, laneHolder.transferObject.fileSize)) {
+            getSession().incrementTransferredFileCount();
+
+            // The last completed file is what the notification refers to in the end
+            synchronized (processHolder) {
+                processHolder.transferObject = laneHolder.transferObject;
+                processHolder.currentFile = laneHolder.currentFile;
+            }
+        }
+
+        getService().notifyIncomingFileChanged(laneHolder);
+    }
+
+    private boolean isFasterPeerIdle(PeerSource peer, List<PeerSource> peerList, long requestId)
+    {
+        for (PeerSource otherPeer : peerList)
+            if (otherPeer != peer && !otherPeer.busy && !otherPeer.failed && otherPeer.isMeasured()
+                    && (!peer.isMeasured() || otherPeer.getThroughput() > peer.getThroughput())
+                    && otherPeer.getAvailableList().contains(requestId))
+                return true;
+
+        return false;
+    }
+
+    /**
+     * @return true if the file should be received in ranges shared by the lanes
+     */
+    private boolean isStriped(TransferObject transferObject)
+    {
+        return transferObject.ranges != null || (transferObject.fileSize >= AppConfig.SESSION_STRIPE_LENGTH_MIN
+                && getSession().getLaneList().size() > 1);
+    }
+
+    /**
+     * Asks the sender for the other devices that it sends the group to. Those devices are
+     * then also let to ask this device for the files that it has received.
+     *
+     * @return the devices that the files can be received from, which is empty when the
+     * sender doesn't know about them
+     */
+    private List<PeerSource> loadGroupPeers(long groupId)
+    {
+        List<PeerSource> peerList = new ArrayList<>();
+
+        try {
+            CoolSocket.ActiveConnection activeConnection = new CommunicationBridge.Client(getDatabase())
+                    .communicate(mTransfer.getDevice(), mTransfer.getConnection());
+
+            try {
+                activeConnection.reply(new JSONObject()
+                        .put(Keyword.REQUEST, Keyword.REQUEST_GROUP_PEERS)
+                        .put(Keyword.TRANSFER_GROUP_ID, groupId)
+                        .toString());
+
+                JSONObject response = new JSONObject(activeConnection.receive().response);
+
+                if (!response.has(Keyword.RESULT) || !response.getBoolean(Keyword.RESULT))
+                    return peerList;
+
+                JSONArray peersArray = response.getJSONArray(Keyword.TRANSFER_PEERS);
+                Set<String> peerIdList = new HashSet<>();
+
+                for (int i = 0; i < peersArray.length(); i++) {
+                    JSONObject peerObject = peersArray.getJSONObject(i);
+                    PeerSource peer = new PeerSource(peerObject.getString(Keyword.TRANSFER_DEVICE_ID),
+                            peerObject.getString(Keyword.NETWORK_ADDRESS_IP));
+
+                    peerList.add(peer);
+                    peerIdList.add(peer.deviceId);
+                }
+
+                getService().setGroupPeers(groupId, peerIdList);
+            } finally {
+                activeConnection.getSocket().close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        Log.d(TAG, "loadGroupPeers(): " + peerList.size() + " peers for " + groupId);
+
+        return peerList;
+    }
+
+    @Override
+    protected void onBytesCopied()
+    {
+        // Some bytes have been received, so another recovery can be tried
+        getProcessHolder().recoverInterruptions = false;
+        getProcessHolder().attemptsLeft = 2;
+    }
+
+    @Override
+    protected void onLane(CommunicationService.ProcessHolder laneHolder)
+    {
+        if (receiveLane(laneHolder))
+            synchronized (mFailedLaneList) {
+                mFailedLaneList.add(laneHolder);
+            }
+    }
+
+    /**
+     * Receives the pending files over the data connections that the sender opens to
+     * {@param serverSocket}. Each connection is a lane that claims a pending file and requests
+     * it with a header frame, and the sender answers with its own header followed by the bytes
+     * of the file.
+     *
+     * @param serverSocket  the socket that the sender will connect to
+     * @param laneCount     the number of data connections that was agreed on
+     * @param binaryFraming true if the header frames should be written in binary
+     * @return true if the session failed in a way that receiving should be tried again
+     */
+    public boolean receive(ServerSocket serverSocket, int laneCount, boolean binaryFraming)
+    {
+        final CommunicationService.ProcessHolder processHolder = getProcessHolder();
+
+        processHolder.session = new SeamlessSession();
+        processHolder.session.setBinaryFraming(binaryFraming);
+
+        try {
+            serverSocket.setSoTimeout(AppConfig.DEFAULT_SOCKET_TIMEOUT);
+
+            for (int i = 0; i < laneCount; i++) {
+                Socket socket = serverSocket.accept();
+                socket.setSoTimeout(AppConfig.DEFAULT_SOCKET_TIMEOUT_LARGE);
+
+                processHolder.session.addLane(socket);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            processHolder.session.close();
+            return true;
+        } finally {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        {
+            TransferGroup.Index indexInstance = new TransferGroup.Index();
+            getDatabase().calculateTransactionSize(processHolder.groupId, indexInstance);
+            AppUtils.getProgressJournal().addUnsavedByte(processHolder.groupId, indexInstance);
+            processHolder.session.setTotalByte(indexInstance.incoming - indexInstance.incomingCompleted);
+            getService().applyBandwidthPriority(processHolder, indexInstance.incoming - indexInstance.incomingCompleted);
+        }
+
+        processHolder.session.setBandwidthFlow(processHolder.bandwidthFlow);
+
+        processHolder.session.setChecksumEnabled(getService().getDefaultPreferences()
+                .getBoolean("verify_transfers", false));
+
+        final List<PeerSource> peerList = getService().getDefaultPreferences().getBoolean("peer_assist", false)
+                ? loadGroupPeers(processHolder.groupId)
+                : new ArrayList<PeerSource>();
+        List<Thread> peerThreadList = new ArrayList<>();
+
+        for (final PeerSource peer : peerList) {
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    if (receiveFromPeer(peer, peerList))
+                        synchronized (mFailedLaneList) {
+                            mFailedLaneList.add(processHolder);
+                        }
+                }
+            };
+
+            peerThreadList.add(thread);
+            thread.start();
+        }
+
+        runLanes();
+
+        synchronized (mLanesRunning) {
+            mLanesRunning.set(false);
+            mLanesRunning.notifyAll();
+        }
+
+        for (Thread thread : peerThreadList)
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                processHolder.builder.getTransferProgress().interrupt();
+            }
+
+        reportVerification();
+
+        // The striped files that are still missing ranges keep what they have for the next time
+        for (SeamlessSession.Stripe stripe : mStripeList) {
+            TransferObject transferObject = stripe.getTransferObject();
+
+            stripe.close();
+
+            if (stripe.isComplete())
+                continue;
+
+            if (!stripe.isFailed())
+                transferObject.flag = TransferObject.Flag.INTERRUPTED;
+
+            getDatabase().update(transferObject);
+        }
+
+        if (mFailedLaneList.size() > 0 && !processHolder.recoverInterruptions) {
+            TransferUtils.recoverIncomingInterruptions(getService(), processHolder.groupId);
+            processHolder.recoverInterruptions = true;
+        }
+
+        return mFailedLaneList.size() > 0;
+    }
+
+    /**
+     * Receives small files one after another in a single request, so that there is only one
+     * round trip and one database transaction for all of them. The sender answers with the size
+     * of each file, and the bytes of the files it could open follow in the same order.
+     *
+     * @param batchList the files that have been claimed for the batch
+     * @return false if a file was cut short and the lane should not be used anymore
+     */
+    private boolean receiveBatch(CommunicationService.ProcessHolder laneHolder, List<TransferObject> batchList,
+                                 ByteBuffer buffer) throws Exception
+    {
+        SeamlessSession.Lane lane = laneHolder.lane;
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+        JSONArray requestIds = new JSONArray();
+
+        for (TransferObject transferObject : batchList)
+            requestIds.put(transferObject.requestId);
+
+        try {
+            lane.writeHeader(new JSONObject()
+                    .put(Keyword.TRANSFER_GROUP_ID, processHolder.groupId)
+                    .put(Keyword.RESULT, true)
+                    .put(Keyword.TRANSFER_BATCH, requestIds)
+                    .put(Keyword.TRANSFER_CHECKSUM, getSession().isChecksumEnabled()));
+
+            JSONObject response = lane.readHeader();
+            JSONArray batchReply = response.getJSONArray(Keyword.TRANSFER_BATCH);
+
+            laneHolder.transferObject = batchList.get(0);
+            notifyLaneTransaction(laneHolder);
+
+            for (int i = 0; i < batchList.size(); i++) {
+                TransferObject transferObject = batchList.get(i);
+                JSONObject fileReply = batchReply.getJSONObject(i);
+
+                if (!fileReply.getBoolean(Keyword.RESULT)) {
+                    getService().applySenderError(transferObject, fileReply);
+                    continue;
+                }
+
+                transferObject.fileSize = fileReply.getLong(Keyword.INDEX_FILE_SIZE);
+                laneHolder.transferObject = transferObject;
+                laneHolder.currentFile = FileUtils.getIncomingTransactionFile(getService().getApplicationContext(),
+                        transferObject, mTransfer.getGroup());
+
+                // Small files are not resumed, what is left from an earlier attempt is dropped
+                if (laneHolder.currentFile.length() > 0) {
+                    laneHolder.currentFile.delete();
+                    laneHolder.currentFile = FileUtils.getIncomingTransactionFile(getService().getApplicationContext(),
+                            transferObject, mTransfer.getGroup());
+                }
+
+                transferObject.skippedBytes = 0;
+
+                if (getSession().isChecksumEnabled())
+                    lane.startChecksum();
+
+                long copied = receiveIncomingFile(lane, laneHolder.currentFile, 0,
+                        transferObject.fileSize, false, buffer, createCopyListener(laneHolder, 0));
+
+                if (copied != transferObject.fileSize) {
+                    transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                    return false;
+                }
+
+                if (getSession().isChecksumEnabled() && !lane.verifyChecksum()) {
+                    requeueIncomingFile(laneHolder);
+                    continue;
+                }
+
+                if (getService().completeIncomingFile(laneHolder, transferObject.fileSize)) {
+                    getSession().incrementTransferredFileCount();
+                    getService().notifyIncomingFileChanged(laneHolder);
+
+                    synchronized (processHolder) {
+                        processHolder.transferObject = laneHolder.transferObject;
+                        processHolder.currentFile = laneHolder.currentFile;
+                    }
+                }
+            }
+        } finally {
+            getDatabase().update(batchList);
+
+            synchronized (mOngoingList) {
+                for (TransferObject transferObject : batchList)
+                    mOngoingList.remove(transferObject.requestId);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Updates a part file whose source has a new size by sending the digests of its chunks and
+     * receiving only the chunks that differ, followed by the bytes it doesn't have yet. When
+     * this fails, the part file is cut at the first range that is missing, so what is left can
+     * still be resumed normally.
+     *
+     * @param currentSize the length of the part file
+     * @return false if a range was cut short and the lane should not be used anymore
+     */
+    private boolean receiveDelta(CommunicationService.ProcessHolder laneHolder, long currentSize,
+                                 ByteBuffer buffer) throws IOException, JSONException
+    {
+        SeamlessSession.Lane lane = laneHolder.lane;
+        TransferObject transferObject = laneHolder.transferObject;
+        File file = ((LocalDocumentFile) laneHolder.currentFile).getFile();
+        long overlap = Math.min(currentSize, transferObject.fileSize);
+        JSONArray chunks;
+
+        {
+            FileInputStream inputStream = new FileInputStream(file);
+
+            try {
+                chunks = SeamlessSession.digestChunks(inputStream, overlap);
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        lane.writeHeader(new JSONObject().put(Keyword.TRANSFER_DELTA, chunks));
+
+        JSONArray differing = lane.readHeader().getJSONArray(Keyword.TRANSFER_DELTA);
+        List<long[]> rangeList = SeamlessSession.createDeltaRanges(differing, overlap,
+                transferObject.fileSize);
+
+        Log.d(TAG, "receiveDelta(): " + differing.length() + " of " + chunks.length()
+                + " chunks differ for " + transferObject.friendlyName);
+
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        long validLength = overlap;
+
+        try {
+            // What the new version doesn't have anymore
+            fileChannel.truncate(overlap);
+
+            for (long[] range : rangeList) {
+                validLength = range[0];
+
+                long copied = lane.receive(fileChannel, range[0], range[1], buffer,
+                        createCopyListener(laneHolder, range[0]));
+
+                if (copied != range[1])
+                    return false;
+            }
+
+            validLength = -1;
+        } finally {
+            if (validLength >= 0 && validLength < fileChannel.size())
+                fileChannel.truncate(validLength);
+
+            fileChannel.close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Keeps receiving the files that a peer has completed while the lanes receive the rest
+     * from the sender. The files that the peer has are checked again after each
+     * {@link AppConfig#PEER_POLL_INTERVAL}, and no new file is claimed after the lanes exit.
+     *
+     * @return true if a file was left pending after the lanes exited, so that receiving
+     * should be tried again for it
+     */
+    private boolean receiveFromPeer(PeerSource peer, List<PeerSource> peerList)
+    {
+        ByteBuffer buffer = getService().getBufferPool().acquire();
+        long refreshTime = 0;
+
+        try {
+            while (mLanesRunning.get() && !isInterrupted()) {
+                if (System.currentTimeMillis() - refreshTime >= AppConfig.PEER_POLL_INTERVAL) {
+                    if (!refreshPeerAvailability(getProcessHolder().groupId, peer))
+                        break;
+
+                    refreshTime = System.currentTimeMillis();
+                }
+
+                TransferObject transferObject = claimPeerFile(peer, peerList);
+
+                if (transferObject == null) {
+                    synchronized (mLanesRunning) {
+                        if (mLanesRunning.get())
+                            mLanesRunning.wait(AppConfig.PEER_POLL_INTERVAL);
+                    }
+
+                    continue;
+                }
+
+                if (!receivePeerFile(peer, transferObject, buffer)) {
+                    // The peer is not used for the rest of the session
+                    peer.failed = true;
+                    return !mLanesRunning.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            getService().getBufferPool().release(buffer);
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the bytes that follow a header to the file. Files on the local storage are
+     * written at the given position through their channel, the others are appended to through
+     * their stream.
+     *
+     * @param position   the length of the file, which is where the first byte goes
+     * @param compressed true if the sender said the bytes come as deflated blocks
+     * @return the byte count that has been received
+     */
+    private long receiveIncomingFile(SeamlessSession.Lane lane, DocumentFile file, long position,
+                                     long length, boolean compressed, ByteBuffer buffer,
+                                     SeamlessSession.CopyListener listener) throws Exception
+    {
+        if (file instanceof LocalDocumentFile) {
+            FileChannel fileChannel = new RandomAccessFile(((LocalDocumentFile) file).getFile(), "rw")
+                    .getChannel();
+
+            try {
+                return compressed
+                        ? lane.receiveCompressed(Channels.newOutputStream(fileChannel.position(position)),
+                        length, listener)
+                        : lane.receive(fileChannel, position, length, buffer, listener);
+            } finally {
+                fileChannel.close();
+            }
+        }
+
+        OutputStream outputStream = StreamInfo.getStreamInfo(getService().getApplicationContext(), file.getUri())
+                .openOutputStream();
+
+        try {
+            return compressed
+                    ? lane.receiveCompressed(outputStream, length, listener)
+                    : lane.receive(outputStream, length, buffer, listener);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * Keeps receiving the pending files on a lane until there is none left. The files that are
+     * being received on the other lanes are kept in the ongoing list so that each file is
+     * claimed only by one lane, except for the striped files whose ranges are shared by all the
+     * lanes.
+     * <p>
+     * While a whole file is being received, the request for the next one is already sent, so
+     * the sender can go on with it as soon as the current one ends.
+     *
+     * @return true if the lane failed in a way that receiving should be tried again
+     */
+    private boolean receiveLane(CommunicationService.ProcessHolder laneHolder)
+    {
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+        SeamlessSession.Lane lane = laneHolder.lane;
+        ByteBuffer buffer = getService().getBufferPool().acquire();
+        TransferObject requestedObject = null;
+        DocumentFile requestedFile = null;
+        long idleTime = 0;
+
+        try {
+            while (!isInterrupted()) {
+                TransferObject transferObject = null;
+                SeamlessSession.Stripe stripe = null;
+                boolean requested = false;
+                int range = -1;
+
+                // The request for this file has been sent while the previous one was streaming
+                if (requestedObject != null) {
+                    transferObject = requestedObject;
+                    laneHolder.transferObject = transferObject;
+                    laneHolder.currentFile = requestedFile;
+                    requested = true;
+                    requestedObject = null;
+                    requestedFile = null;
+                } else {
+                    synchronized (mOngoingList) {
+                        for (SeamlessSession.Stripe openStripe : mStripeList) {
+                            range = openStripe.claim();
+
+                            if (range != -1) {
+                                stripe = openStripe;
+                                break;
+                            }
+                        }
+
+                        if (stripe == null) {
+                            transferObject = processHolder.pendingQueue.poll(mOngoingList);
+
+                            if (transferObject != null)
+                                mOngoingList.add(transferObject.requestId);
+                        }
+                    }
+                }
+
+                if (stripe != null) {
+                    if (!receiveRange(laneHolder, stripe, range, buffer))
+                        break;
+
+                    continue;
+                }
+
+                if (transferObject == null) {
+                    // The index of the group is still coming in pages, so more files can show up.
+                    // The lane waits less than the sender does for a request.
+                    if (getService().getOngoingIndexList().containsKey(processHolder.groupId)
+                            && idleTime < AppConfig.DEFAULT_SOCKET_TIMEOUT_LARGE / 2) {
+                        Thread.sleep(AppConfig.INDEX_PAGE_POLL_INTERVAL);
+                        idleTime += AppConfig.INDEX_PAGE_POLL_INTERVAL;
+                        continue;
+                    }
+
+                    Log.d(TAG, "receiveLane(): Exiting because there is no pending file instance left");
+                    lane.setJobDone(true);
+                    break;
+                }
+
+                idleTime = 0;
+
+                // A requested file always goes as a whole, and its part file is already there
+                if (!requested) {
+                    laneHolder.transferObject = transferObject;
+                    laneHolder.currentFile = FileUtils.getIncomingTransactionFile(getService().getApplicationContext(),
+                            transferObject, mTransfer.getGroup());
+                }
+
+                if (!requested && isStriped(transferObject)) {
+                    stripe = new SeamlessSession.Stripe(transferObject, laneHolder.currentFile);
+                    range = stripe.claim();
+
+                    synchronized (mOngoingList) {
+                        mStripeList.add(stripe);
+                    }
+
+                    if (!receiveRange(laneHolder, stripe, range, buffer))
+                        break;
+
+                    continue;
+                }
+
+                if (!requested && transferObject.fileSize <= AppConfig.SESSION_BATCH_FILE_LENGTH_MAX) {
+                    List<TransferObject> batchList = new ArrayList<>();
+                    batchList.add(transferObject);
+
+                    synchronized (mOngoingList) {
+                        batchList.addAll(processHolder.pendingQueue.pollBatch(AppConfig.SESSION_BATCH_FILE_LENGTH_MAX,
+                                AppConfig.SESSION_BATCH_COUNT_MAX - 1, mOngoingList));
+
+                        for (TransferObject batchObject : batchList)
+                            mOngoingList.add(batchObject.requestId);
+                    }
+
+                    if (!receiveBatch(laneHolder, batchList, buffer))
+                        break;
+
+                    continue;
+                }
+
+                notifyLaneTransaction(laneHolder);
+
+                if (!requested)
+                    transferObject.skippedBytes = laneHolder.currentFile.length();
+
+                long currentSize = transferObject.skippedBytes;
+
+                try {
+                    if (!requested)
+                        writeFileRequest(lane, transferObject, laneHolder.currentFile);
+
+                    JSONObject response = lane.readHeader();
+                    if (Log.isLoggable(TAG, Log.VERBOSE))
+                        Log.v(TAG, "receiveLane(): receive: " + response.toString());
+
+                    if (!response.getBoolean(Keyword.RESULT)) {
+                        if (response.has(Keyword.SIZE_CHANGED)) {
+                            Log.d(TAG, "receiveLane(): The file has a new size and the previous part is not usable");
+                            transferObject.flag = TransferObject.Flag.REMOVED;
+                        } else
+                            getService().applySenderError(transferObject, response);
+
+                        continue;
+                    }
+
+                    if (response.has(Keyword.SIZE_CHANGED))
+                        transferObject.fileSize = response.getLong(Keyword.SIZE_CHANGED);
+
+                    if (response.has(Keyword.TRANSFER_DELTA) && response.getBoolean(Keyword.TRANSFER_DELTA)) {
+                        if (!receiveDelta(laneHolder, currentSize, buffer)) {
+                            transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                            break;
+                        }
+
+                        finishIncomingFile(laneHolder);
+                        continue;
+                    }
+
+                    // The sender reads the next request only after this file, so it can be
+                    // sent now and be answered without waiting for another round trip.
+                    synchronized (mOngoingList) {
+                        requestedObject = processHolder.pendingQueue.poll(mOngoingList);
+
+                        // Left for the next turn of a lane, which handles it in its own way
+                        if (requestedObject != null && (isStriped(requestedObject)
+                                || requestedObject.fileSize <= AppConfig.SESSION_BATCH_FILE_LENGTH_MAX)) {
+                            processHolder.pendingQueue.offer(requestedObject);
+                            requestedObject = null;
+                        }
+
+                        if (requestedObject != null)
+                            mOngoingList.add(requestedObject.requestId);
+                    }
+
+                    if (requestedObject != null) {
+                        requestedFile = FileUtils.getIncomingTransactionFile(getService().getApplicationContext(),
+                                requestedObject, mTransfer.getGroup());
+                        requestedObject.skippedBytes = requestedFile.length();
+
+                        writeFileRequest(lane, requestedObject, requestedFile);
+                    }
+
+                    long length = transferObject.fileSize - currentSize;
+
+                    if (getSession().isChecksumEnabled())
+                        lane.startChecksum();
+
+                    boolean compressed = response.has(Keyword.TRANSFER_COMPRESSION)
+                            && SeamlessSession.COMPRESSION_DEFLATE.equals(response.getString(Keyword.TRANSFER_COMPRESSION));
+
+                    long copied = receiveIncomingFile(lane, laneHolder.currentFile, currentSize,
+                            length, compressed, buffer, createCopyListener(laneHolder, currentSize));
+
+                    if (copied != length) {
+                        transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                        break;
+                    }
+
+                    if (getSession().isChecksumEnabled() && !lane.verifyChecksum()) {
+                        requeueIncomingFile(laneHolder);
+                        continue;
+                    }
+
+                    finishIncomingFile(laneHolder);
+                } finally {
+                    if (Log.isLoggable(TAG, Log.VERBOSE))
+                        Log.v(TAG, "receiveLane(): Updating file instances to " + transferObject.flag.name());
+                    getDatabase().update(transferObject);
+
+                    synchronized (mOngoingList) {
+                        mOngoingList.remove(transferObject.requestId);
+                    }
+                }
+            }
+
+            if (lane.isJobDone())
+                lane.writeHeader(new JSONObject().put(Keyword.TRANSFER_JOB_DONE, true));
+        } catch (Exception e) {
+            e.printStackTrace();
+            lane.setJobDone(false);
+
+            if (laneHolder.transferObject != null && laneHolder.transferObject.ranges == null
+                    && TransferObject.Flag.IN_PROGRESS.equals(laneHolder.transferObject.flag)) {
+                laneHolder.transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                getDatabase().update(laneHolder.transferObject);
+            }
+
+            return !isInterrupted();
+        } finally {
+            lane.close();
+            getService().getBufferPool().release(buffer);
+
+            // Requested but never received, so it stays pending for the other lanes
+            if (requestedObject != null)
+                synchronized (mOngoingList) {
+                    mOngoingList.remove(requestedObject.requestId);
+                }
+        }
+
+        return false;
+    }
+
+    /**
+     * Receives a file from a peer. The peer connects to a socket that is opened for the file
+     * and sends what the part file doesn't have yet, like a lane of the session would.
+     *
+     * @return false if the file could not be received from the peer
+     */
+    private boolean receivePeerFile(PeerSource peer, TransferObject transferObject, ByteBuffer buffer)
+    {
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+        ServerSocket serverSocket = null;
+        SeamlessSession.Lane lane = null;
+
+        try {
+            DocumentFile file = FileUtils.getIncomingTransactionFile(getService().getApplicationContext(),
+                    transferObject, mTransfer.getGroup());
+
+            transferObject.skippedBytes = file.length();
+
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.setReceiveBufferSize(AdaptiveBufferSize.SOCKET_LENGTH_MAX);
+            serverSocket.bind(new InetSocketAddress(0));
+            serverSocket.setSoTimeout(AppConfig.DEFAULT_SOCKET_TIMEOUT);
+
+            JSONObject request = new JSONObject()
+                    .put(Keyword.REQUEST, Keyword.REQUEST_PEER_FILE)
+                    .put(Keyword.TRANSFER_GROUP_ID, transferObject.groupId)
+                    .put(Keyword.TRANSFER_REQUEST_ID, transferObject.requestId)
+                    .put(Keyword.TRANSFER_DEVICE_ID, transferObject.deviceId)
+                    .put(Keyword.TRANSFER_SOCKET_PORT, serverSocket.getLocalPort())
+                    .put(Keyword.SKIPPED_BYTES, transferObject.skippedBytes)
+                    .put(Keyword.TRANSFER_CHECKSUM, getSession().isChecksumEnabled());
+
+            if (getSession().isBinaryFraming())
+                request.put(Keyword.TRANSFER_SESSION_FRAMING, HeaderFrameCodec.FRAMING_BINARY);
+
+            CoolSocket.ActiveConnection activeConnection = new CommunicationBridge.Client(getDatabase())
+                    .communicate(new NetworkDevice(peer.deviceId), new NetworkDevice.Connection(peer.ipAddress));
+
+            try {
+                activeConnection.reply(request.toString());
+
+                JSONObject response = new JSONObject(activeConnection.receive().response);
+
+                if (!response.has(Keyword.RESULT) || !response.getBoolean(Keyword.RESULT))
+                    return false;
+            } finally {
+                activeConnection.getSocket().close();
+            }
+
+            Socket socket = serverSocket.accept();
+            socket.setSoTimeout(AppConfig.DEFAULT_SOCKET_TIMEOUT_LARGE);
+
+            lane = getSession().new Lane(socket);
+
+            final CommunicationService.ProcessHolder laneHolder = processHolder.createLane(lane);
+            final long currentSize = transferObject.skippedBytes;
+            long length = transferObject.fileSize - currentSize;
+            long startTime = System.currentTimeMillis();
+
+            laneHolder.transferObject = transferObject;
+            laneHolder.currentFile = file;
+
+            notifyLaneTransaction(laneHolder);
+
+            if (getSession().isChecksumEnabled())
+                lane.startChecksum();
+
+            // What the peer sends doesn't count as progress with the sender, so the recovery
+            // state is left as it is
+            long copied = receiveIncomingFile(lane, file, currentSize, length, false, buffer,
+                    new SeamlessSession.CopyListener()
+                    {
+                        @Override
+                        public boolean onCopied(long fileCopied)
+                        {
+                            publishProgress(laneHolder, currentSize + fileCopied);
+                            return !isInterrupted();
+                        }
+                    });
+
+            peer.onTransferred(copied, System.currentTimeMillis() - startTime);
+
+            if (copied != length)
+                return false;
+
+            // A peer that sends a file that is not the same as the original is not asked again
+            if (getSession().isChecksumEnabled() && !lane.verifyChecksum()) {
+                requeueIncomingFile(laneHolder);
+                return false;
+            }
+
+            finishIncomingFile(laneHolder);
+
+            Log.d(TAG, "receivePeerFile(): Received " + transferObject.friendlyName + " from " + peer.deviceId);
+
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            // What a peer could not finish is left to the lanes, which resume it
+            if (TransferObject.Flag.IN_PROGRESS.equals(transferObject.flag))
+                transferObject.flag = TransferObject.Flag.PENDING;
+
+            getDatabase().update(transferObject);
+
+            if (TransferObject.Flag.PENDING.equals(transferObject.flag))
+                processHolder.pendingQueue.offer(transferObject);
+
+            synchronized (mOngoingList) {
+                mOngoingList.remove(transferObject.requestId);
+            }
+
+            if (lane != null)
+                lane.close();
+
+            if (serverSocket != null)
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+            peer.busy = false;
+        }
+    }
+
+    /**
+     * Receives a range of a striped file and writes it at its own position. The lane that
+     * receives the last missing range completes the file and lets the sender know about it.
+     *
+     * @param range the range that has been claimed on the stripe, or -1 if there is none
+     *              missing
+     * @return false if the range was cut short and the lane should not be used anymore
+     */
+    private boolean receiveRange(CommunicationService.ProcessHolder laneHolder, SeamlessSession.Stripe stripe,
+                                 int range, ByteBuffer buffer) throws IOException, JSONException
+    {
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+        SeamlessSession.Lane lane = laneHolder.lane;
+        TransferObject transferObject = stripe.getTransferObject();
+        boolean received = false;
+
+        laneHolder.transferObject = transferObject;
+        laneHolder.currentFile = stripe.getFile();
+
+        try {
+            if (range != -1) {
+                long rangeStart = stripe.getRangeStart(range);
+                long rangeLength = stripe.getRangeLength(range);
+
+                boolean checksum = getSession().isChecksumEnabled();
+
+                lane.writeHeader(new JSONObject()
+                        .put(Keyword.TRANSFER_REQUEST_ID, transferObject.requestId)
+                        .put(Keyword.TRANSFER_GROUP_ID, transferObject.groupId)
+                        .put(Keyword.RESULT, true)
+                        .put(Keyword.TRANSFER_RANGE_START, rangeStart)
+                        .put(Keyword.TRANSFER_RANGE_LENGTH, rangeLength)
+                        .put(Keyword.TRANSFER_CHECKSUM, checksum));
+
+                JSONObject response = lane.readHeader();
+                if (Log.isLoggable(TAG, Log.VERBOSE))
+                    Log.v(TAG, "receiveRange(): receive: " + response.toString());
+
+                if (!response.getBoolean(Keyword.RESULT)) {
+                    synchronized (stripe) {
+                        if (response.has(Keyword.SIZE_CHANGED)) {
+                            Log.d(TAG, "receiveRange(): The file has a new size and the ranges are not usable");
+                            transferObject.flag = TransferObject.Flag.REMOVED;
+                            transferObject.ranges = null;
+                        } else
+                            getService().applySenderError(transferObject, response);
+
+                        stripe.setFailed();
+                    }
+
+                    return true;
+                }
+
+                notifyLaneTransaction(laneHolder);
+
+                if (checksum)
+                    lane.startChecksum();
+
+                long copied = lane.receive(stripe.open(getService().getApplicationContext()), rangeStart,
+                        rangeLength, buffer, createCopyListener(laneHolder, stripe.getCompletedLength()));
+
+                if (copied != rangeLength)
+                    return false;
+
+                // The range is claimed again unless it has already failed once
+                if (checksum && !lane.verifyChecksum()) {
+                    Log.d(TAG, "receiveRange(): Checksum mismatch for the range " + range
+                            + " of " + transferObject.friendlyName);
+
+                    if (!getSession().onVerifyFailed(transferObject.requestId))
+                        synchronized (stripe) {
+                            transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                            stripe.setFailed();
+                        }
+
+                    return true;
+                }
+
+                received = true;
+
+                if (!stripe.complete(range)) {
+                    getDatabase().update(transferObject);
+                    return true;
+                }
+            }
+
+            stripe.close();
+
+            if (getService().completeIncomingFile(laneHolder, transferObject.fileSize)) {
+                getSession().incrementTransferredFileCount();
+                getService().notifyIncomingFileChanged(laneHolder);
+
+                synchronized (processHolder) {
+                    processHolder.transferObject = laneHolder.transferObject;
+                    processHolder.currentFile = laneHolder.currentFile;
+                }
+            } else
+                // The ranges say otherwise, so the file is received again from the start
+                laneHolder.currentFile.delete();
+
+            transferObject.ranges = null;
+            getDatabase().update(transferObject);
+
+            if (TransferObject.Flag.DONE.equals(transferObject.flag))
+                lane.writeHeader(new JSONObject()
+                        .put(Keyword.TRANSFER_REQUEST_ID, transferObject.requestId)
+                        .put(Keyword.TRANSFER_GROUP_ID, transferObject.groupId)
+                        .put(Keyword.TRANSFER_FILE_DONE, true));
+        } finally {
+            if (range != -1 && !received)
+                stripe.release(range);
+        }
+
+        return true;
+    }
+
+    /**
+     * Drops a received file whose checksum didn't match the one of the sender. The file is
+     * requested again in the same session the first time, and is left interrupted if it fails
+     * again.
+     *
+     * @param laneHolder the lane that received the file
+     */
+    private void requeueIncomingFile(CommunicationService.ProcessHolder laneHolder)
+    {
+        TransferObject transferObject = laneHolder.transferObject;
+
+        Log.d(TAG, "requeueIncomingFile(): Checksum mismatch for " + transferObject.friendlyName);
+
+        laneHolder.currentFile.delete();
+        transferObject.skippedBytes = 0;
+
+        if (getSession().onVerifyFailed(transferObject.requestId)) {
+            transferObject.flag = TransferObject.Flag.PENDING;
+            getSession().setTotalByte(getSession().getTotalByte() + transferObject.fileSize);
+
+            if (laneHolder.pendingQueue != null)
+                laneHolder.pendingQueue.offer(transferObject);
+        } else
+            transferObject.flag = TransferObject.Flag.INTERRUPTED;
+    }
+
+    /**
+     * @param file the part file, which can be compared with the source in chunks if it is on
+     *             the local storage and the source has changed
+     */
+    private void writeFileRequest(SeamlessSession.Lane lane, TransferObject transferObject,
+                                  DocumentFile file) throws IOException, JSONException
+    {
+        JSONObject request = new JSONObject()
+                .put(Keyword.TRANSFER_REQUEST_ID, transferObject.requestId)
+                .put(Keyword.TRANSFER_GROUP_ID, transferObject.groupId)
+                .put(Keyword.RESULT, true);
+
+        if (transferObject.skippedBytes > 0)
+            request.put(Keyword.SKIPPED_BYTES, transferObject.skippedBytes)
+                    .put(Keyword.TRANSFER_DELTA, file instanceof LocalDocumentFile);
+
+        if (lane.getSession().isChecksumEnabled())
+            request.put(Keyword.TRANSFER_CHECKSUM, true);
+
+        lane.writeHeader(request.put(Keyword.TRANSFER_COMPRESSION, SeamlessSession.COMPRESSION_DEFLATE));
+    }
+
+    /**
+     * Another device that receives the same group and can send the files that it has already
+     * received. How fast it has sent them so far decides which files it is asked for.
+     */
+    private static class PeerSource
+    {
+        public final String deviceId;
+        public final String ipAddress;
+        public volatile boolean busy = false;
+        public volatile boolean failed = false;
+        private Set<Long> mAvailableList = new HashSet<>();
+        private long mTransferredByte = 0;
+        private long mTransferTime = 0;
+
+        PeerSource(String deviceId, String ipAddress)
+        {
+            this.deviceId = deviceId;
+            this.ipAddress = ipAddress;
+        }
+
+        public synchronized Set<Long> getAvailableList()
+        {
+            return mAvailableList;
+        }
+
+        /**
+         * @return the bytes sent in a millisecond
+         */
+        public synchronized long getThroughput()
+        {
+            return mTransferredByte / Math.max(1, mTransferTime);
+        }
+
+        public synchronized long getTransferredByte()
+        {
+            return mTransferredByte;
+        }
+
+        public synchronized boolean isMeasured()
+        {
+            return mTransferTime > 0;
+        }
+
+        public synchronized void onTransferred(long bytes, long time)
+        {
+            mTransferredByte += bytes;
+            mTransferTime += time;
+        }
+
+        public synchronized void setAvailableList(Set<Long> availableList)
+        {
+            // Replaced as a whole, so the old one can still be iterated by whoever holds it
+            mAvailableList = availableList;
+        }
+    }
+}
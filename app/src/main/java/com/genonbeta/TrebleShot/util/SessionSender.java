@@ -0,0 +1,572 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.net.Uri;
+import android.util.Log;
+
+import com.genonbeta.TrebleShot.config.AppConfig;
+import com.genonbeta.TrebleShot.config.Keyword;
+import com.genonbeta.TrebleShot.object.TransferGroup;
+import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.service.CommunicationService;
+import com.genonbeta.android.database.exception.ReconstructionFailedException;
+import com.genonbeta.android.framework.io.DocumentFile;
+import com.genonbeta.android.framework.io.LocalDocumentFile;
+import com.genonbeta.android.framework.io.StreamInfo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The side of a {@link SeamlessSession} that serves the files. The sender connects the lanes to
+ * the receiver, which then asks for the files on them one header at a time. A file can be asked
+ * for as a whole, as a range of a striped file, as a batch of small files, or as the chunks of a
+ * part file that differ from the new version of the file.
+ */
+public class SessionSender extends SessionTransfer
+{
+    public static final String TAG = SessionSender.class.getSimpleName();
+
+    public SessionSender(CommunicationService service, CommunicationService.ProcessHolder processHolder)
+    {
+        super(service, processHolder);
+    }
+
+    /**
+     * Sends a file that has been received completely to another device that receives the same
+     * group, so the sender doesn't have to send it once more. The file goes over a socket that
+     * connects to the device and is used like a lane of a session.
+     *
+     * @param request that names the file and the port to connect to
+     * @param address of the device that wants the file
+     * @return false if the file is not complete on this device
+     */
+    public static boolean servePeerFile(final CommunicationService service, JSONObject request,
+                                        final String address) throws JSONException
+    {
+        long groupId = request.getLong(Keyword.TRANSFER_GROUP_ID);
+        final TransferObject transferObject = new TransferObject(request.getLong(Keyword.TRANSFER_REQUEST_ID),
+                request.getString(Keyword.TRANSFER_DEVICE_ID), TransferObject.Type.INCOMING);
+        final int port = request.getInt(Keyword.TRANSFER_SOCKET_PORT);
+        final long skippedBytes = request.has(Keyword.SKIPPED_BYTES)
+                ? request.getLong(Keyword.SKIPPED_BYTES)
+                : 0;
+        final boolean checksumEnabled = request.has(Keyword.TRANSFER_CHECKSUM)
+                && request.getBoolean(Keyword.TRANSFER_CHECKSUM);
+        final boolean binaryFraming = request.has(Keyword.TRANSFER_SESSION_FRAMING)
+                && HeaderFrameCodec.FRAMING_BINARY.equals(request.getString(Keyword.TRANSFER_SESSION_FRAMING));
+        final DocumentFile file;
+
+        try {
+            TransferGroup group = new TransferGroup(groupId);
+
+            service.getDatabase().reconstruct(group);
+            service.getDatabase().reconstruct(transferObject);
+
+            if (transferObject.groupId != groupId || !TransferObject.Flag.DONE.equals(transferObject.flag))
+                return false;
+
+            file = FileUtils.getIncomingPseudoFile(service.getApplicationContext(), transferObject, group, false);
+        } catch (Exception e) {
+            return false;
+        }
+
+        if (file == null || !file.exists() || file.length() != transferObject.fileSize
+                || skippedBytes < 0 || skippedBytes > transferObject.fileSize)
+            return false;
+
+        service.getSelfExecutor().submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                SeamlessSession session = new SeamlessSession();
+                BandwidthScheduler.Flow bandwidthFlow = service.registerBandwidthFlow(true);
+                ByteBuffer buffer = service.getBufferPool().acquire();
+
+                session.setBinaryFraming(binaryFraming);
+                session.setBandwidthFlow(bandwidthFlow);
+
+                try {
+                    Socket socket = SocketChannel.open().socket();
+
+                    socket.connect(new InetSocketAddress(address, port), AppConfig.DEFAULT_SOCKET_TIMEOUT);
+                    socket.setSoTimeout(AppConfig.DEFAULT_SOCKET_TIMEOUT_LARGE);
+
+                    SeamlessSession.Lane lane = session.addLane(socket);
+                    InputStream inputStream = file instanceof LocalDocumentFile
+                            ? new FileInputStream(((LocalDocumentFile) file).getFile())
+                            : StreamInfo.getStreamInfo(service.getApplicationContext(), file.getUri()).openInputStream();
+
+                    try {
+                        if (checksumEnabled)
+                            lane.startChecksum();
+
+                        lane.send(inputStream, skippedBytes, transferObject.fileSize - skippedBytes,
+                                buffer, null);
+
+                        if (checksumEnabled)
+                            lane.writeChecksum();
+                    } finally {
+                        inputStream.close();
+                    }
+
+                    Log.d(TAG, "servePeerFile(): Sent " + transferObject.friendlyName + " to " + address);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    session.close();
+                    service.getBandwidthScheduler().unregister(bandwidthFlow);
+                    service.getBufferPool().release(buffer);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * @return true if the group of the process is being sent to other devices at the same time
+     */
+    private boolean isFanOut()
+    {
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+        List<CommunicationService.ProcessHolder> processList = getService().getActiveProcessList();
+
+        synchronized (processList) {
+            for (CommunicationService.ProcessHolder otherHolder : processList)
+                if (otherHolder != processHolder && otherHolder.groupId == processHolder.groupId
+                        && TransferObject.Type.OUTGOING.equals(otherHolder.type)
+                        && otherHolder.deviceId != null && !otherHolder.deviceId.equals(processHolder.deviceId))
+                    return true;
+        }
+
+        return false;
+    }
+
+    private boolean isCompressionAccepted(JSONObject request) throws JSONException
+    {
+        return request.has(Keyword.TRANSFER_COMPRESSION)
+                && SeamlessSession.COMPRESSION_DEFLATE.equals(request.getString(Keyword.TRANSFER_COMPRESSION));
+    }
+
+    /**
+     * @return true if the file looks like it will get smaller when it is deflated, which is
+     * decided on a sample of its first bytes that is read from a stream of its own
+     */
+    private boolean isCompressible(TransferObject transferObject, StreamInfo streamInfo)
+    {
+        InputStream inputStream = null;
+
+        try {
+            inputStream = streamInfo.openInputStream();
+            return SeamlessSession.isCompressible(transferObject.fileMimeType, inputStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if (inputStream != null)
+                    inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    protected void onLane(CommunicationService.ProcessHolder laneHolder)
+    {
+        SeamlessSession.Lane lane = laneHolder.lane;
+        ByteBuffer buffer = getService().getBufferPool().acquire();
+
+        try {
+            while (!isInterrupted()) {
+                JSONObject request = lane.readHeader();
+                JSONObject reply = new JSONObject();
+
+                if (Log.isLoggable(TAG, Log.VERBOSE))
+                    Log.v(TAG, "onLane(): receive: " + request.toString());
+
+                if (request.has(Keyword.TRANSFER_JOB_DONE)) {
+                    lane.setJobDone(request.getBoolean(Keyword.TRANSFER_JOB_DONE));
+                    break;
+                }
+
+                // The receiver has every range of a striped file, which none of the lanes
+                // can know by itself.
+                if (request.has(Keyword.TRANSFER_FILE_DONE)) {
+                    TransferObject transferObject = new TransferObject(
+                            request.getLong(Keyword.TRANSFER_REQUEST_ID),
+                            getProcessHolder().deviceId,
+                            getProcessHolder().type);
+
+                    try {
+                        getDatabase().reconstruct(transferObject);
+                        transferObject.flag = TransferObject.Flag.DONE;
+                        getDatabase().update(transferObject);
+                        getSession().incrementTransferredFileCount();
+                    } catch (ReconstructionFailedException e) {
+                        e.printStackTrace();
+                    }
+
+                    continue;
+                }
+
+                boolean checksum = request.has(Keyword.TRANSFER_CHECKSUM)
+                        && request.getBoolean(Keyword.TRANSFER_CHECKSUM);
+
+                if (request.has(Keyword.TRANSFER_BATCH)) {
+                    if (!serveBatch(laneHolder, request.getJSONArray(Keyword.TRANSFER_BATCH), checksum, buffer))
+                        break;
+
+                    continue;
+                }
+
+                StreamInfo streamInfo = getService().prepareOutgoingTransfer(laneHolder, request, reply);
+                boolean ranged = request.has(Keyword.TRANSFER_RANGE_START);
+                long skippedBytes = ranged
+                        ? request.getLong(Keyword.TRANSFER_RANGE_START)
+                        : laneHolder.transferObject.skippedBytes;
+                long length = ranged
+                        ? request.getLong(Keyword.TRANSFER_RANGE_LENGTH)
+                        : laneHolder.transferObject.fileSize - skippedBytes;
+
+                // A part file of a file with a new size can still be used if the receiver can
+                // compare it with the new version.
+                if (streamInfo != null && reply.has(Keyword.SIZE_CHANGED) && !ranged && skippedBytes > 0
+                        && request.has(Keyword.TRANSFER_DELTA) && request.getBoolean(Keyword.TRANSFER_DELTA)) {
+                    if (!serveDelta(laneHolder, streamInfo, reply, buffer))
+                        break;
+
+                    continue;
+                }
+
+                // The receiver cannot resume a file that has a different size now, and it will
+                // not wait for the bytes either. Refusing it here keeps both sides in sync.
+                if (streamInfo != null && reply.has(Keyword.SIZE_CHANGED) && (ranged || skippedBytes > 0)) {
+                    reply.put(Keyword.RESULT, false);
+                    laneHolder.transferObject.flag = TransferObject.Flag.REMOVED;
+                    streamInfo = null;
+                } else if (streamInfo != null && (skippedBytes < 0 || length < 0
+                        || skippedBytes + length > laneHolder.transferObject.fileSize)) {
+                    reply.put(Keyword.RESULT, false)
+                            .put(Keyword.ERROR, Keyword.ERROR_NOT_ACCESSIBLE)
+                            .put(Keyword.FLAG, Keyword.FLAG_GROUP_EXISTS);
+                    laneHolder.transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                    streamInfo = null;
+                }
+
+                if (streamInfo == null) {
+                    lane.writeHeader(reply);
+                    getDatabase().update(laneHolder.transferObject);
+                    continue;
+                }
+
+                InputStream inputStream = null;
+
+                try {
+                    boolean compressed = !ranged && isCompressionAccepted(request)
+                            && isCompressible(laneHolder.transferObject, streamInfo);
+
+                    inputStream = openOutgoingStream(laneHolder.transferObject, streamInfo, ranged);
+
+                    if (compressed)
+                        reply.put(Keyword.TRANSFER_COMPRESSION, SeamlessSession.COMPRESSION_DEFLATE);
+
+                    lane.writeHeader(reply);
+                    notifyLaneTransaction(laneHolder);
+
+                    if (checksum)
+                        lane.startChecksum();
+
+                    SeamlessSession.CopyListener listener = createCopyListener(laneHolder, skippedBytes);
+                    long copied = compressed
+                            ? lane.sendCompressed(inputStream, skippedBytes, length, listener)
+                            : lane.send(inputStream, skippedBytes, length, buffer, listener);
+
+                    if (copied != length) {
+                        laneHolder.transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                        break;
+                    }
+
+                    if (checksum)
+                        lane.writeChecksum();
+
+                    // A range alone doesn't complete the file, and the other lanes may have
+                    // already marked it as done, so it is left to the receiver to say that.
+                    if (ranged)
+                        continue;
+
+                    laneHolder.transferObject.flag = TransferObject.Flag.DONE;
+                    getSession().incrementTransferredFileCount();
+                } catch (IOException e) {
+                    laneHolder.transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                    throw e;
+                } finally {
+                    if (inputStream != null)
+                        inputStream.close();
+
+                    if (!ranged || TransferObject.Flag.INTERRUPTED.equals(laneHolder.transferObject.flag))
+                        getDatabase().update(laneHolder.transferObject);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            lane.close();
+            getService().getBufferPool().release(buffer);
+        }
+    }
+
+    /**
+     * Opens the file that is about to be sent. When the group is being sent to other devices
+     * at the same time, they are likely to read the same file around the same time, so the
+     * reads are shared with them. A range is always read on its own.
+     */
+    private InputStream openOutgoingStream(TransferObject transferObject, final StreamInfo streamInfo,
+                                           boolean ranged) throws IOException
+    {
+        if (ranged || !isFanOut())
+            return streamInfo.openInputStream();
+
+        return getService().getReadPipeline().open(transferObject.file, new SharedReadPipeline.StreamOpener()
+        {
+            @Override
+            public InputStream openInputStream() throws IOException
+            {
+                return streamInfo.openInputStream();
+            }
+        });
+    }
+
+    /**
+     * Serves the files over the lanes of a session until the receiver says it is done on each
+     * of them. The control connection stays untouched and is used afterwards to learn the result.
+     *
+     * @param address       the address of the receiver
+     * @param port          the port the receiver is waiting for the data connections on
+     * @param laneCount     the number of data connections that was agreed on
+     * @param binaryFraming true if the header frames should be written in binary
+     */
+    public void serve(String address, int port, int laneCount, boolean binaryFraming)
+    {
+        CommunicationService.ProcessHolder processHolder = getProcessHolder();
+
+        processHolder.session = new SeamlessSession();
+        processHolder.session.setBinaryFraming(binaryFraming);
+
+        try {
+            for (int i = 0; i < laneCount; i++) {
+                // A socket with a channel lets the files be sent without copying them
+                Socket socket = SocketChannel.open().socket();
+
+                socket.connect(new InetSocketAddress(address, port), AppConfig.DEFAULT_SOCKET_TIMEOUT);
+                socket.setSoTimeout(AppConfig.DEFAULT_SOCKET_TIMEOUT_LARGE);
+
+                processHolder.session.addLane(socket);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            processHolder.session.close();
+            return;
+        }
+
+        {
+            TransferGroup.Index indexInstance = new TransferGroup.Index();
+            getDatabase().calculateTransactionSize(processHolder.groupId, indexInstance);
+            AppUtils.getProgressJournal().addUnsavedByte(processHolder.groupId, indexInstance);
+            processHolder.session.setTotalByte(indexInstance.outgoing - indexInstance.outgoingCompleted);
+            getService().applyBandwidthPriority(processHolder, indexInstance.outgoing - indexInstance.outgoingCompleted);
+        }
+
+        processHolder.session.setBandwidthFlow(processHolder.bandwidthFlow);
+
+        runLanes();
+        reportVerification();
+    }
+
+    /**
+     * Sends the files of a batch one after another. The size of each file is announced first,
+     * so the files are not framed one by one. The files are only reconstructed here and all of
+     * them are updated in a single transaction at the end.
+     *
+     * @param requestIds the files that the receiver wants in this batch
+     * @param checksum   true if each file should be followed by its checksum
+     * @return false if a file was cut short and the lane should not be used anymore
+     */
+    private boolean serveBatch(CommunicationService.ProcessHolder laneHolder, JSONArray requestIds,
+                               boolean checksum, ByteBuffer buffer) throws Exception
+    {
+        SeamlessSession.Lane lane = laneHolder.lane;
+        List<TransferObject> updateList = new ArrayList<>();
+        List<TransferObject> batchList = new ArrayList<>();
+        List<StreamInfo> streamList = new ArrayList<>();
+        JSONArray batchReply = new JSONArray();
+
+        for (int i = 0; i < requestIds.length(); i++) {
+            TransferObject transferObject = new TransferObject(requestIds.getLong(i),
+                    getProcessHolder().deviceId, getProcessHolder().type);
+            JSONObject fileReply = new JSONObject()
+                    .put(Keyword.TRANSFER_REQUEST_ID, transferObject.requestId);
+
+            try {
+                getDatabase().reconstruct(transferObject);
+                updateList.add(transferObject);
+
+                StreamInfo streamInfo = StreamInfo.getStreamInfo(getService().getApplicationContext(),
+                        Uri.parse(transferObject.file));
+
+                // The receiver can only tell the files apart if it knows their size beforehand
+                if (streamInfo.size < 0)
+                    throw new StreamCorruptedException("The size of the file is not known");
+
+                transferObject.fileSize = streamInfo.size;
+
+                fileReply.put(Keyword.RESULT, true)
+                        .put(Keyword.INDEX_FILE_SIZE, streamInfo.size);
+
+                batchList.add(transferObject);
+                streamList.add(streamInfo);
+            } catch (ReconstructionFailedException e) {
+                fileReply.put(Keyword.RESULT, false)
+                        .put(Keyword.ERROR, Keyword.ERROR_NOT_FOUND)
+                        .put(Keyword.FLAG, Keyword.FLAG_GROUP_EXISTS);
+            } catch (FileNotFoundException | StreamCorruptedException | StreamInfo.FolderStateException e) {
+                fileReply.put(Keyword.RESULT, false)
+                        .put(Keyword.ERROR, Keyword.ERROR_NOT_ACCESSIBLE)
+                        .put(Keyword.FLAG, Keyword.FLAG_GROUP_EXISTS);
+
+                transferObject.flag = TransferObject.Flag.INTERRUPTED;
+            }
+
+            batchReply.put(fileReply);
+        }
+
+        try {
+            lane.writeHeader(new JSONObject()
+                    .put(Keyword.RESULT, true)
+                    .put(Keyword.TRANSFER_BATCH, batchReply));
+
+            if (batchList.size() > 0) {
+                laneHolder.transferObject = batchList.get(0);
+                notifyLaneTransaction(laneHolder);
+            }
+
+            for (int i = 0; i < batchList.size(); i++) {
+                TransferObject transferObject = batchList.get(i);
+                InputStream inputStream = streamList.get(i).openInputStream();
+
+                laneHolder.transferObject = transferObject;
+
+                try {
+                    if (checksum)
+                        lane.startChecksum();
+
+                    long copied = lane.send(inputStream, 0, transferObject.fileSize, buffer,
+                            createCopyListener(laneHolder, 0));
+
+                    if (copied != transferObject.fileSize) {
+                        transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                        return false;
+                    }
+
+                    if (checksum)
+                        lane.writeChecksum();
+
+                    transferObject.flag = TransferObject.Flag.DONE;
+                    getSession().incrementTransferredFileCount();
+                } catch (IOException e) {
+                    transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                    throw e;
+                } finally {
+                    inputStream.close();
+                }
+            }
+        } finally {
+            getDatabase().update(updateList);
+        }
+
+        return true;
+    }
+
+    /**
+     * Compares the chunks of the new version of a file with the digests the receiver sends for
+     * its part file, and sends only the chunks that differ followed by the bytes the part file
+     * doesn't have. Each range is read from a new stream, so streams that can't be positioned
+     * are only skipped forward.
+     *
+     * @return false if a range was cut short and the lane should not be used anymore
+     */
+    private boolean serveDelta(CommunicationService.ProcessHolder laneHolder, StreamInfo streamInfo,
+                               JSONObject reply, ByteBuffer buffer) throws Exception
+    {
+        SeamlessSession.Lane lane = laneHolder.lane;
+        TransferObject transferObject = laneHolder.transferObject;
+        long overlap = Math.min(transferObject.skippedBytes, transferObject.fileSize);
+
+        lane.writeHeader(reply.put(Keyword.TRANSFER_DELTA, true));
+        notifyLaneTransaction(laneHolder);
+
+        JSONArray receiverChunks = lane.readHeader().getJSONArray(Keyword.TRANSFER_DELTA);
+        JSONArray differing = new JSONArray();
+        JSONArray chunks;
+
+        {
+            InputStream inputStream = streamInfo.openInputStream();
+
+            try {
+                chunks = SeamlessSession.digestChunks(inputStream, overlap);
+            } finally {
+                inputStream.close();
+            }
+        }
+
+        for (int i = 0; i < chunks.length(); i++)
+            if (i >= receiverChunks.length() || !chunks.getString(i).equals(receiverChunks.getString(i)))
+                differing.put(i);
+
+        lane.writeHeader(new JSONObject().put(Keyword.TRANSFER_DELTA, differing));
+
+        try {
+            for (long[] range : SeamlessSession.createDeltaRanges(differing, overlap, transferObject.fileSize)) {
+                InputStream inputStream = streamInfo.openInputStream();
+
+                try {
+                    long copied = lane.send(inputStream, range[0], range[1], buffer,
+                            createCopyListener(laneHolder, range[0]));
+
+                    if (copied != range[1]) {
+                        transferObject.flag = TransferObject.Flag.INTERRUPTED;
+                        return false;
+                    }
+                } finally {
+                    inputStream.close();
+                }
+            }
+
+            transferObject.flag = TransferObject.Flag.DONE;
+            getSession().incrementTransferredFileCount();
+        } catch (IOException e) {
+            transferObject.flag = TransferObject.Flag.INTERRUPTED;
+            throw e;
+        } finally {
+            getDatabase().update(transferObject);
+        }
+
+        return true;
+    }
+}
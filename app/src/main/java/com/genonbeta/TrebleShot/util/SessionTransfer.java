@@ -0,0 +1,193 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.util.Log;
+
+import com.genonbeta.TrebleShot.R;
+import com.genonbeta.TrebleShot.config.AppConfig;
+import com.genonbeta.TrebleShot.database.AccessDatabase;
+import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.service.CommunicationService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the lanes of the {@link SeamlessSession} of a process of the {@link CommunicationService}.
+ * Each lane is run on a thread of its own by {@link #runLanes()}, and what a lane does with the
+ * files is up to the side of the session, which is either {@link SessionSender} or
+ * {@link SessionReceiver}.
+ * <p>
+ * The lanes share the process that they belong to, and with it, its notification and the
+ * interruption of the transfer.
+ */
+public abstract class SessionTransfer
+{
+    public static final String TAG = SessionTransfer.class.getSimpleName();
+
+    private final CommunicationService mService;
+    private final CommunicationService.ProcessHolder mProcessHolder;
+
+    public SessionTransfer(CommunicationService service, CommunicationService.ProcessHolder processHolder)
+    {
+        mService = service;
+        mProcessHolder = processHolder;
+    }
+
+    /**
+     * @param laneHolder the lane that the bytes are copied on
+     * @param position   where the bytes that are copied start in the file
+     * @return the listener that publishes the progress of the file and stops the copy when the
+     * transfer is interrupted
+     */
+    protected SeamlessSession.CopyListener createCopyListener(final CommunicationService.ProcessHolder laneHolder,
+                                                              final long position)
+    {
+        return new SeamlessSession.CopyListener()
+        {
+            @Override
+            public boolean onCopied(long fileCopied)
+            {
+                onBytesCopied();
+                publishProgress(laneHolder, position + fileCopied);
+
+                return !isInterrupted();
+            }
+        };
+    }
+
+    public AccessDatabase getDatabase()
+    {
+        return mService.getDatabase();
+    }
+
+    public CommunicationService.ProcessHolder getProcessHolder()
+    {
+        return mProcessHolder;
+    }
+
+    public CommunicationService getService()
+    {
+        return mService;
+    }
+
+    public SeamlessSession getSession()
+    {
+        return mProcessHolder.session;
+    }
+
+    public boolean isInterrupted()
+    {
+        return mProcessHolder.builder.getTransferProgress().isInterrupted();
+    }
+
+    /**
+     * Lanes share the notification of the process they belong to, so the notification shows the
+     * file that has started last.
+     *
+     * @param laneHolder the lane that has started a new file
+     */
+    protected void notifyLaneTransaction(CommunicationService.ProcessHolder laneHolder)
+    {
+        synchronized (mProcessHolder) {
+            laneHolder.notification = mProcessHolder.notification;
+
+            try {
+                mProcessHolder.notification = mService.getNotificationHelper().notifyFileTransaction(laneHolder);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            laneHolder.notification = mProcessHolder.notification;
+        }
+    }
+
+    /**
+     * Called on the thread of a lane whenever some bytes of a file have been copied on it.
+     */
+    protected void onBytesCopied()
+    {
+    }
+
+    /**
+     * Called on the thread of each lane, which exits when this returns.
+     *
+     * @param laneHolder the holder of the lane, which shares everything but the current file
+     *                   with the process
+     */
+    protected abstract void onLane(CommunicationService.ProcessHolder laneHolder);
+
+    /**
+     * Updates the notification and the progress journal for the file that is being transferred
+     * on a lane. The file of each lane is published once the notification delay of that lane
+     * passes, while the notification that the lanes share follows the delay of the session.
+     *
+     * @param laneHolder          the lane that is transferring the file
+     * @param fileTransferredByte the byte count of the current file that is on the other side
+     */
+    protected void publishProgress(CommunicationService.ProcessHolder laneHolder, long fileTransferredByte)
+    {
+        SeamlessSession session = laneHolder.session;
+
+        if (session == null || laneHolder.lane == null
+                || !laneHolder.lane.isNotifyTime(AppConfig.DEFAULT_NOTIFICATION_DELAY))
+            return;
+
+        if (laneHolder.notification != null
+                && session.isNotifyTime(AppConfig.DEFAULT_NOTIFICATION_DELAY)) {
+            laneHolder.notification.setContentText(mService.getString(R.string.text_remainingTime,
+                    TimeUtils.getDuration(session.getTimeRemaining())));
+            laneHolder.notification.updateProgress(100, session.getPercentage(), false);
+        }
+
+        laneHolder.transferObject.flag = TransferObject.Flag.IN_PROGRESS;
+        laneHolder.transferObject.progressBytes = fileTransferredByte;
+
+        if (AppUtils.getProgressJournal().record(laneHolder.transferObject, fileTransferredByte))
+            getDatabase().update(laneHolder.transferObject);
+    }
+
+    /**
+     * Logs how much the checksums of the session have cost, so that the overhead of verifying
+     * the files can be seen.
+     */
+    protected void reportVerification()
+    {
+        SeamlessSession session = getSession();
+
+        if (session.getVerifiedByte() > 0)
+            Log.d(TAG, "reportVerification(): " + session.getVerifiedByte() + " bytes verified in "
+                    + session.getVerifyTime() + " ms out of " + session.getElapsedTime() + " ms");
+    }
+
+    /**
+     * Runs each lane of the session on its own thread and waits for all of them to exit.
+     */
+    protected void runLanes()
+    {
+        List<Thread> threadList = new ArrayList<>();
+
+        for (SeamlessSession.Lane lane : getSession().getLaneList()) {
+            final CommunicationService.ProcessHolder laneHolder = mProcessHolder.createLane(lane);
+            Thread thread = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    onLane(laneHolder);
+                }
+            };
+
+            threadList.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threadList)
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                mProcessHolder.builder.getTransferProgress().interrupt();
+                getSession().close();
+            }
+    }
+}
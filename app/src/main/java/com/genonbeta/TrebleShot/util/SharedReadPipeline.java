@@ -0,0 +1,361 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a file once for all the devices that it is being sent to at the same time. The blocks
+ * that are read from the file are kept in a ring for a while, so the readers that are close to
+ * each other copy them from memory instead of reading them from the storage again.
+ * <p>
+ * The ring is not let to move past a reader that still needs its oldest block for a short
+ * time, so the readers can catch up with each other. A reader that falls further behind, or
+ * starts somewhere the ring is not at, reads the file on its own from then on.
+ */
+public class SharedReadPipeline
+{
+    public static final String TAG = SharedReadPipeline.class.getSimpleName();
+
+    private static final int RESULT_END = -1;
+    private static final int RESULT_UNAVAILABLE = -2;
+
+    private final Map<String, Source> mSourceMap = new HashMap<>();
+    private int mBlockLength;
+    private int mBlockCount;
+    private long mWaitTime;
+
+    /**
+     * @param blockLength the byte count that is read from a file at once
+     * @param blockCount  the number of blocks that are kept for each file
+     * @param waitTime    the time a reader can hold the ring back in milliseconds
+     */
+    public SharedReadPipeline(int blockLength, int blockCount, long waitTime)
+    {
+        mBlockLength = blockLength;
+        mBlockCount = blockCount;
+        mWaitTime = waitTime;
+    }
+
+    /**
+     * Opens a stream that reads the file from the ring that is shared with the other readers
+     * of the same file.
+     *
+     * @param key    that is the same for every reader of the file
+     * @param opener used to read the file when the ring is created and when the reader has to
+     *               read it on its own
+     * @return the stream that should be closed when it is no longer needed
+     */
+    public InputStream open(String key, StreamOpener opener)
+    {
+        Source source;
+
+        synchronized (mSourceMap) {
+            source = mSourceMap.get(key);
+
+            if (source == null) {
+                source = new Source(key, opener);
+                mSourceMap.put(key, source);
+            }
+
+            source.mReaderCount++;
+        }
+
+        SharedInputStream inputStream = new SharedInputStream(source, opener);
+        source.attach(inputStream);
+
+        return inputStream;
+    }
+
+    private void release(Source source)
+    {
+        synchronized (mSourceMap) {
+            if (--source.mReaderCount > 0)
+                return;
+
+            if (mSourceMap.get(source.mKey) == source)
+                mSourceMap.remove(source.mKey);
+        }
+
+        source.close();
+    }
+
+    public interface StreamOpener
+    {
+        InputStream openInputStream() throws IOException;
+    }
+
+    private class Source
+    {
+        private final String mKey;
+        private final StreamOpener mOpener;
+        private final List<SharedInputStream> mReaderList = new ArrayList<>();
+        private final byte[][] mBlocks = new byte[mBlockCount][];
+        private final int[] mBlockLengths = new int[mBlockCount];
+        private InputStream mInputStream;
+        private long mHead = 0;
+        private long mSharedByte = 0;
+        private boolean mEnded = false;
+        private int mReaderCount = 0;
+
+        Source(String key, StreamOpener opener)
+        {
+            mKey = key;
+            mOpener = opener;
+        }
+
+        synchronized void attach(SharedInputStream reader)
+        {
+            mReaderList.add(reader);
+        }
+
+        synchronized void close()
+        {
+            if (mSharedByte > 0)
+                Log.d(TAG, "close(): " + mSharedByte + " bytes were read once and shared for " + mKey);
+
+            try {
+                if (mInputStream != null)
+                    mInputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            mInputStream = null;
+        }
+
+        synchronized void detach(SharedInputStream reader)
+        {
+            mReaderList.remove(reader);
+            notifyAll();
+        }
+
+        /**
+         * @return true if an attached reader has yet to copy the given block
+         */
+        private boolean isNeeded(long index)
+        {
+            for (SharedInputStream reader : mReaderList)
+                if (reader.mPosition / mBlockLength <= index)
+                    return true;
+
+            return false;
+        }
+
+        /**
+         * Copies the bytes at the position of the reader into the array.
+         *
+         * @return the byte count that has been copied, {@link #RESULT_END} if the file has ended
+         * or {@link #RESULT_UNAVAILABLE} if the position is not in the ring
+         */
+        synchronized int read(SharedInputStream reader, byte[] bytes, int offset, int length)
+                throws IOException
+        {
+            long index = reader.mPosition / mBlockLength;
+            int blockOffset = (int) (reader.mPosition % mBlockLength);
+            long waitStart = 0;
+
+            while (true) {
+                if (index < mHead - mBlockCount || index > mHead)
+                    return RESULT_UNAVAILABLE;
+
+                if (index < mHead) {
+                    int slot = (int) (index % mBlockCount);
+                    int len = Math.min(length, mBlockLengths[slot] - blockOffset);
+
+                    // Only the last block can be short, so there is nothing after it
+                    if (len <= 0)
+                        return RESULT_END;
+
+                    System.arraycopy(mBlocks[slot], blockOffset, bytes, offset, len);
+                    reader.mPosition += len;
+                    notifyAll();
+
+                    return len;
+                }
+
+                if (mEnded)
+                    return RESULT_END;
+
+                // The oldest block is about to be replaced, so wait for the readers that still
+                // need it for a while. The ones that don't make it in time read on their own.
+                long evicted = mHead - mBlockCount;
+
+                if (evicted >= 0 && isNeeded(evicted)) {
+                    long currentTime = System.currentTimeMillis();
+
+                    if (waitStart == 0)
+                        waitStart = currentTime;
+
+                    if (currentTime - waitStart < mWaitTime) {
+                        try {
+                            wait(mWaitTime - (currentTime - waitStart));
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted while waiting for the other readers");
+                        }
+
+                        continue;
+                    }
+                }
+
+                readBlock();
+            }
+        }
+
+        private void readBlock() throws IOException
+        {
+            if (mInputStream == null) {
+                if (mHead > 0)
+                    throw new IOException("The shared stream is closed");
+
+                mInputStream = mOpener.openInputStream();
+            }
+
+            int slot = (int) (mHead % mBlockCount);
+
+            if (mBlocks[slot] == null)
+                mBlocks[slot] = new byte[mBlockLength];
+
+            byte[] block = mBlocks[slot];
+            int filled = 0;
+
+            while (filled < mBlockLength) {
+                int len = mInputStream.read(block, filled, mBlockLength - filled);
+
+                if (len == -1) {
+                    mEnded = true;
+                    break;
+                }
+
+                filled += len;
+            }
+
+            mBlockLengths[slot] = filled;
+            mSharedByte += filled;
+            mHead++;
+
+            notifyAll();
+        }
+    }
+
+    private class SharedInputStream extends InputStream
+    {
+        private Source mSource;
+        private StreamOpener mOpener;
+        private InputStream mFallbackStream;
+        private long mPosition = 0;
+        private boolean mClosed = false;
+
+        SharedInputStream(Source source, StreamOpener opener)
+        {
+            mSource = source;
+            mOpener = opener;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (mClosed)
+                return;
+
+            mClosed = true;
+
+            if (mFallbackStream != null)
+                mFallbackStream.close();
+            else {
+                mSource.detach(this);
+                release(mSource);
+            }
+        }
+
+        /**
+         * Leaves the ring and opens the file for this reader alone at the same position.
+         */
+        private void fallBack() throws IOException
+        {
+            mSource.detach(this);
+            release(mSource);
+
+            mFallbackStream = mOpener.openInputStream();
+
+            long skipped = 0;
+
+            while (skipped < mPosition) {
+                long len = mFallbackStream.skip(mPosition - skipped);
+
+                if (len <= 0) {
+                    if (mFallbackStream.read() == -1)
+                        break;
+
+                    len = 1;
+                }
+
+                skipped += len;
+            }
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] bytes = new byte[1];
+            int len = read(bytes, 0, 1);
+
+            return len == -1 ? -1 : bytes[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException
+        {
+            if (mClosed)
+                throw new IOException("The stream is closed");
+
+            if (length == 0)
+                return 0;
+
+            if (mFallbackStream == null) {
+                int len = mSource.read(this, bytes, offset, length);
+
+                if (len != RESULT_UNAVAILABLE)
+                    return len;
+
+                fallBack();
+            }
+
+            int len = mFallbackStream.read(bytes, offset, length);
+
+            if (len > 0)
+                mPosition += len;
+
+            return len;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException
+        {
+            if (mFallbackStream != null) {
+                long len = mFallbackStream.skip(byteCount);
+
+                if (len > 0)
+                    mPosition += len;
+
+                return len;
+            }
+
+            if (byteCount <= 0)
+                return 0;
+
+            // The position is checked against the ring when it is read
+            synchronized (mSource) {
+                mPosition += byteCount;
+                mSource.notifyAll();
+            }
+
+            return byteCount;
+        }
+    }
+}
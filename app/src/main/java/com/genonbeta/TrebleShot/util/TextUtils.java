@@ -81,10 +81,13 @@ public class TextUtils
         switch (transferObject.flag) {
             case DONE:
                 return percentFormat.format(1.0);
-            case IN_PROGRESS:
-                return percentFormat.format(transferObject.fileSize == 0 || transferObject.flag.getBytesValue() == 0
+            case IN_PROGRESS: {
+                long transferredByte = AppUtils.getProgressJournal().getTransferredByte(transferObject);
+
+                return percentFormat.format(transferObject.fileSize == 0 || transferredByte == 0
                         ? 0
-                        : Long.valueOf(transferObject.flag.getBytesValue()).doubleValue() / Long.valueOf(transferObject.fileSize).doubleValue());
+                        : Long.valueOf(transferredByte).doubleValue() / Long.valueOf(transferObject.fileSize).doubleValue());
+            }
             default:
                 return context.getString(getTransactionFlagString(transferObject.flag));
         }
@@ -16,6 +16,7 @@ import com.genonbeta.TrebleShot.R;
 import com.genonbeta.TrebleShot.dialog.EstablishConnectionDialog;
 import com.genonbeta.TrebleShot.app.Activity;
 import com.genonbeta.TrebleShot.callback.OnDeviceSelectedListener;
+import com.genonbeta.TrebleShot.config.AppConfig;
 import com.genonbeta.TrebleShot.config.Keyword;
 import com.genonbeta.TrebleShot.database.AccessDatabase;
 import com.genonbeta.TrebleShot.dialog.ConnectionChooserDialog;
@@ -31,10 +32,12 @@ import com.genonbeta.android.database.SQLiteDatabase;
 import com.genonbeta.android.framework.ui.callback.SnackbarSupport;
 import com.genonbeta.android.framework.util.Interrupter;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -86,7 +89,7 @@ public class TransferUtils
                         AccessDatabase.FIELD_TRANSFER_GROUPID,
                         AccessDatabase.FIELD_TRANSFER_DEVICEID,
                         AccessDatabase.FIELD_TRANSFER_FLAG),
-                        String.valueOf(groupId), deviceId, flag.toString());
+                        String.valueOf(groupId), deviceId, String.valueOf(flag.getValue()));
     }
 
     public static ShowingAssignee getFirstAssignee(AccessDatabase database, long groupId)
@@ -157,7 +160,7 @@ public class TransferUtils
                                 + AccessDatabase.FIELD_TRANSFER_FLAG + "=?",
                         type.toString(),
                         String.valueOf(groupId),
-                        TransferObject.Flag.PENDING.toString())
+                        String.valueOf(TransferObject.Flag.PENDING.getValue()))
                 .setOrderBy(String.format("`%s` ASC, `%s` ASC",
                         AccessDatabase.FIELD_TRANSFER_DIRECTORY,
                         AccessDatabase.FIELD_TRANSFER_NAME)));
@@ -180,7 +183,7 @@ public class TransferUtils
                         type.toString(),
                         String.valueOf(groupId),
                         deviceId,
-                        TransferObject.Flag.PENDING.toString())
+                        String.valueOf(TransferObject.Flag.PENDING.getValue()))
                 .setOrderBy(String.format("`%s` ASC, `%s` ASC",
                         AccessDatabase.FIELD_TRANSFER_DIRECTORY,
                         AccessDatabase.FIELD_TRANSFER_NAME)));
@@ -190,11 +193,194 @@ public class TransferUtils
                 : new TransferObject(receiverInstance);
     }
 
+    /**
+     * Collects the next page of the outgoing files of a device. The files are ordered by their
+     * request ids so that the last request id of a page can be used to reach the next one.
+     *
+     * @param cursor the last request id of the previous page, or {@link Long#MIN_VALUE} for
+     *               the first page
+     * @param limit  the number of files a page can have at most
+     */
+    public static List<TransferObject> fetchIndexPage(AccessDatabase database, long groupId,
+                                                      String deviceId, long cursor, int limit)
+    {
+        return database.castQuery(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_TYPE + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_DEVICEID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_ID + ">?",
+                        TransferObject.Type.OUTGOING.toString(), String.valueOf(groupId), deviceId,
+                        String.valueOf(cursor))
+                .setOrderBy(AccessDatabase.FIELD_TRANSFER_ID + " ASC")
+                .setLimit(limit), TransferObject.class);
+    }
+
+    /**
+     * @return the largest request id of the incoming files of a group, after which the pages of
+     * the index that haven't been saved start
+     */
+    public static long findIndexCursor(AccessDatabase database, long groupId, String deviceId)
+    {
+        List<TransferObject> lastList = database.castQuery(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_TYPE + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_DEVICEID + "=?",
+                        TransferObject.Type.INCOMING.toString(), String.valueOf(groupId), deviceId)
+                .setOrderBy(AccessDatabase.FIELD_TRANSFER_ID + " DESC")
+                .setLimit(1), TransferObject.class);
+
+        return lastList.size() > 0 ? lastList.get(0).requestId : Long.MIN_VALUE;
+    }
+
+    /**
+     * Collects the incoming files of a group that have been received completely, which are
+     * the ones that this device can serve to the other devices of the group.
+     */
+    public static List<TransferObject> fetchCompletedTransfers(AccessDatabase database, long groupId)
+    {
+        return database.castQuery(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_TYPE + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_FLAG + "=?",
+                        TransferObject.Type.INCOMING.toString(), String.valueOf(groupId),
+                        String.valueOf(TransferObject.Flag.DONE.getValue())), TransferObject.class);
+    }
+
+    /**
+     * Collects the outgoing files of a group that are not assigned to any device yet and that
+     * came after the given request id. These are the files that a share is still adding.
+     */
+    public static List<TransferObject> fetchUnassignedTransfers(AccessDatabase database, long groupId,
+                                                                long cursor)
+    {
+        return database.castQuery(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_TYPE + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_DEVICEID + " IS NULL AND "
+                                + AccessDatabase.FIELD_TRANSFER_ID + ">?",
+                        TransferObject.Type.OUTGOING.toString(), String.valueOf(groupId),
+                        String.valueOf(cursor))
+                .setOrderBy(AccessDatabase.FIELD_TRANSFER_ID + " ASC"), TransferObject.class);
+    }
+
+    /**
+     * @return a pending copy of the outgoing file that belongs to the given device
+     */
+    public static TransferObject createAssigneeCopy(TransferObject object, String deviceId)
+    {
+        TransferObject copyObject = new TransferObject(AccessDatabase.convertValues(object.getValues()));
+
+        copyObject.deviceId = deviceId;
+        copyObject.flag = TransferObject.Flag.PENDING;
+        copyObject.accessPort = 0;
+        copyObject.skippedBytes = 0;
+
+        return copyObject;
+    }
+
+    /**
+     * Gives the devices that a group is already assigned to their own copies of the files that
+     * were added to the group later.
+     */
+    public static void publishToAssignees(AccessDatabase database, long groupId,
+                                          List<TransferObject> objectList,
+                                          SQLiteDatabase.ProgressUpdater updater)
+    {
+        List<TransferGroup.Assignee> assigneeList = database.castQuery(new SQLQuery.Select(
+                AccessDatabase.TABLE_TRANSFERASSIGNEE)
+                .setWhere(AccessDatabase.FIELD_TRANSFERASSIGNEE_GROUPID + "=?", String.valueOf(groupId)),
+                TransferGroup.Assignee.class);
+
+        for (TransferGroup.Assignee assignee : assigneeList) {
+            List<TransferObject> copyList = new ArrayList<>();
+
+            for (TransferObject object : objectList)
+                copyList.add(createAssigneeCopy(object, assignee.deviceId));
+
+            database.publish(copyList, updater);
+        }
+    }
+
+    /**
+     * The mark is kept in the database, because the group is filled in the process of the app
+     * while its index is given out by the service, which runs in a process of its own.
+     *
+     * @return true if the index of the group is not complete, which is when the files of an
+     * outgoing group are still being found, or when the pages of an incoming one are still
+     * being received
+     */
+    public static boolean isIndexPartial(AccessDatabase database, long groupId)
+    {
+        TransferGroup group = new TransferGroup(groupId);
+
+        try {
+            database.reconstruct(group);
+        } catch (Exception e) {
+            return false;
+        }
+
+        return group.isIndexPartial;
+    }
+
+    /**
+     * Marks a group whose index is not complete, so that the receivers keep asking for the files
+     * that are added to it later.
+     */
+    public static void setIndexPartial(AccessDatabase database, long groupId, boolean partial)
+    {
+        ContentValues values = new ContentValues();
+        values.put(AccessDatabase.FIELD_TRANSFERGROUP_ISINDEXPARTIAL, partial ? 1 : 0);
+
+        database.update(new TransferGroup(groupId).getWhere(), values);
+    }
+
+    /**
+     * Puts a page of the index of an outgoing group into the reply to a receiver. Whether the
+     * group is still being filled is read before the page, so the files that are saved in the
+     * meantime can't be left out of a page that is said to be the last one.
+     *
+     * @param cursor the largest request id that the receiver has
+     */
+    public static void putIndexPage(AccessDatabase database, JSONObject reply, long groupId,
+                                    String deviceId, long cursor) throws JSONException
+    {
+        boolean indexPartial = isIndexPartial(database, groupId);
+        List<TransferObject> indexPage = fetchIndexPage(database, groupId, deviceId, cursor,
+                AppConfig.INDEX_PAGE_LENGTH);
+        JSONArray filesArray = new JSONArray();
+
+        for (TransferObject indexObject : indexPage)
+            filesArray.put(createIndexEntry(indexObject));
+
+        reply.put(Keyword.FILES_INDEX, filesArray)
+                .put(Keyword.INDEX_COMPLETE, !indexPartial && indexPage.size() < AppConfig.INDEX_PAGE_LENGTH);
+    }
+
+    /**
+     * @return the index entry that lets the receiver create its own copy of the file
+     */
+    public static JSONObject createIndexEntry(TransferObject object) throws JSONException
+    {
+        JSONObject entry = new JSONObject()
+                .put(Keyword.INDEX_FILE_NAME, object.friendlyName)
+                .put(Keyword.INDEX_FILE_SIZE, object.fileSize)
+                .put(Keyword.TRANSFER_REQUEST_ID, object.requestId)
+                .put(Keyword.INDEX_FILE_MIME, object.fileMimeType);
+
+        if (object.directory != null)
+            entry.put(Keyword.INDEX_DIRECTORY, object.directory);
+
+        return entry;
+    }
+
     public static List<ShowingAssignee> loadAssigneeList(SQLiteDatabase database, long groupId)
     {
-        SQLQuery.Select select = new SQLQuery.Select(AccessDatabase.TABLE_TRANSFERASSIGNEE)
-                .setWhere(AccessDatabase.FIELD_TRANSFERASSIGNEE_GROUPID + "=?", String.valueOf(groupId));
+        return loadAssigneeList(database, new SQLQuery.Select(AccessDatabase.TABLE_TRANSFERASSIGNEE)
+                .setWhere(AccessDatabase.FIELD_TRANSFERASSIGNEE_GROUPID + "=?", String.valueOf(groupId)));
+    }
 
+    public static List<ShowingAssignee> loadAssigneeList(SQLiteDatabase database, SQLQuery.Select select)
+    {
         return database.castQuery(select, ShowingAssignee.class, new SQLiteDatabase.CastQueryListener<ShowingAssignee>()
         {
             @Override
@@ -360,14 +546,14 @@ public class TransferUtils
     {
         ContentValues contentValues = new ContentValues();
 
-        contentValues.put(AccessDatabase.FIELD_TRANSFER_FLAG, TransferObject.Flag.PENDING.toString());
+        contentValues.put(AccessDatabase.FIELD_TRANSFER_FLAG, TransferObject.Flag.PENDING.getValue());
 
         AppUtils.getDatabase(context).update(new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
                 .setWhere(AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
                                 + AccessDatabase.FIELD_TRANSFER_FLAG + "=? AND "
                                 + AccessDatabase.FIELD_TRANSFER_TYPE + "=?",
                         String.valueOf(groupId),
-                        TransferObject.Flag.INTERRUPTED.toString(),
+                        String.valueOf(TransferObject.Flag.INTERRUPTED.getValue()),
                         TransferObject.Type.INCOMING.toString()), contentValues);
     }
 
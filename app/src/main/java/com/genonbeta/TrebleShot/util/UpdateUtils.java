@@ -76,14 +76,20 @@ public class UpdateUtils
         FileInputStream fileInputStream = new FileInputStream(context.getApplicationInfo().sourceDir);
         OutputStream outputStream = socket.getOutputStream();
 
-        byte[] buffer = new byte[AppConfig.BUFFER_LENGTH_DEFAULT];
+        AdaptiveBufferSize bufferSize = new AdaptiveBufferSize(AppConfig.BUFFER_LENGTH_DEFAULT,
+                AppConfig.BUFFER_LENGTH_DIRECT);
+        byte[] buffer;
         int len;
         long lastRead = System.currentTimeMillis();
 
-        while ((len = fileInputStream.read(buffer)) != -1) {
+        bufferSize.apply(socket);
+
+        while ((len = fileInputStream.read(buffer = bufferSize.getBuffer(), 0, bufferSize.getLength())) != -1) {
             if (len > 0) {
                 outputStream.write(buffer, 0, len);
-                outputStream.flush();
+
+                if (bufferSize.onTransferred(len))
+                    bufferSize.apply(socket);
 
                 lastRead = System.currentTimeMillis();
             }
@@ -94,6 +100,7 @@ public class UpdateUtils
             }
         }
 
+        outputStream.flush();
         outputStream.close();
         fileInputStream.close();
 
@@ -107,7 +114,9 @@ public class UpdateUtils
         DocumentFile updateFile = null;
 
         try {
-            serverSocket = new ServerSocket(AppConfig.SERVER_PORT_UPDATE_CHANNEL);
+            serverSocket = new ServerSocket();
+            serverSocket.setReceiveBufferSize(AdaptiveBufferSize.SOCKET_LENGTH_MAX);
+            serverSocket.bind(new InetSocketAddress(AppConfig.SERVER_PORT_UPDATE_CHANNEL));
             updateFile = FileUtils.getApplicationDirectory(context)
                     .createFile(null, device.versionName + "_" + System.currentTimeMillis() + ".apk");
 
@@ -139,14 +148,20 @@ public class UpdateUtils
             InputStream inputStream = socket.getInputStream();
             OutputStream outputStream = context.getContentResolver().openOutputStream(updateFile.getUri());
 
-            byte[] buffer = new byte[AppConfig.BUFFER_LENGTH_DEFAULT];
+            AdaptiveBufferSize bufferSize = new AdaptiveBufferSize(AppConfig.BUFFER_LENGTH_DEFAULT,
+                    AppConfig.BUFFER_LENGTH_DIRECT);
+            byte[] buffer;
             int len = 0;
             long lastRead = System.currentTimeMillis();
 
+            bufferSize.apply(socket);
+
             while (len != -1) {
-                if ((len = inputStream.read(buffer)) > 0) {
+                if ((len = inputStream.read(buffer = bufferSize.getBuffer(), 0, bufferSize.getLength())) > 0) {
                     outputStream.write(buffer, 0, len);
-                    outputStream.flush();
+
+                    if (bufferSize.onTransferred(len))
+                        bufferSize.apply(socket);
 
                     lastRead = System.currentTimeMillis();
                 }
@@ -155,6 +170,7 @@ public class UpdateUtils
                     throw new Exception("Timed out or interrupted. Exiting!");
             }
 
+            outputStream.flush();
             outputStream.close();
             inputStream.close();
 
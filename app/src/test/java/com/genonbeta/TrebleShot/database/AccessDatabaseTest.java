@@ -0,0 +1,98 @@
+package com.genonbeta.TrebleShot.database;
+
+import android.app.Application;
+import android.database.Cursor;
+
+import com.genonbeta.TrebleShot.object.TransferGroup;
+import com.genonbeta.TrebleShot.object.TransferObject;
+import com.genonbeta.TrebleShot.util.TransferUtils;
+import com.genonbeta.android.database.SQLQuery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, application = Application.class)
+public class AccessDatabaseTest
+{
+    private static final long GROUP_ID = 1;
+    private static final long REQUEST_ID = 2;
+    private static final String DEVICE_ID = "device";
+
+    private AccessDatabase mDatabase;
+
+    @Before
+    public void setUp()
+    {
+        mDatabase = new AccessDatabase(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mDatabase.close();
+    }
+
+    /**
+     * Fails unless the query that the selection makes is planned to search the table with the
+     * index instead of scanning all of it.
+     */
+    private void assertUsesIndex(String indexName, SQLQuery.Select select)
+    {
+        StringBuilder plan = new StringBuilder();
+        Cursor cursor = mDatabase.getReadableDatabase().rawQuery(String.format(
+                "EXPLAIN QUERY PLAN SELECT * FROM `%s` WHERE %s", select.tableName, select.where),
+                select.whereArgs);
+
+        try {
+            while (cursor.moveToNext())
+                plan.append(cursor.getString(cursor.getColumnIndex("detail"))).append('\n');
+        } finally {
+            cursor.close();
+        }
+
+        assertTrue(indexName + " is not used: " + plan, plan.indexOf("INDEX " + indexName) != -1);
+    }
+
+    @Test
+    public void groupQueriesUseIndexes()
+    {
+        assertUsesIndex("index_transfer_group", TransferUtils.createTransferSelection(GROUP_ID,
+                DEVICE_ID));
+        assertUsesIndex("index_transfer_group", TransferUtils.createTransferSelection(GROUP_ID,
+                DEVICE_ID, TransferObject.Flag.PENDING, true));
+        assertUsesIndex("index_transfer_group", new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_DEVICEID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_TYPE + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_FLAG + "=?", String.valueOf(GROUP_ID),
+                        DEVICE_ID, TransferObject.Type.INCOMING.toString(),
+                        String.valueOf(TransferObject.Flag.PENDING.getValue())));
+        assertUsesIndex("index_divisionTransfer_group", new SQLQuery.Select(AccessDatabase.DIVIS_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_GROUPID + "=? AND "
+                                + AccessDatabase.FIELD_TRANSFER_TYPE + "=?", String.valueOf(GROUP_ID),
+                        TransferObject.Type.OUTGOING.toString()));
+        assertUsesIndex("index_transferAssignee_group", new TransferGroup.Assignee(GROUP_ID,
+                DEVICE_ID).getWhere());
+        assertUsesIndex("index_transferAssignee_group", new SQLQuery.Select(AccessDatabase.TABLE_TRANSFERASSIGNEE)
+                .setWhere(AccessDatabase.FIELD_TRANSFERASSIGNEE_GROUPID + "=?", String.valueOf(GROUP_ID)));
+    }
+
+    @Test
+    public void fileQueriesUseIndexes()
+    {
+        assertUsesIndex("index_transfer_id", new TransferObject(REQUEST_ID, DEVICE_ID,
+                TransferObject.Type.INCOMING).getWhere());
+        assertUsesIndex("index_divisionTransfer_id", new TransferObject(REQUEST_ID, null,
+                TransferObject.Type.OUTGOING).getWhere());
+        assertUsesIndex("index_transfer_file", new SQLQuery.Select(AccessDatabase.TABLE_TRANSFER)
+                .setWhere(AccessDatabase.FIELD_TRANSFER_FILE + "=?", "file"));
+    }
+}
@@ -0,0 +1,33 @@
+package com.genonbeta.TrebleShot.database;
+
+import com.genonbeta.TrebleShot.config.AppConfig;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DatabaseChangeBusTest
+{
+    @Test
+    public void changeKeepsLimitedIds()
+    {
+        DatabaseChangeBus.Change change = new DatabaseChangeBus.Change(AccessDatabase.TABLE_TRANSFER,
+                AccessDatabase.TYPE_UPDATE);
+
+        for (long requestId = 0; requestId < AppConfig.DATABASE_CHANGE_ID_MAX; requestId++)
+            change.addRequest(requestId);
+
+        change.addGroup(1L);
+
+        assertTrue(change.affectsRequest(0));
+        assertFalse(change.affectsRequest(AppConfig.DATABASE_CHANGE_ID_MAX));
+        assertFalse(change.affectsGroup(2));
+
+        change.addRequest((long) AppConfig.DATABASE_CHANGE_ID_MAX);
+
+        assertTrue("Any file may have changed past the limit",
+                change.affectsRequest(AppConfig.DATABASE_CHANGE_ID_MAX + 1));
+        assertFalse(change.affectsGroup(2));
+    }
+}
@@ -0,0 +1,122 @@
+package com.genonbeta.TrebleShot.util;
+
+import android.app.Application;
+
+import com.genonbeta.TrebleShot.config.AppConfig;
+import com.genonbeta.TrebleShot.config.Keyword;
+import com.genonbeta.TrebleShot.database.AccessDatabase;
+import com.genonbeta.TrebleShot.object.TransferGroup;
+import com.genonbeta.TrebleShot.object.TransferObject;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, application = Application.class)
+public class TransferUtilsTest
+{
+    private static final long GROUP_ID = 1;
+    private static final String DEVICE_ID = "receiver";
+
+    private AccessDatabase mDatabase;
+    private List<Long> mReceivedList = new ArrayList<>();
+    private long mCursor = Long.MIN_VALUE;
+
+    @Before
+    public void setUp()
+    {
+        mDatabase = new AccessDatabase(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mDatabase.close();
+    }
+
+    /**
+     * @return true if the sender has said that the page is the last one
+     */
+    private boolean receivePage() throws JSONException
+    {
+        JSONObject reply = new JSONObject();
+
+        TransferUtils.putIndexPage(mDatabase, reply, GROUP_ID, DEVICE_ID, mCursor);
+
+        JSONArray filesArray = reply.getJSONArray(Keyword.FILES_INDEX);
+
+        for (int i = 0; i < filesArray.length(); i++) {
+            long requestId = filesArray.getJSONObject(i).getLong(Keyword.TRANSFER_REQUEST_ID);
+
+            mReceivedList.add(requestId);
+            mCursor = Math.max(mCursor, requestId);
+        }
+
+        return reply.getBoolean(Keyword.INDEX_COMPLETE);
+    }
+
+    private void saveFiles(long firstId, int count)
+    {
+        List<TransferObject> fileList = new ArrayList<>();
+
+        for (long requestId = firstId; requestId < firstId + count; requestId++)
+            fileList.add(new TransferObject(requestId, GROUP_ID, DEVICE_ID, "file" + requestId,
+                    "file:///file" + requestId, "text/plain", 1, TransferObject.Type.OUTGOING));
+
+        mDatabase.insert(fileList, null);
+    }
+
+    @Test
+    public void longWalkIsIndexedCompletely() throws JSONException
+    {
+        TransferGroup group = new TransferGroup(GROUP_ID);
+        group.isIndexPartial = true;
+
+        mDatabase.insert(group);
+        saveFiles(1, AppConfig.INDEX_PAGE_LENGTH + AppConfig.INDEX_PAGE_LENGTH / 2);
+
+        // The mark is read from the database, which the other process shares
+        assertTrue(TransferUtils.isIndexPartial(new AccessDatabase(RuntimeEnvironment.application), GROUP_ID));
+
+        assertFalse(receivePage());
+        assertFalse("A short page of a group that is still being filled is not the last one",
+                receivePage());
+
+        // The walk finds more files and is over only after they are saved
+        saveFiles(AppConfig.INDEX_PAGE_LENGTH * 2, AppConfig.INDEX_PAGE_LENGTH + 200);
+        TransferUtils.setIndexPartial(mDatabase, GROUP_ID, false);
+
+        assertFalse(TransferUtils.isIndexPartial(mDatabase, GROUP_ID));
+
+        int pageCount = 0;
+
+        while (!receivePage())
+            assertTrue("The pages should end", ++pageCount < 10);
+
+        List<Long> expectedList = new ArrayList<>();
+
+        for (long requestId = 1; requestId <= AppConfig.INDEX_PAGE_LENGTH * 3 / 2; requestId++)
+            expectedList.add(requestId);
+
+        for (long requestId = AppConfig.INDEX_PAGE_LENGTH * 2;
+             requestId < AppConfig.INDEX_PAGE_LENGTH * 3 + 200; requestId++)
+            expectedList.add(requestId);
+
+        assertEquals(expectedList, mReceivedList);
+    }
+}